@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decode, resize and encode with {@code Java2DImageTransformer}, at representative source sizes.
+ * The App Engine Images service transformer needs the App Engine runtime, so it isn't covered.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageTransformBenchmark {
+
+  private static final int TARGET_WIDTH = 300;
+  private static final int TARGET_HEIGHT = 150;
+
+  /** The source image, as WIDTHxHEIGHT. */
+  @Param({"640x480", "1920x1080", "4000x3000"})
+  public String size;
+
+  @Param({"png", "jpeg"})
+  public String format;
+
+  private Object transformer;
+  private MethodHandle decode;
+  private MethodHandle resize;
+  private MethodHandle encode;
+  private byte[] sourceBytes;
+  private BufferedImage sourceImage;
+  private BufferedImage resizedImage;
+
+  @Setup
+  public void setUp() throws Throwable {
+    transformer = Samples.constructor("Java2DImageTransformer").invoke();
+    decode = Samples.method("Java2DImageTransformer", "decode", byte[].class);
+    resize = Samples.method("Java2DImageTransformer", "resize",
+        Object.class, int.class, int.class);
+    encode = Samples.method("Java2DImageTransformer", "encode",
+        BufferedImage.class, String.class, int.class);
+
+    String[] dimensions = size.split("x");
+    sourceImage = photoLike(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (!ImageIO.write(sourceImage, format, out)) {
+      throw new IOException("No ImageIO writer for " + format);
+    }
+    sourceBytes = out.toByteArray();
+    resizedImage = (BufferedImage) resize.invoke(transformer, sourceImage, TARGET_WIDTH,
+        TARGET_HEIGHT);
+  }
+
+  /**
+   * Returns an image with smooth gradients and fine noise, which compresses about as well as a
+   * photograph; a flat image would make decode and encode unrealistically cheap.
+   */
+  private static BufferedImage photoLike(int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height,
+        new Color(230, 180, 60)));
+    g.fillRect(0, 0, width, height);
+    g.dispose();
+    Random random = new Random(42);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int noise = random.nextInt(16) - 8;
+        int rgb = image.getRGB(x, y);
+        int r = clamp(((rgb >> 16) & 0xff) + noise);
+        int gr = clamp(((rgb >> 8) & 0xff) + noise);
+        int b = clamp((rgb & 0xff) + noise);
+        image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+      }
+    }
+    return image;
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  @Benchmark
+  public Object decode() throws Throwable {
+    return decode.invoke(transformer, sourceBytes);
+  }
+
+  @Benchmark
+  public Object resize() throws Throwable {
+    return resize.invoke(transformer, (Object) sourceImage, TARGET_WIDTH, TARGET_HEIGHT);
+  }
+
+  @Benchmark
+  public byte[] encodeJpeg() throws Throwable {
+    return (byte[]) encode.invoke(transformer, resizedImage, "jpeg", 85);
+  }
+
+  /** One full conversion, as the pipeline does it for a single rendition. */
+  @Benchmark
+  public byte[] convert() throws Throwable {
+    Object image = decode.invoke(transformer, sourceBytes);
+    Object resized = resize.invoke(transformer, image, TARGET_WIDTH, TARGET_HEIGHT);
+    return (byte[]) encode.invoke(transformer, (BufferedImage) resized, "jpeg", 85);
+  }
+}
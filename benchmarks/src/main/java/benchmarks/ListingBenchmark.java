@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of object listing pages, as done by {@code StorageSample.listBucket} and
+ * {@code BucketListing}. The transport answers instantly from pre-serialized pages, so these
+ * measure JSON parsing and object mapping only.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+  private static final int PAGE_COUNT = 10;
+
+  @Param({"100", "1000"})
+  public int pageSize;
+
+  /** "full" for the full object metadata, "conversion" for the fields the converter needs. */
+  @Param({"full", "conversion"})
+  public String fields;
+
+  private Storage storage;
+  private String objectFields;
+  private Iterable<StorageObject> bucketListing;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Throwable {
+    objectFields = "full".equals(fields) ? null : SimulatedGcsTransport.CONVERSION_FIELDS;
+    storage = new SimulatedGcsTransport(0, 0, 4096, pageSize, PAGE_COUNT, objectFields)
+        .newClient();
+    MethodHandle newListing = Samples.constructor("BucketListing",
+        Storage.class, String.class, String.class, String.class, Long.class);
+    // Every iterator() starts a fresh listing, so one instance serves all invocations.
+    bucketListing = (Iterable<StorageObject>) newListing.invoke(storage,
+        SimulatedGcsTransport.BUCKET, null, objectFields, Long.valueOf(pageSize));
+  }
+
+  /** One page request and its parsing. */
+  @Benchmark
+  public Objects listPage() throws IOException {
+    return storage.objects().list(SimulatedGcsTransport.BUCKET).execute();
+  }
+
+  /** The whole listing collected into memory, as {@code StorageSample.listBucket} does it. */
+  @Benchmark
+  public List<StorageObject> listBucket() throws IOException {
+    Storage.Objects.List listRequest = storage.objects().list(SimulatedGcsTransport.BUCKET);
+    List<StorageObject> results = new ArrayList<StorageObject>();
+    Objects objects;
+    do {
+      objects = listRequest.execute();
+      results.addAll(objects.getItems());
+      listRequest.setPageToken(objects.getNextPageToken());
+    } while (null != objects.getNextPageToken());
+    return results;
+  }
+
+  /** The whole listing streamed through {@code BucketListing}, with page prefetching. */
+  @Benchmark
+  public void bucketListing(Blackhole blackhole) {
+    for (StorageObject object : bucketListing) {
+      blackhole.consume(object);
+    }
+  }
+}
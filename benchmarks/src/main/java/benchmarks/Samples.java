@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the sample classes, which live in the unnamed package.
+ *
+ * <p>JMH only accepts benchmarks in a named package, and Java code in a named package can't refer
+ * to classes in the unnamed one, so the benchmarks reach the samples through method handles.
+ * Handles are resolved once, during setup; invoking one costs about as much as a direct call, so
+ * it doesn't distort the measurements.</p>
+ */
+final class Samples {
+
+  private Samples() {}
+
+  static Class<?> type(String className) {
+    try {
+      return Class.forName(className);
+    } catch (ClassNotFoundException e) {
+      throw new IllegalStateException("Samples are not on the classpath", e);
+    }
+  }
+
+  /**
+   * Returns a handle to a static or instance method, whatever its visibility. An instance
+   * method's handle takes the receiver as its first argument.
+   */
+  static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+    try {
+      Method method = findMethod(type(className), name, parameterTypes);
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns a handle to a constructor, whatever its visibility.
+   */
+  static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+    try {
+      Constructor<?> constructor = type(className).getDeclaredConstructor(parameterTypes);
+      constructor.setAccessible(true);
+      return MethodHandles.lookup().unreflectConstructor(constructor);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Method findMethod(Class<?> type, String name, Class<?>[] parameterTypes)
+      throws NoSuchMethodException {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      try {
+        return c.getDeclaredMethod(name, parameterTypes);
+      } catch (NoSuchMethodException e) {
+        // Keep looking in the superclass.
+      }
+    }
+    // Default methods of implemented interfaces.
+    return type.getMethod(name, parameterTypes);
+  }
+}
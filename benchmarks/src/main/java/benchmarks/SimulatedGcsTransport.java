@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.client.util.StreamingContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process stand-in for the GCS JSON API, with a fixed per-request latency and a bandwidth
+ * limit applied to request and response bodies.
+ *
+ * <p>It answers object listings (from pre-serialized pages), metadata and media GETs, and media
+ * uploads, including the resumable protocol the client library uses for streams. Bodies are
+ * streams of zeros that are never buffered, so the transport itself adds almost nothing to the
+ * allocation rate being measured.</p>
+ */
+final class SimulatedGcsTransport extends HttpTransport {
+
+  static final String BUCKET = "benchmark-bucket";
+
+  /** The fields {@code BucketListing.CONVERSION_FIELDS} asks for. */
+  static final String CONVERSION_FIELDS = "name,size,contentType,generation,md5Hash,crc32c";
+
+  private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  private final long latencyNanos;
+  private final long bytesPerSecond;
+  private final long objectSize;
+  private final String md5Hash;
+  private final String crc32c;
+  private final byte[] objectJson;
+  private final byte[][] pages;
+
+  /**
+   * @param latencyMicros the delay before every response.
+   * @param bytesPerSecond the bandwidth of request and response bodies, or 0 for unlimited.
+   * @param objectSize the size of every object served.
+   * @param pageSize the number of objects in every listing page.
+   * @param pageCount the number of pages in a listing.
+   * @param listingFields the object fields listings return, or null for the full metadata.
+   */
+  SimulatedGcsTransport(long latencyMicros, long bytesPerSecond, long objectSize, int pageSize,
+      int pageCount, String listingFields) throws IOException {
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    this.bytesPerSecond = bytesPerSecond;
+    this.objectSize = objectSize;
+    // Uploads check the CRC32C GCS returns against the data sent, so the hashes must be those of
+    // the zeros every object holds.
+    this.md5Hash = BaseEncoding.base64().encode(hashZeros(Hashing.md5(), objectSize).asBytes());
+    // GCS sends the CRC32C big-endian; Guava's HashCode bytes are little-endian.
+    this.crc32c = BaseEncoding.base64().encode(
+        Ints.toByteArray(hashZeros(Hashing.crc32c(), objectSize).asInt()));
+    this.objectJson = JSON_FACTORY.toByteArray(object("object", 0, null));
+    this.pages = new byte[pageCount][];
+    for (int page = 0; page < pageCount; page++) {
+      List<StorageObject> items = new ArrayList<StorageObject>(pageSize);
+      for (int i = 0; i < pageSize; i++) {
+        items.add(object(String.format("images/%06d-%04d.png", page, i), page, listingFields));
+      }
+      Objects objects = new Objects().setKind("storage#objects").setItems(items);
+      if (page + 1 < pageCount) {
+        objects.setNextPageToken(Integer.toString(page + 1));
+      }
+      pages[page] = JSON_FACTORY.toByteArray(objects);
+    }
+  }
+
+  /**
+   * Returns a client that talks to this transport. No credentials are needed.
+   */
+  Storage newClient() {
+    return new Storage.Builder(this, JSON_FACTORY, null)
+        .setApplicationName("storage-benchmarks")
+        .build();
+  }
+
+  private StorageObject object(String name, int page, String fields) {
+    StorageObject object = new StorageObject()
+        .setName(name)
+        .setSize(BigInteger.valueOf(objectSize))
+        .setContentType("image/png")
+        .setGeneration(1500000000000000L + page)
+        .setMd5Hash(md5Hash)
+        .setCrc32c(crc32c);
+    if (fields == null) {
+      object.setKind("storage#object")
+          .setId(BUCKET + "/" + name + "/" + object.getGeneration())
+          .setSelfLink("https://www.googleapis.com/storage/v1/b/" + BUCKET + "/o/" + name)
+          .setBucket(BUCKET)
+          .setMetageneration(1L)
+          .setTimeCreated(new DateTime(1500000000000L))
+          .setUpdated(new DateTime(1500000000000L))
+          .setStorageClass("STANDARD")
+          .setTimeStorageClassUpdated(new DateTime(1500000000000L))
+          .setEtag("CJDp0ODw1NQCEAE=")
+          .setMediaLink("https://www.googleapis.com/download/storage/v1/b/" + BUCKET + "/o/"
+              + name + "?generation=" + object.getGeneration() + "&alt=media");
+    }
+    return object;
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(final String method, final String url) {
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        StreamingContent content = getStreamingContent();
+        if (content != null) {
+          content.writeTo(new ThrottledSink());
+        }
+        if (latencyNanos > 0) {
+          LockSupport.parkNanos(latencyNanos);
+        }
+        return respond(method, new GenericUrl(url), getFirstHeaderValue("Content-Range"));
+      }
+    };
+  }
+
+  private static HashCode hashZeros(HashFunction function, long length) {
+    Hasher hasher = function.newHasher();
+    byte[] zeros = new byte[CHUNK_SIZE];
+    for (long remaining = length; remaining > 0; remaining -= zeros.length) {
+      hasher.putBytes(zeros, 0, (int) Math.min(zeros.length, remaining));
+    }
+    return hasher.hash();
+  }
+
+  private LowLevelHttpResponse respond(String method, GenericUrl url, String contentRange) {
+    MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+    List<String> path = url.getPathParts();
+    boolean objectsCollection = !path.isEmpty() && "o".equals(path.get(path.size() - 1));
+    if ("resumable".equals(url.getFirst("uploadType"))) {
+      if (url.getFirst("upload_id") == null) {
+        // Start a session; chunks are then sent to the returned URL.
+        GenericUrl session = url.clone();
+        session.set("upload_id", "benchmark");
+        response.addHeader("Location", session.build());
+      } else if (contentRange != null && contentRange.endsWith("/*")) {
+        // A chunk of a stream of unknown length: confirm it and ask for more.
+        String end = contentRange.substring(contentRange.indexOf('-') + 1,
+            contentRange.length() - 2);
+        response.setStatusCode(308).addHeader("Range", "bytes=0-" + end);
+      } else {
+        response.setContentType("application/json; charset=UTF-8").setContent(objectJson);
+      }
+    } else if ("media".equals(url.getFirst("alt"))) {
+      response.setContentType("application/octet-stream")
+          .setContentLength(objectSize)
+          .setContent(new ThrottledSource(objectSize));
+    } else if ("GET".equals(method) && objectsCollection) {
+      Object token = url.getFirst("pageToken");
+      byte[] page = pages[token == null ? 0 : Integer.parseInt(token.toString())];
+      response.setContentType("application/json; charset=UTF-8").setContent(page);
+    } else {
+      // Object metadata, and the result of an upload.
+      response.setContentType("application/json; charset=UTF-8").setContent(objectJson);
+    }
+    return response;
+  }
+
+  /**
+   * Paces a body to the simulated bandwidth. It sleeps only once the body is noticeably ahead of
+   * schedule, since parking for every small write would cost more than the write itself.
+   */
+  private final class Pacer {
+    private final long startNanos = System.nanoTime();
+    private long bytes;
+
+    void advance(long n) {
+      if (bytesPerSecond <= 0) {
+        return;
+      }
+      bytes += n;
+      long due = startNanos + (long) (bytes * 1e9 / bytesPerSecond);
+      long ahead = due - System.nanoTime();
+      if (ahead > MIN_PARK_NANOS) {
+        LockSupport.parkNanos(ahead);
+      }
+    }
+  }
+
+  /** Receives a request body at the simulated bandwidth. */
+  private final class ThrottledSink extends OutputStream {
+    private final Pacer pacer = new Pacer();
+
+    @Override
+    public void write(int b) {
+      pacer.advance(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      pacer.advance(len);
+    }
+  }
+
+  /** Serves a response body of zeros at the simulated bandwidth. */
+  private final class ThrottledSource extends InputStream {
+    private final Pacer pacer = new Pacer();
+    private long remaining;
+
+    ThrottledSource(long length) {
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = (int) Math.min(Math.min(len, CHUNK_SIZE), remaining);
+      Arrays.fill(b, off, off + n, (byte) 0);
+      remaining -= n;
+      pacer.advance(n);
+      return n;
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@code StorageUtils} stream helpers and the synthetic stream the samples upload.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamUtilsBenchmark {
+
+  @Param({"10000000", "67108864"})
+  public long streamSize;
+
+  private MethodHandle newZeroStream;
+  private MethodHandle readStream;
+  private MethodHandle drain;
+  private MethodHandle copy;
+  private MethodHandle transferTo;
+  private Path file;
+  private FileChannel fileChannel;
+
+  @Setup
+  public void setUp() throws IOException {
+    newZeroStream = Samples.constructor("StorageUtils$ArbitrarilyLargeInputStream", long.class);
+    readStream = Samples.method("StorageUtils", "readStream", InputStream.class);
+    drain = Samples.method("StorageUtils", "drain", ReadableByteChannel.class);
+    copy = Samples.method("StorageUtils", "copy", InputStream.class, OutputStream.class);
+    transferTo = Samples.method("StorageUtils", "transferTo",
+        FileChannel.class, long.class, long.class, WritableByteChannel.class);
+
+    file = Files.createTempFile("stream-benchmark", ".bin");
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+      for (long written = 0; written < streamSize; written += block.capacity()) {
+        block.clear();
+        block.limit((int) Math.min(block.capacity(), streamSize - written));
+        out.write(block);
+      }
+    }
+    fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    fileChannel.close();
+    Files.deleteIfExists(file);
+  }
+
+  /** The synthetic stream drained by {@code readStream}, as in the CSEK sample. */
+  @Benchmark
+  public long readSyntheticStream() throws Throwable {
+    return (long) readStream.invoke((InputStream) newZeroStream.invoke(streamSize));
+  }
+
+  /** The synthetic stream drained through a channel and direct buffer. */
+  @Benchmark
+  public long drainSyntheticStream() throws Throwable {
+    InputStream in = (InputStream) newZeroStream.invoke(streamSize);
+    return (long) drain.invoke(Channels.newChannel(in));
+  }
+
+  /** A file copied to a sink through the pooled heap buffer. */
+  @Benchmark
+  public long copyFileStream() throws Throwable {
+    try (InputStream in = Files.newInputStream(file)) {
+      return (long) copy.invoke(in, NullOutputStream.INSTANCE);
+    }
+  }
+
+  /** A file copied to a sink channel to channel. */
+  @Benchmark
+  public long transferFile() throws Throwable {
+    return (long) transferTo.invoke(
+        fileChannel, 0L, streamSize, Channels.newChannel(NullOutputStream.INSTANCE));
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  }
+}
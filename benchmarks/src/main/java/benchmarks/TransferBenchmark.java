@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import com.google.api.services.storage.Storage;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Uploads and downloads through {@code CustomerSuppliedEncryptionKeysSamples}, against a
+ * simulated link. With latency and bandwidth at zero they measure the client's own overhead
+ * per byte; otherwise how close the client gets to the link's limits.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+  // Any well-formed key will do; the simulated service doesn't decrypt anything.
+  private static final String KEY = "4RzDI0TeWa9M/nAvYH05qbCskPaSU/CFV5HeCxk0IUA=";
+  private static final String KEY_HASH = "aanjNC2nwso8e2FqcWILC3/Tt1YumvIwEj34kr6PRpI=";
+
+  /** The delay before every response, in microseconds. */
+  @Param({"0", "20000"})
+  public long latencyMicros;
+
+  /** The link's bandwidth in bytes per second; 0 is unlimited. 125000000 is 1 Gbit/s. */
+  @Param({"0", "125000000"})
+  public long bytesPerSecond;
+
+  @Param({"1048576", "16777216"})
+  public long objectSize;
+
+  private Storage storage;
+  private MethodHandle uploadObject;
+  private MethodHandle downloadObject;
+  private MethodHandle readStream;
+  private MethodHandle newZeroStream;
+
+  @Setup
+  public void setUp() throws Exception {
+    storage = new SimulatedGcsTransport(latencyMicros, bytesPerSecond, objectSize, 1, 1, null)
+        .newClient();
+    uploadObject = Samples.method("CustomerSuppliedEncryptionKeysSamples", "uploadObject",
+        Storage.class, String.class, String.class, InputStream.class, String.class,
+        String.class);
+    downloadObject = Samples.method("CustomerSuppliedEncryptionKeysSamples", "downloadObject",
+        Storage.class, String.class, String.class, String.class, String.class);
+    readStream = Samples.method("StorageUtils", "readStream", InputStream.class);
+    newZeroStream = Samples.constructor("StorageUtils$ArbitrarilyLargeInputStream", long.class);
+  }
+
+  @Benchmark
+  public void upload() throws Throwable {
+    InputStream data = (InputStream) newZeroStream.invoke(objectSize);
+    uploadObject.invoke(storage, SimulatedGcsTransport.BUCKET, "object", data, KEY, KEY_HASH);
+  }
+
+  @Benchmark
+  public long download() throws Throwable {
+    InputStream data = (InputStream) downloadObject.invoke(
+        storage, SimulatedGcsTransport.BUCKET, "object", KEY, KEY_HASH);
+    return (long) readStream.invoke(data);
+  }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.StorageRequest;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Storage operations in the background, returning a {@link CompletableFuture} for each, so
+ * that callers can keep thousands of requests in flight and compose their results without
+ * dedicating a thread of their own to each.
+ *
+ * <p>Operations run on virtual threads when the JVM has them (Java 21 and later), since they
+ * spend nearly all their time blocked on the network; otherwise they run on a pool of platform
+ * threads, one per permitted request. Either way, at most {@code maxInFlight} operations run at
+ * once and the rest wait their turn without holding a connection.</p>
+ *
+ * <p>Cancelling a future with {@code cancel(true)} interrupts the thread running it. An operation
+ * that hasn't started never sends a request, and one waiting on the {@link TrafficPolicy} or
+ * backing off before a retry stops there. On a virtual thread, interrupting a blocked socket read
+ * or write also closes the socket, aborting the HTTP exchange itself; on a platform thread the
+ * exchange in progress runs to its end or to its read timeout, and the operation then fails
+ * instead of retrying or continuing.</p>
+ */
+public class AsyncStorage implements Closeable {
+
+  /**
+   * Builds an {@link AsyncStorage}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private Executor executor;
+    private int maxInFlight = VIRTUAL_THREADS_AVAILABLE ? 4096 : 256;
+
+    /**
+     * @param storage the client that the CSEK operations use. The {@link StorageSample} helpers
+     *     use the client shared by that sample.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * Sets the executor that runs the operations, instead of one this instance creates (and shuts
+     * down on {@link #close()}). The caller keeps ownership of it.
+     */
+    public Builder executor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the number of operations that may run at once; the rest are queued.
+     */
+    public Builder maxInFlight(int maxInFlight) {
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    public AsyncStorage build() {
+      return new AsyncStorage(this);
+    }
+  }
+
+  private static final boolean VIRTUAL_THREADS_AVAILABLE = hasVirtualThreads();
+
+  private final Storage storage;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+
+  private AsyncStorage(Builder builder) {
+    this.storage = builder.storage;
+    this.maxInFlight = builder.maxInFlight;
+    this.inFlight = new Semaphore(builder.maxInFlight);
+    if (builder.executor != null) {
+      this.executor = builder.executor;
+      this.ownedExecutor = null;
+    } else {
+      ExecutorService virtualThreads = newVirtualThreadExecutor();
+      this.ownedExecutor = virtualThreads != null
+          ? virtualThreads : newPlatformThreadExecutor(builder.maxInFlight);
+      this.executor = ownedExecutor;
+    }
+  }
+
+  /**
+   * Runs an operation in the background.
+   *
+   * @return a future for the operation's result, which interrupts the operation if cancelled.
+   */
+  public <T> CompletableFuture<T> submit(Callable<T> operation) {
+    Task<T> task = new Task<T>(operation, inFlight);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.completeExceptionally(e);
+    }
+    return task;
+  }
+
+  /**
+   * Executes a request in the background.
+   */
+  public <T> CompletableFuture<T> execute(final StorageRequest<T> request) {
+    return submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        return request.execute();
+      }
+    });
+  }
+
+  /**
+   * See {@link StorageSample#listBucket(String)}.
+   */
+  public CompletableFuture<List<StorageObject>> listBucket(final String bucketName) {
+    return submit(new Callable<List<StorageObject>>() {
+      @Override
+      public List<StorageObject> call() throws Exception {
+        return StorageSample.listBucket(bucketName);
+      }
+    });
+  }
+
+  /**
+   * See {@link StorageSample#getBucket(String)}.
+   */
+  public CompletableFuture<Bucket> getBucket(final String bucketName) {
+    return submit(new Callable<Bucket>() {
+      @Override
+      public Bucket call() throws Exception {
+        return StorageSample.getBucket(bucketName);
+      }
+    });
+  }
+
+  /**
+   * See {@link StorageSample#uploadFile(String, String, File, String)}.
+   */
+  public CompletableFuture<Void> uploadFile(final String name, final String contentType,
+      final File file, final String bucketName) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        StorageSample.uploadFile(name, contentType, file, bucketName);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * See {@link StorageSample#deleteObject(String, String)}.
+   */
+  public CompletableFuture<Void> deleteObject(final String path, final String bucketName) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        StorageSample.deleteObject(path, bucketName);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * See {@link CustomerSuppliedEncryptionKeysSamples#downloadObject}. The future completes once
+   * the download has started; the caller reads (and closes) the stream. Errors fail the future
+   * rather than exiting.
+   */
+  public CompletableFuture<InputStream> downloadObject(final String bucketName,
+      final String objectName, final String base64CseKey, final String base64CseKeyHash) {
+    return submit(new Callable<InputStream>() {
+      @Override
+      public InputStream call() throws Exception {
+        return CustomerSuppliedEncryptionKeysSamples.openObject(
+            storage, bucketName, objectName, base64CseKey, base64CseKeyHash);
+      }
+    });
+  }
+
+  /**
+   * See {@link CustomerSuppliedEncryptionKeysSamples#uploadObject}. The caller closes the stream
+   * once the future completes. Errors fail the future rather than exiting.
+   */
+  public CompletableFuture<StorageObject> uploadObject(final String bucketName,
+      final String objectName, final InputStream data, final String base64CseKey,
+      final String base64CseKeyHash) {
+    return submit(new Callable<StorageObject>() {
+      @Override
+      public StorageObject call() throws Exception {
+        return CustomerSuppliedEncryptionKeysSamples.insertObject(
+            storage, bucketName, objectName, data, base64CseKey, base64CseKeyHash);
+      }
+    });
+  }
+
+  /**
+   * Returns the number of operations running now.
+   */
+  public int getInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  /**
+   * Stops accepting operations, if this instance created its executor. Operations already
+   * submitted still run.
+   */
+  @Override
+  public void close() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  /**
+   * A future that runs its operation when executed, and interrupts it when cancelled.
+   */
+  private static class Task<T> extends CompletableFuture<T> implements Runnable {
+    private final Callable<T> operation;
+    private final Semaphore inFlight;
+    // The thread running the operation, guarded by this, so that a cancellation can't interrupt
+    // a pool thread that has moved on to another task.
+    private Thread runner;
+
+    Task(Callable<T> operation, Semaphore inFlight) {
+      this.operation = operation;
+      this.inFlight = inFlight;
+    }
+
+    @Override
+    public void run() {
+      if (isDone()) {
+        // Cancelled while queued.
+        return;
+      }
+      try {
+        inFlight.acquire();
+      } catch (InterruptedException e) {
+        completeExceptionally(e);
+        return;
+      }
+      try {
+        synchronized (this) {
+          if (isDone()) {
+            return;
+          }
+          runner = Thread.currentThread();
+        }
+        complete(operation.call());
+      } catch (Throwable e) {
+        completeExceptionally(e);
+      } finally {
+        synchronized (this) {
+          runner = null;
+          // Clear an interrupt that arrived as the operation finished, so that it doesn't leak
+          // into the thread's next task.
+          Thread.interrupted();
+        }
+        inFlight.release();
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = super.cancel(mayInterruptIfRunning);
+      if (cancelled && mayInterruptIfRunning) {
+        synchronized (this) {
+          if (runner != null) {
+            runner.interrupt();
+          }
+        }
+      }
+      return cancelled;
+    }
+  }
+
+  private static boolean hasVirtualThreads() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns {@code Executors.newVirtualThreadPerTaskExecutor()}, or null before Java 21.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    if (!VIRTUAL_THREADS_AVAILABLE) {
+      return null;
+    }
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static ExecutorService newPlatformThreadExecutor(int threads) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "async-storage");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    // Idle threads exit, so a burst of requests doesn't leave hundreds of threads behind.
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+}
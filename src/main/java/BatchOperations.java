@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.StorageRequest;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk delete, metadata patch and ACL update operations sent through the JSON batch endpoint.
+ *
+ * <p>Operations are grouped into batches of up to 100 (the endpoint's limit), and several
+ * batches are sent at once. Every operation gets its own {@link Result}. Operations that fail
+ * with a retryable status (429 or 5xx) are retried in later rounds with backoff; other failures
+ * are reported as-is.</p>
+ */
+public class BatchOperations {
+
+  /** The maximum number of requests the batch endpoint accepts in one call. */
+  static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * The outcome of one operation in a bulk call.
+   */
+  public static class Result {
+    private final String objectName;
+    private final int statusCode;
+    private final String errorMessage;
+
+    Result(String objectName, int statusCode, String errorMessage) {
+      this.objectName = objectName;
+      this.statusCode = statusCode;
+      this.errorMessage = errorMessage;
+    }
+
+    public String getObjectName() {
+      return objectName;
+    }
+
+    public boolean isSuccess() {
+      return errorMessage == null;
+    }
+
+    /**
+     * Returns the HTTP status of the final attempt, or 0 if the batch itself could not be sent.
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getErrorMessage() {
+      return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+      return objectName + (isSuccess() ? ": ok" : ": " + statusCode + " " + errorMessage);
+    }
+  }
+
+  /**
+   * Creates the request for one object of a bulk operation.
+   */
+  interface Operation {
+    StorageRequest<?> newRequest(String objectName) throws IOException;
+  }
+
+  /**
+   * Builds a {@link BatchOperations}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private int batchSize = MAX_BATCH_SIZE;
+    private int concurrentBatches = 4;
+    private int maxAttempts = 5;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * Sets the number of operations per batch, at most 100.
+     */
+    public Builder batchSize(int batchSize) {
+      this.batchSize = Math.min(batchSize, MAX_BATCH_SIZE);
+      return this;
+    }
+
+    /**
+     * Sets how many batches are in flight at the same time.
+     */
+    public Builder concurrentBatches(int concurrentBatches) {
+      this.concurrentBatches = concurrentBatches;
+      return this;
+    }
+
+    /**
+     * Sets how many times an operation is attempted before its failure is reported. This
+     * replaces the retries of the client's traffic policy, which batches don't use.
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    public BatchOperations build() {
+      return new BatchOperations(this);
+    }
+  }
+
+  private final Storage storage;
+  private final int batchSize;
+  private final int concurrentBatches;
+  private final int maxAttempts;
+
+  private BatchOperations(Builder builder) {
+    this.storage = builder.storage;
+    this.batchSize = builder.batchSize;
+    this.concurrentBatches = builder.concurrentBatches;
+    this.maxAttempts = builder.maxAttempts;
+  }
+
+  /**
+   * Deletes the given objects.
+   */
+  public List<Result> deleteObjects(final String bucketName, Iterable<String> objectNames)
+      throws IOException {
+    return run(objectNames, new Operation() {
+      @Override
+      public StorageRequest<?> newRequest(String objectName) throws IOException {
+        return storage.objects().delete(bucketName, objectName);
+      }
+    });
+  }
+
+  /**
+   * Patches the metadata of the given objects.
+   *
+   * @param patches the fields to change, by object name.
+   */
+  public List<Result> patchMetadata(
+      final String bucketName, final Map<String, StorageObject> patches) throws IOException {
+    return run(patches.keySet(), new Operation() {
+      @Override
+      public StorageRequest<?> newRequest(String objectName) throws IOException {
+        // Ask for nothing back; callers only need the status.
+        return storage.objects().patch(bucketName, objectName, patches.get(objectName))
+            .setFields("name");
+      }
+    });
+  }
+
+  /**
+   * Adds (or replaces) the given entity's ACL entry on each object.
+   */
+  public List<Result> updateAcl(
+      final String bucketName, Iterable<String> objectNames, final ObjectAccessControl entry)
+      throws IOException {
+    return run(objectNames, new Operation() {
+      @Override
+      public StorageRequest<?> newRequest(String objectName) throws IOException {
+        return storage.objectAccessControls().insert(bucketName, objectName, entry)
+            .setFields("entity");
+      }
+    });
+  }
+
+  private List<Result> run(Iterable<String> objectNames, Operation operation) throws IOException {
+    List<String> pending = new ArrayList<String>();
+    for (String name : objectNames) {
+      pending.add(name);
+    }
+    List<Result> results = new ArrayList<Result>(pending.size());
+    ExecutorService executor = Executors.newFixedThreadPool(concurrentBatches);
+    try {
+      for (int attempt = 1; !pending.isEmpty(); attempt++) {
+        if (attempt > 1) {
+          sleepBeforeRetry(attempt);
+        }
+        List<Future<List<Result>>> batches = new ArrayList<Future<List<Result>>>();
+        for (int i = 0; i < pending.size(); i += batchSize) {
+          batches.add(executor.submit(
+              sendBatch(pending.subList(i, Math.min(i + batchSize, pending.size())), operation)));
+        }
+        List<String> retry = new ArrayList<String>();
+        for (Future<List<Result>> batch : batches) {
+          for (Result result : await(batch)) {
+            if (!result.isSuccess() && isRetryable(result.statusCode) && attempt < maxAttempts) {
+              retry.add(result.objectName);
+            } else {
+              results.add(result);
+            }
+          }
+        }
+        pending = retry;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return results;
+  }
+
+  private Callable<List<Result>> sendBatch(
+      final List<String> objectNames, final Operation operation) {
+    return new Callable<List<Result>>() {
+      @Override
+      public List<Result> call() throws IOException {
+        // One slot per operation, in order; a slot stays empty until its part's callback runs.
+        final Result[] results = new Result[objectNames.size()];
+        // batch() leaves the batch request itself uninitialized; with the client's initializer it
+        // gets the same timeouts, metrics and traffic policy as the requests it carries.
+        final HttpRequestInitializer initializer = storage.getRequestFactory().getInitializer();
+        BatchRequest batch = storage.batch(new HttpRequestInitializer() {
+          @Override
+          public void initialize(HttpRequest request) throws IOException {
+            if (initializer != null) {
+              initializer.initialize(request);
+            }
+            // Failed parts are retried in this class's later rounds. Without retries the client
+            // library resends neither the batch nor its parts, so the two don't multiply.
+            request.setNumberOfRetries(0);
+          }
+        });
+        batch.setBatchUrl(new GenericUrl(storage.getRootUrl() + "batch/storage/v1"));
+        for (int i = 0; i < objectNames.size(); i++) {
+          final int index = i;
+          final String objectName = objectNames.get(i);
+          queue(operation.newRequest(objectName), batch, new JsonBatchCallback<Object>() {
+            @Override
+            public void onSuccess(Object response, HttpHeaders responseHeaders) {
+              results[index] = new Result(objectName, 200, null);
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+              results[index] = new Result(objectName, error.getCode(), error.getMessage());
+            }
+          });
+        }
+        String failure = "No response in batch";
+        try {
+          batch.execute();
+        } catch (IOException e) {
+          failure = e.toString();
+        }
+        // The batch failed part-way, or could not be sent at all. Parts whose callback already ran
+        // keep their result; the others are reported as retryable.
+        for (int i = 0; i < results.length; i++) {
+          if (results[i] == null) {
+            results[i] = new Result(objectNames.get(i), 503, failure);
+          }
+        }
+        return Arrays.asList(results);
+      }
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> void queue(StorageRequest<T> request, BatchRequest batch,
+      JsonBatchCallback<?> callback) throws IOException {
+    // Callers only look at the status, so the response type doesn't matter.
+    request.queue(batch, (JsonBatchCallback<T>) callback);
+  }
+
+  private static boolean isRetryable(int statusCode) {
+    return statusCode == 429 || statusCode >= 500;
+  }
+
+  private static void sleepBeforeRetry(int attempt) throws IOException {
+    try {
+      Thread.sleep(Math.min(32000L, 500L << Math.min(attempt - 2, 6)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while retrying batch", e);
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for batch", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+}
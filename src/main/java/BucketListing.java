@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A lazy view over the objects in a bucket.
+ *
+ * <p>Pages are fetched on demand rather than collected into a single list, so memory stays
+ * bounded by one or two pages regardless of the size of the bucket. While the caller works
+ * through page N, page N+1 is already being fetched in the background.</p>
+ *
+ * <p>Each call to {@link #iterator()} starts a fresh listing from the first page.</p>
+ */
+public class BucketListing implements Iterable<StorageObject> {
+
+  /**
+   * The object fields needed by the conversion job. Asking for only these keeps the response
+   * payload (and the JSON parsing cost) small.
+   */
+  public static final String CONVERSION_FIELDS = "name,size,contentType,generation,md5Hash,crc32c";
+
+  private static final ExecutorService PREFETCH_EXECUTOR =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "bucket-listing-prefetch");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final Storage client;
+  private final String bucketName;
+  private final String prefix;
+  private final String objectFields;
+  private final Long pageSize;
+
+  /**
+   * @param client a Storage object, ready for use.
+   * @param bucketName the name of the bucket to list.
+   * @param prefix only list objects whose names begin with this prefix, or null for all objects.
+   * @param objectFields a comma-separated list of object fields to return (e.g.
+   *     {@link #CONVERSION_FIELDS}), or null for the full object metadata.
+   * @param pageSize the maximum number of objects per page, or null for the service default.
+   */
+  public BucketListing(
+      Storage client, String bucketName, String prefix, String objectFields, Long pageSize) {
+    this.client = client;
+    this.bucketName = bucketName;
+    this.prefix = prefix;
+    this.objectFields = objectFields;
+    this.pageSize = pageSize;
+  }
+
+  public String getBucketName() {
+    return bucketName;
+  }
+
+  public String getPrefix() {
+    return prefix;
+  }
+
+  @Override
+  public Iterator<StorageObject> iterator() {
+    return new PrefetchingIterator();
+  }
+
+  @Override
+  public Spliterator<StorageObject> spliterator() {
+    return Spliterators.spliteratorUnknownSize(
+        iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+  }
+
+  /**
+   * Returns a sequential stream over the listing.
+   */
+  public Stream<StorageObject> stream() {
+    return StreamSupport.stream(spliterator(), false);
+  }
+
+  private Storage.Objects.List newPageRequest(String pageToken) throws IOException {
+    Storage.Objects.List listRequest = client.objects().list(bucketName);
+    if (prefix != null) {
+      listRequest.setPrefix(prefix);
+    }
+    if (objectFields != null) {
+      listRequest.setFields("nextPageToken,items(" + objectFields + ")");
+    }
+    if (pageSize != null) {
+      listRequest.setMaxResults(pageSize);
+    }
+    listRequest.setPageToken(pageToken);
+    return listRequest;
+  }
+
+  private Future<Objects> fetchPage(final String pageToken) {
+    return PREFETCH_EXECUTOR.submit(new Callable<Objects>() {
+      @Override
+      public Objects call() throws IOException {
+        return newPageRequest(pageToken).execute();
+      }
+    });
+  }
+
+  /**
+   * Walks the pages of the listing, always keeping one page request in flight ahead of the
+   * consumer.
+   */
+  private class PrefetchingIterator implements Iterator<StorageObject> {
+    private Iterator<StorageObject> currentPage = Collections.<StorageObject>emptyIterator();
+    private Future<Objects> nextPage = fetchPage(null);
+
+    @Override
+    public boolean hasNext() {
+      // Pages may legitimately be empty, so keep advancing until we find an item or run out.
+      while (!currentPage.hasNext()) {
+        if (nextPage == null) {
+          return false;
+        }
+        Objects objects = awaitPage(nextPage);
+        String nextPageToken = objects.getNextPageToken();
+        // Start fetching the following page before handing this one to the caller.
+        nextPage = nextPageToken == null ? null : fetchPage(nextPageToken);
+        List<StorageObject> items = objects.getItems();
+        currentPage = items == null
+            ? Collections.<StorageObject>emptyIterator() : items.iterator();
+      }
+      return true;
+    }
+
+    @Override
+    public StorageObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return currentPage.next();
+    }
+
+    private Objects awaitPage(Future<Objects> page) {
+      try {
+        return page.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while listing gs://" + bucketName, e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw new UncheckedIOException((IOException) cause);
+        }
+        throw new IllegalStateException("Failed to list gs://" + bucketName, cause);
+      }
+    }
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+
+/**
+ * Copies every object under a prefix of one bucket to a prefix of another with server-side
+ * rewrites, optionally changing the storage class or the encryption key on the way.
+ *
+ * <p>No object data passes through this process: GCS copies the bytes itself, continuing large
+ * or cross-location copies over several rewrite calls. Many objects are rewritten at a time. The
+ * source and destination listings are walked side by side in name order, and objects whose
+ * destination copy already has the same contents (and the requested storage class and key) are
+ * skipped, so re-running a finished or partly finished migration only copies what is missing.
+ * As in {@link KeyRotation}, rewrite tokens can be saved to a state file so an interrupted
+ * migration continues each large object where it left off. Failures are reported per object and
+ * never stop the rest of the job.</p>
+ */
+public class BucketMigration {
+
+  private static final String LISTING_FIELDS = "name,size,generation,md5Hash,crc32c,storageClass,"
+      + "kmsKeyName,customerEncryption,contentType,contentEncoding,contentDisposition,"
+      + "contentLanguage,cacheControl,metadata";
+
+  /**
+   * Progress and outcome of a migration.
+   */
+  public static class MigrationStats extends RewriteStats {
+    MigrationStats() {
+      super("migrated");
+    }
+
+    public long getMigrated() {
+      return completed.get();
+    }
+  }
+
+  /**
+   * Builds a {@link BucketMigration}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private final String sourceBucket;
+    private final String destinationBucket;
+    private String sourcePrefix = "";
+    private String destinationPrefix = "";
+    private String storageClass;
+    private String sourceBase64Key;
+    private String sourceBase64KeyHash;
+    private String destinationBase64Key;
+    private String destinationBase64KeyHash;
+    private String kmsKeyName;
+    private boolean skipExisting = true;
+    private int concurrency = 32;
+    private Long maxBytesRewrittenPerCall;
+    private int maxAttempts = 5;
+    private Path stateFile;
+    private long reportIntervalSeconds = 10;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     * @param sourceBucket the bucket to copy objects from.
+     * @param destinationBucket the bucket to copy objects to; may be the source bucket.
+     */
+    public Builder(Storage storage, String sourceBucket, String destinationBucket) {
+      this.storage = storage;
+      this.sourceBucket = sourceBucket;
+      this.destinationBucket = destinationBucket;
+    }
+
+    /**
+     * Only migrates objects whose names begin with this prefix. Defaults to all objects.
+     */
+    public Builder sourcePrefix(String sourcePrefix) {
+      this.sourcePrefix = sourcePrefix != null ? sourcePrefix : "";
+      return this;
+    }
+
+    /**
+     * Sets the prefix that replaces the source prefix in the destination object names. Defaults
+     * to none, which keeps the names below the source prefix.
+     */
+    public Builder destinationPrefix(String destinationPrefix) {
+      this.destinationPrefix = destinationPrefix != null ? destinationPrefix : "";
+      return this;
+    }
+
+    /**
+     * Sets the storage class of the copies, e.g. "NEARLINE". Defaults to null, which uses the
+     * destination bucket's default class.
+     */
+    public Builder storageClass(String storageClass) {
+      this.storageClass = storageClass;
+      return this;
+    }
+
+    /**
+     * Sets the customer-supplied key the source objects are encrypted with.
+     */
+    public Builder sourceKey(String base64Key, String base64KeyHash) {
+      this.sourceBase64Key = base64Key;
+      this.sourceBase64KeyHash = base64KeyHash;
+      return this;
+    }
+
+    /**
+     * Sets the customer-supplied key to encrypt the copies with.
+     */
+    public Builder destinationKey(String base64Key, String base64KeyHash) {
+      this.destinationBase64Key = base64Key;
+      this.destinationBase64KeyHash = base64KeyHash;
+      return this;
+    }
+
+    /**
+     * Sets the Cloud KMS key to encrypt the copies with, as
+     * "projects/.../locations/.../keyRings/.../cryptoKeys/...".
+     */
+    public Builder kmsKeyName(String kmsKeyName) {
+      this.kmsKeyName = kmsKeyName;
+      return this;
+    }
+
+    /**
+     * Sets whether objects whose destination copy already matches are skipped. Defaults to true.
+     */
+    public Builder skipExisting(boolean skipExisting) {
+      this.skipExisting = skipExisting;
+      return this;
+    }
+
+    /**
+     * Sets how many objects are rewritten at the same time.
+     */
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Sets how many bytes the service copies per rewrite call, a multiple of 1 MiB. Smaller
+     * values save progress more often; null leaves it to the service.
+     */
+    public Builder maxBytesRewrittenPerCall(Long maxBytesRewrittenPerCall) {
+      this.maxBytesRewrittenPerCall = maxBytesRewrittenPerCall;
+      return this;
+    }
+
+    /**
+     * Sets how many times a rewrite call is attempted before the object is reported as failed.
+     * This replaces the retries of the client's traffic policy, which rewrite calls don't use.
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the file in which the rewrite tokens of unfinished objects are kept, or null to keep
+     * them in memory only.
+     */
+    public Builder stateFile(Path stateFile) {
+      this.stateFile = stateFile;
+      return this;
+    }
+
+    /**
+     * Sets how often progress is printed while the job runs; zero disables progress reports.
+     */
+    public Builder reportIntervalSeconds(long reportIntervalSeconds) {
+      this.reportIntervalSeconds = reportIntervalSeconds;
+      return this;
+    }
+
+    public BucketMigration build() {
+      return new BucketMigration(this);
+    }
+  }
+
+  private final Builder config;
+  private final Storage storage;
+  private final RewriteJob job;
+
+  private BucketMigration(Builder builder) {
+    this.config = builder;
+    this.storage = builder.storage;
+    this.job = new RewriteJob("Bucket migration", builder.concurrency, builder.maxAttempts,
+        builder.stateFile, builder.reportIntervalSeconds);
+  }
+
+  /**
+   * Migrates every object under the source prefix and waits for the migration to finish.
+   */
+  public MigrationStats migrate() throws IOException, InterruptedException {
+    MigrationStats stats = new MigrationStats();
+    // Both listings come back in name order, so existing copies are found by walking them side
+    // by side rather than by holding either in memory or looking up every object.
+    final PeekingIterator<StorageObject> existing = config.skipExisting
+        ? Iterators.peekingIterator(listing(config.destinationBucket, config.destinationPrefix))
+        : Iterators.peekingIterator(Collections.<StorageObject>emptyIterator());
+    job.run(listing(config.sourceBucket, config.sourcePrefix), new RewriteJob.Planner() {
+      @Override
+      public Storage.Objects.Rewrite plan(StorageObject source) throws IOException {
+        String relativeName = source.getName().substring(config.sourcePrefix.length());
+        while (existing.hasNext() && relativeName(existing.peek()).compareTo(relativeName) < 0) {
+          existing.next();
+        }
+        // A name-order disagreement between Java and GCS only costs an unneeded copy.
+        if (existing.hasNext() && relativeName(existing.peek()).equals(relativeName)
+            && isMigrated(source, existing.next())) {
+          return null;
+        }
+        return migration(source, config.destinationPrefix + relativeName);
+      }
+    }, stats);
+    return stats;
+  }
+
+  private Iterator<StorageObject> listing(String bucketName, String prefix) {
+    return new ShardedBucketListing.Builder(storage, bucketName)
+        .prefix(prefix.isEmpty() ? null : prefix)
+        .objectFields(LISTING_FIELDS)
+        .ordered(true)
+        .build()
+        .iterator();
+  }
+
+  private String relativeName(StorageObject destination) {
+    return destination.getName().substring(config.destinationPrefix.length());
+  }
+
+  /**
+   * Returns true if the destination object already holds the source's contents, stored the way
+   * this migration would store them.
+   */
+  private boolean isMigrated(StorageObject source, StorageObject destination) {
+    // Objects encrypted with a customer-supplied key are listed without their hashes.
+    boolean sameContents = source.getCrc32c() != null
+        && source.getCrc32c().equals(destination.getCrc32c())
+        && source.getSize() != null && source.getSize().equals(destination.getSize());
+    if (!sameContents) {
+      return false;
+    }
+    if (config.storageClass != null
+        && !config.storageClass.equals(destination.getStorageClass())) {
+      return false;
+    }
+    if (config.kmsKeyName != null
+        && !String.valueOf(destination.get("kmsKeyName")).startsWith(config.kmsKeyName)) {
+      return false;
+    }
+    String destinationKeyHash = destination.getCustomerEncryption() != null
+        ? destination.getCustomerEncryption().getKeySha256() : null;
+    return config.destinationBase64KeyHash == null
+        ? destinationKeyHash == null : config.destinationBase64KeyHash.equals(destinationKeyHash);
+  }
+
+  private Storage.Objects.Rewrite migration(StorageObject source, String destinationName)
+      throws IOException {
+    Storage.Objects.Rewrite rewrite = storage.objects()
+        .rewrite(config.sourceBucket, source.getName(), config.destinationBucket,
+            destinationName, destinationMetadata(source))
+        // Copy exactly the listed generation, even if the source is overwritten meanwhile.
+        .setSourceGeneration(source.getGeneration())
+        .setMaxBytesRewrittenPerCall(config.maxBytesRewrittenPerCall)
+        .setFields("done,rewriteToken,totalBytesRewritten");
+    if (config.kmsKeyName != null) {
+      // Not modeled by this version of the client library; sent as a plain query parameter.
+      rewrite.set("destinationKmsKeyName", config.kmsKeyName);
+    }
+    rewrite.setRequestHeaders(encryptionHeaders());
+    return rewrite;
+  }
+
+  /**
+   * Returns the metadata for the copy, or null to copy the source's metadata unchanged. A
+   * rewrite that is given metadata doesn't copy the source's, so it is carried over here.
+   */
+  private StorageObject destinationMetadata(StorageObject source) {
+    if (config.storageClass == null) {
+      return null;
+    }
+    return new StorageObject()
+        .setStorageClass(config.storageClass)
+        .setContentType(source.getContentType())
+        .setContentEncoding(source.getContentEncoding())
+        .setContentDisposition(source.getContentDisposition())
+        .setContentLanguage(source.getContentLanguage())
+        .setCacheControl(source.getCacheControl())
+        .setMetadata(source.getMetadata());
+  }
+
+  private HttpHeaders encryptionHeaders() {
+    HttpHeaders headers = config.destinationBase64Key != null
+        ? CustomerSuppliedEncryptionKeysSamples.encryptionHeaders(
+            config.destinationBase64Key, config.destinationBase64KeyHash)
+        : new HttpHeaders();
+    if (config.sourceBase64Key != null) {
+      headers.set("x-goog-copy-source-encryption-algorithm", "AES256");
+      headers.set("x-goog-copy-source-encryption-key", config.sourceBase64Key);
+      headers.set("x-goog-copy-source-encryption-key-sha256", config.sourceBase64KeyHash);
+    }
+    return headers;
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.common.io.BaseEncoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C helpers for end-to-end integrity checks of uploads and downloads.
+ *
+ * <p>Checksums are computed as the data passes through the transfer (see
+ * {@link java.util.zip.CheckedInputStream}) rather than by reading it a second time. On Java 9
+ * and later, {@link #newCrc32c()} returns the JDK's {@code java.util.zip.CRC32C}, which the JIT
+ * compiles to the CPU's CRC32 instructions; on Java 8 it falls back to a table-driven
+ * implementation. The CRCs of consecutive ranges (parallel slices, composite components) are
+ * joined with {@link #combineCrc32c} instead of being recomputed over the whole object.</p>
+ */
+public class Checksums {
+
+  // The CRC32C (Castagnoli) polynomial, bit-reversed.
+  private static final int POLYNOMIAL = 0x82F63B78;
+  private static final int[][] TABLES = newTables();
+  private static final Constructor<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+  /**
+   * Returns a new CRC32C checksum, using the JDK's intrinsic implementation when there is one.
+   */
+  public static Checksum newCrc32c() {
+    if (JDK_CRC32C != null) {
+      try {
+        return JDK_CRC32C.newInstance();
+      } catch (ReflectiveOperationException e) {
+        // Fall through to the portable implementation.
+      }
+    }
+    return new Crc32c();
+  }
+
+  /**
+   * Returns the CRC32C of the given bytes.
+   */
+  public static long crc32c(byte[] data) {
+    Checksum checksum = newCrc32c();
+    checksum.update(data, 0, data.length);
+    return checksum.getValue();
+  }
+
+  /**
+   * Returns the CRC32C of a range of a file, reading it through a memory mapping.
+   */
+  public static long crc32c(FileChannel channel, long offset, long length) throws IOException {
+    Checksum checksum = newCrc32c();
+    byte[] buffer = new byte[StorageUtils.BUFFER_SIZE];
+    ByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    while (range.hasRemaining()) {
+      int n = Math.min(buffer.length, range.remaining());
+      range.get(buffer, 0, n);
+      checksum.update(buffer, 0, n);
+    }
+    return checksum.getValue();
+  }
+
+  /**
+   * Returns the CRC32C of two consecutive ranges joined together, given the CRC32C of each and
+   * the length of the second.
+   */
+  public static long combineCrc32c(long crc1, long crc2, long length2) {
+    // zlib's crc32_combine: apply length2 zero bytes to crc1 by repeated squaring of the
+    // "append one zero bit" operator, then add crc2.
+    if (length2 <= 0) {
+      return crc1;
+    }
+    int[] even = new int[32];
+    int[] odd = new int[32];
+    odd[0] = POLYNOMIAL;
+    int row = 1;
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+    square(even, odd);
+    square(odd, even);
+    int crc = (int) crc1;
+    long remaining = length2;
+    do {
+      square(even, odd);
+      if ((remaining & 1) != 0) {
+        crc = times(even, crc);
+      }
+      remaining >>= 1;
+      if (remaining == 0) {
+        break;
+      }
+      square(odd, even);
+      if ((remaining & 1) != 0) {
+        crc = times(odd, crc);
+      }
+      remaining >>= 1;
+    } while (remaining != 0);
+    return (crc ^ (int) crc2) & 0xffffffffL;
+  }
+
+  /**
+   * Encodes a CRC32C the way object metadata carries it: four big-endian bytes in base64.
+   */
+  public static String encodeCrc32c(long crc) {
+    byte[] bytes = {(byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc};
+    return BaseEncoding.base64().encode(bytes);
+  }
+
+  /**
+   * Decodes a CRC32C from object metadata.
+   */
+  public static long decodeCrc32c(String encoded) {
+    byte[] bytes = BaseEncoding.base64().decode(encoded);
+    return (bytes[0] & 0xffL) << 24 | (bytes[1] & 0xffL) << 16 | (bytes[2] & 0xffL) << 8
+        | (bytes[3] & 0xffL);
+  }
+
+  /**
+   * Throws if the computed CRC32C doesn't match the one GCS reported. A null expected value (e.g.
+   * from a response that didn't include it) is not checked.
+   *
+   * @param what what was transferred, for the error message.
+   */
+  public static void verifyCrc32c(String what, String expected, long actual) throws IOException {
+    if (expected != null && !expected.equals(encodeCrc32c(actual))) {
+      throw new IOException("CRC32C mismatch for " + what + ": expected " + expected
+          + ", transferred " + encodeCrc32c(actual));
+    }
+  }
+
+  /**
+   * Starts a media download and returns its content, checked against the CRC32C that GCS sends
+   * in the {@code x-goog-hash} header when the stream reaches its end. Ranged downloads and
+   * downloads that are decompressed on the fly can't be checked this way and are returned as-is.
+   */
+  public static InputStream openVerified(Storage.Objects.Get getObject) throws IOException {
+    HttpResponse response = getObject.executeMedia();
+    InputStream content = response.getContent();
+    String expected = response.getStatusCode() == 200 && response.getContentEncoding() == null
+        ? headerCrc32c(response.getHeaders().get("x-goog-hash")) : null;
+    if (expected == null) {
+      return content;
+    }
+    return new VerifyingInputStream(content, expected, getObject.getObject());
+  }
+
+  private static String headerCrc32c(Object header) {
+    if (header == null) {
+      return null;
+    }
+    // The header may repeat, or carry several comma-separated hashes: "crc32c=...,md5=...".
+    for (String value : header.toString().replaceAll("[\\[\\]]", "").split(",")) {
+      value = value.trim();
+      if (value.startsWith("crc32c=")) {
+        return value.substring("crc32c=".length());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Checks the stream's CRC32C when it is read to the end.
+   */
+  private static class VerifyingInputStream extends CheckedInputStream {
+    private final String expected;
+    private final String objectName;
+    private boolean verified;
+
+    VerifyingInputStream(InputStream in, String expected, String objectName) {
+      super(in, newCrc32c());
+      this.expected = expected;
+      this.objectName = objectName;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return atEnd(super.read());
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return atEnd(super.read(b, off, len));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes must still be checksummed, so read them.
+      byte[] buffer = new byte[(int) Math.min(n, StorageUtils.BUFFER_SIZE)];
+      long skipped = 0;
+      while (skipped < n) {
+        int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+        if (read < 0) {
+          break;
+        }
+        skipped += read;
+      }
+      return skipped;
+    }
+
+    private int atEnd(int result) throws IOException {
+      if (result < 0 && !verified) {
+        verified = true;
+        verifyCrc32c(objectName, expected, getChecksum().getValue());
+      }
+      return result;
+    }
+  }
+
+  private static void square(int[] square, int[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = times(matrix, matrix[n]);
+    }
+  }
+
+  private static int times(int[] matrix, int vector) {
+    int sum = 0;
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+    return sum;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Constructor<? extends Checksum> findJdkCrc32c() {
+    try {
+      return (Constructor<? extends Checksum>) Class.forName("java.util.zip.CRC32C")
+          .getConstructor();
+    } catch (ReflectiveOperationException e) {
+      // Java 8.
+      return null;
+    }
+  }
+
+  private static int[][] newTables() {
+    int[][] tables = new int[8][256];
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+      }
+      tables[0][i] = crc;
+    }
+    for (int i = 0; i < 256; i++) {
+      for (int t = 1; t < 8; t++) {
+        tables[t][i] = (tables[t - 1][i] >>> 8) ^ tables[0][tables[t - 1][i] & 0xff];
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * A slicing-by-8 CRC32C, for JDKs without {@code java.util.zip.CRC32C}.
+   */
+  static class Crc32c implements Checksum {
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+      crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+      int c = crc;
+      int end = off + len;
+      // Eight bytes per step through eight tables, instead of one byte per table lookup.
+      for (; off + 8 <= end; off += 8) {
+        int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+            | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+        c = TABLES[7][lo & 0xff] ^ TABLES[6][(lo >>> 8) & 0xff]
+            ^ TABLES[5][(lo >>> 16) & 0xff] ^ TABLES[4][lo >>> 24]
+            ^ TABLES[3][b[off + 4] & 0xff] ^ TABLES[2][b[off + 5] & 0xff]
+            ^ TABLES[1][b[off + 6] & 0xff] ^ TABLES[0][b[off + 7] & 0xff];
+      }
+      for (; off < end; off++) {
+        c = (c >>> 8) ^ TABLES[0][(c ^ b[off]) & 0xff];
+      }
+      crc = c;
+    }
+
+    @Override
+    public long getValue() {
+      return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+      crc = 0xffffffff;
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A local record of which source objects have already been converted, so that later runs only
+ * convert new or changed objects.
+ *
+ * <p>The manifest is an append-only log with one line per converted source:
+ * {@code name generation md5Hash spec renditions}, tab separated and URL-encoded. The last line
+ * for a name wins. Each line is flushed as soon as its object finishes, so a run that crashes
+ * part-way resumes where it stopped; a torn last line is simply ignored. When the log has
+ * accumulated many superseded lines, opening it rewrites it in compact form.</p>
+ */
+public class ConversionManifest implements Closeable {
+
+  /**
+   * What was recorded for one source object.
+   */
+  public static class Entry {
+    private final Long generation;
+    private final String md5Hash;
+    private final String spec;
+    private final List<String> renditions;
+
+    Entry(Long generation, String md5Hash, String spec, List<String> renditions) {
+      this.generation = generation;
+      this.md5Hash = md5Hash;
+      this.spec = spec;
+      this.renditions = renditions;
+    }
+
+    public Long getGeneration() {
+      return generation;
+    }
+
+    public String getMd5Hash() {
+      return md5Hash;
+    }
+
+    /**
+     * Returns the names of the rendition objects built from this source.
+     */
+    public List<String> getRenditions() {
+      return renditions;
+    }
+  }
+
+  private final Path path;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final BufferedWriter log;
+
+  private ConversionManifest(Path path) throws IOException {
+    this.path = path;
+    long lines = 0;
+    if (Files.exists(path)) {
+      try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          lines++;
+          parse(line);
+        }
+      }
+    }
+    // Compact once superseded lines make up more than half the log.
+    if (lines > 2 * entries.size() + 1000) {
+      compact();
+    }
+    this.log = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    if (endsWithTornLine(path)) {
+      // Terminate the torn line so the next record starts on a line of its own.
+      log.newLine();
+      log.flush();
+    }
+  }
+
+  private static boolean endsWithTornLine(Path path) throws IOException {
+    try (SeekableByteChannel channel = Files.newByteChannel(path)) {
+      if (channel.size() == 0) {
+        return false;
+      }
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.position(channel.size() - 1).read(last);
+      return last.get(0) != '\n';
+    }
+  }
+
+  /**
+   * Opens the manifest at the given path, creating it if it doesn't exist yet.
+   */
+  public static ConversionManifest open(Path path) throws IOException {
+    return new ConversionManifest(path);
+  }
+
+  /**
+   * Returns the number of source objects recorded in the manifest.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  public Entry get(String objectName) {
+    return entries.get(objectName);
+  }
+
+  /**
+   * Returns true if the object was already converted with the given spec, and has not changed
+   * since. Only the listing metadata (generation and MD5 hash) is consulted.
+   */
+  public boolean isUpToDate(StorageObject object, RenditionSpec spec) {
+    Entry entry = entries.get(object.getName());
+    return entry != null
+        && object.getGeneration() != null
+        && entry.generation.equals(object.getGeneration())
+        && entry.md5Hash.equals(String.valueOf(object.getMd5Hash()))
+        && entry.spec.equals(spec.toString());
+  }
+
+  /**
+   * Records that the object has been converted, and persists the record before returning.
+   *
+   * @param object the source object, as listed.
+   * @param spec the spec the renditions were built with.
+   * @param renditions the names of the rendition objects that were written.
+   */
+  public void record(StorageObject object, RenditionSpec spec, List<String> renditions)
+      throws IOException {
+    Entry entry = new Entry(
+        object.getGeneration(), String.valueOf(object.getMd5Hash()), spec.toString(), renditions);
+    String line = format(object.getName(), entry);
+    synchronized (log) {
+      log.write(line);
+      log.newLine();
+      log.flush();
+    }
+    entries.put(object.getName(), entry);
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (log) {
+      log.close();
+    }
+  }
+
+  private void compact() throws IOException {
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        writer.write(format(e.getKey(), e.getValue()));
+        writer.newLine();
+      }
+    }
+    Files.move(temp, path,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void parse(String line) {
+    String[] fields = line.split("\t", -1);
+    if (fields.length != 5) {
+      return;
+    }
+    try {
+      List<String> renditions = Arrays.asList(
+          fields[4].isEmpty() ? new String[0] : fields[4].split(" "));
+      for (int i = 0; i < renditions.size(); i++) {
+        renditions.set(i, decode(renditions.get(i)));
+      }
+      entries.put(decode(fields[0]), new Entry(
+          Long.valueOf(fields[1]), decode(fields[2]), decode(fields[3]), renditions));
+    } catch (IllegalArgumentException e) {
+      // A line torn by a crash mid-write; the object will just be converted again.
+    }
+  }
+
+  private static String format(String name, Entry entry) {
+    StringBuilder renditions = new StringBuilder();
+    for (String rendition : entry.renditions) {
+      if (renditions.length() > 0) {
+        renditions.append(' ');
+      }
+      renditions.append(encode(rendition));
+    }
+    return encode(name) + '\t' + entry.generation + '\t' + encode(entry.md5Hash) + '\t'
+        + encode(entry.spec) + '\t' + renditions;
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,751 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.NonRetriableException;
+import com.google.appengine.tools.cloudstorage.RetriesExhaustedException;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts every matching image under a bucket prefix, running download, decode, transform,
+ * encode and upload as separate pipeline stages.
+ *
+ * <p>Each stage has its own worker pool and bounded queue (see {@link PipelineStage}), so the
+ * network-bound stages can be sized for I/O while the CPU-bound stages are sized for the
+ * available cores. Failures are reported per object and never stop the rest of the job.</p>
+ *
+ * <p>Sources with identical contents (by the MD5 or CRC32C hash in the listing) are converted
+ * once. The renditions of every other copy are made with server-side copies of the first one's
+ * renditions, without downloading, decoding or uploading anything.</p>
+ */
+public class ConversionPipeline {
+
+  // The most content hashes remembered for deduplication; older ones are converted again.
+  private static final int MAX_REMEMBERED_CONTENTS = 100000;
+
+  /**
+   * The state of one source object as it moves through the stages. Each stage drops the
+   * references it no longer needs so that intermediate buffers can be collected early.
+   */
+  static class ConversionTask<T> {
+    final StorageObject source;
+    byte[] sourceBytes;
+    T image;
+    // The width and height from the source's header, or null if the backend can't read them.
+    int[] sourceSize;
+    List<T> renditions;
+    List<byte[]> outputs;
+    // The share of the decode budget this task holds while its decoded image is alive.
+    int budgetShare;
+    // The content hash, if this task is the first source with its contents.
+    String contentKey;
+    // The source whose renditions this task copies, if it is a duplicate.
+    String copyOf;
+
+    ConversionTask(StorageObject source) {
+      this.source = source;
+    }
+  }
+
+  /**
+   * Counters describing the progress of a conversion run.
+   */
+  public static class ConversionStats {
+    private final long startNanos = System.nanoTime();
+    final AtomicLong listed = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong upToDate = new AtomicLong();
+    final AtomicLong converted = new AtomicLong();
+    final AtomicLong renditionsUploaded = new AtomicLong();
+    final AtomicLong renditionsCopied = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong bytesDownloaded = new AtomicLong();
+    final AtomicLong bytesUploaded = new AtomicLong();
+
+    public long getConverted() {
+      return converted.get();
+    }
+
+    public long getFailed() {
+      return failed.get();
+    }
+
+    public double getObjectsPerSecond() {
+      double seconds = (System.nanoTime() - startNanos) / 1e9;
+      return seconds > 0 ? converted.get() / seconds : 0;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "listed=%d skipped=%d upToDate=%d converted=%d renditions=%d copied=%d failed=%d"
+              + " in=%dB out=%dB (%.1f objects/sec)",
+          listed.get(), skipped.get(), upToDate.get(), converted.get(), renditionsUploaded.get(),
+          renditionsCopied.get(), failed.get(), bytesDownloaded.get(), bytesUploaded.get(),
+          getObjectsPerSecond());
+    }
+  }
+
+  /**
+   * Builds a {@link ConversionPipeline}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private final GcsService gcsService;
+    private ImageTransformer<?> transformer;
+    private String destinationBucket;
+    private Set<String> contentTypes = Collections.emptySet();
+    private RenditionSpec renditions =
+        RenditionSpec.parse("100x50:jpeg:85:resizedImage_125X75{name}.jpeg");
+    private ConversionManifest manifest;
+    private int ioThreads = 4 * Runtime.getRuntime().availableProcessors();
+    private int cpuThreads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 64;
+    private long reportIntervalSeconds = 10;
+    private long decodeBudgetBytes = Runtime.getRuntime().maxMemory() / 2;
+    private TrafficPolicy trafficPolicy = TrafficPolicy.getDefault();
+    private DiskObjectCache sourceCache;
+    private boolean deduplicate = true;
+    private boolean verifyUploads = true;
+
+    /**
+     * @param storage the Storage client used to download the source objects.
+     * @param gcsService the GcsService used to write the converted images.
+     */
+    public Builder(Storage storage, GcsService gcsService) {
+      this.storage = storage;
+      this.gcsService = gcsService;
+    }
+
+    /**
+     * Sets the backend used to decode, resize and encode images. Defaults to the App Engine
+     * ImagesService; use {@link Java2DImageTransformer} to convert without leaving the process.
+     */
+    public Builder transformer(ImageTransformer<?> transformer) {
+      this.transformer = transformer;
+      return this;
+    }
+
+    /**
+     * Sets the bucket to write converted images to. Defaults to the source bucket.
+     */
+    public Builder destinationBucket(String destinationBucket) {
+      this.destinationBucket = destinationBucket;
+      return this;
+    }
+
+    /**
+     * Only converts objects with one of these content types. By default every {@code image/*}
+     * object is converted.
+     */
+    public Builder contentTypes(String... contentTypes) {
+      this.contentTypes = new HashSet<String>(Arrays.asList(contentTypes));
+      return this;
+    }
+
+    /**
+     * Sets the renditions built from each source image. Every source is downloaded and decoded
+     * once no matter how many renditions it has.
+     */
+    public Builder renditions(RenditionSpec renditions) {
+      this.renditions = renditions;
+      return this;
+    }
+
+    /**
+     * Records converted objects in the given manifest, and skips objects the manifest shows are
+     * already converted with the same renditions and unchanged since.
+     */
+    public Builder manifest(ConversionManifest manifest) {
+      this.manifest = manifest;
+      return this;
+    }
+
+    /**
+     * Sets the number of workers in each network-bound stage (download and upload).
+     */
+    public Builder ioThreads(int ioThreads) {
+      this.ioThreads = ioThreads;
+      return this;
+    }
+
+    /**
+     * Sets the number of workers in each CPU-bound stage (decode, transform and encode).
+     */
+    public Builder cpuThreads(int cpuThreads) {
+      this.cpuThreads = cpuThreads;
+      return this;
+    }
+
+    /**
+     * Sets how many objects may wait in front of each stage.
+     */
+    public Builder queueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * Sets how often progress is printed while the job runs; zero disables progress reports.
+     */
+    public Builder reportIntervalSeconds(long reportIntervalSeconds) {
+      this.reportIntervalSeconds = reportIntervalSeconds;
+      return this;
+    }
+
+    /**
+     * Sets the estimated heap that decoded images in flight may use together. Each image is
+     * admitted to the decode stage only once its estimated cost (from its header dimensions and
+     * encoded size) fits, so a burst of huge images runs a few at a time while small images run
+     * on every CPU worker. Defaults to half the maximum heap.
+     */
+    public Builder decodeBudgetBytes(long decodeBudgetBytes) {
+      this.decodeBudgetBytes = decodeBudgetBytes;
+      return this;
+    }
+
+    /**
+     * Sets the policy that paces the GcsService uploads, normally the same one the Storage
+     * client follows. Defaults to {@link TrafficPolicy#getDefault()}. Null leaves the pacing to
+     * the GcsService. It is not used with a {@link JsonApiGcsService}, whose requests already
+     * follow its client's policy.
+     */
+    public Builder trafficPolicy(TrafficPolicy trafficPolicy) {
+      this.trafficPolicy = trafficPolicy;
+      return this;
+    }
+
+    /**
+     * Sets a local disk cache for the source objects, so that converting the same sources again
+     * (e.g. with a new rendition spec) reads them from disk instead of the network. Defaults to
+     * null, which downloads every source.
+     */
+    public Builder sourceCache(DiskObjectCache sourceCache) {
+      this.sourceCache = sourceCache;
+      return this;
+    }
+
+    /**
+     * Sets whether sources with identical contents are converted once and their renditions
+     * copied server-side. Defaults to true.
+     */
+    public Builder deduplicate(boolean deduplicate) {
+      this.deduplicate = deduplicate;
+      return this;
+    }
+
+    /**
+     * Sets whether each uploaded rendition's stored MD5 is checked against the bytes that were
+     * written. Defaults to true. Downloads are always checked against the CRC32C GCS sends.
+     */
+    public Builder verifyUploads(boolean verifyUploads) {
+      this.verifyUploads = verifyUploads;
+      return this;
+    }
+
+    public ConversionPipeline build() {
+      return new ConversionPipeline(this);
+    }
+  }
+
+  private final Storage storage;
+  private final GcsService gcsService;
+  private final String destinationBucket;
+  private final Set<String> contentTypes;
+  private final RenditionSpec renditions;
+  private final ConversionManifest manifest;
+  private final ImageTransformer<?> transformer;
+  private final TrafficPolicy uploadPolicy;
+  private final Builder config;
+
+  private ConversionPipeline(Builder builder) {
+    this.storage = builder.storage;
+    this.gcsService = builder.gcsService;
+    this.destinationBucket = builder.destinationBucket;
+    this.contentTypes = builder.contentTypes;
+    this.renditions = builder.renditions;
+    this.manifest = builder.manifest;
+    this.transformer = builder.transformer != null
+        ? builder.transformer : new ImagesServiceTransformer();
+    // A JsonApiGcsService's requests already take a slot from its client's policy. Taking one
+    // here as well would deadlock once every slot is held by an upload waiting for a second.
+    this.uploadPolicy = gcsService instanceof JsonApiGcsService ? null : builder.trafficPolicy;
+    this.config = builder;
+  }
+
+  /**
+   * Converts every matching object in the listing and waits for the last one to finish.
+   *
+   * @param listing the objects to consider, e.g. from {@link BucketListing}.
+   * @return the final counters for the run.
+   */
+  public ConversionStats run(BucketListing listing) throws InterruptedException {
+    return run(listing, transformer);
+  }
+
+  private <T> ConversionStats run(
+      final BucketListing listing, final ImageTransformer<T> transformer)
+      throws InterruptedException {
+    final ConversionStats stats = new ConversionStats();
+    final String targetBucket =
+        destinationBucket != null ? destinationBucket : listing.getBucketName();
+    final InFlight inFlight = new InFlight();
+    final DecodeBudget budget = new DecodeBudget(config.decodeBudgetBytes);
+    // Renditions of one source are uploaded concurrently; the upload worker does the last one.
+    final ExecutorService uploadFanout = Executors.newCachedThreadPool();
+    final Duplicates<T> duplicates = config.deduplicate ? new Duplicates<T>() : null;
+
+    final List<PipelineStage<ConversionTask<T>>> stages =
+        new ArrayList<PipelineStage<ConversionTask<T>>>();
+    stages.add(new PipelineStage<ConversionTask<T>>(
+        "download", config.ioThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(ConversionTask<T> task) throws Exception {
+            final Storage.Objects.Get getObject = storage.objects()
+                .get(listing.getBucketName(), task.source.getName())
+                .setGeneration(task.source.getGeneration());
+            DiskObjectCache cache = config.sourceCache;
+            if (cache == null) {
+              try (InputStream in = Checksums.openVerified(getObject)) {
+                task.sourceBytes = ByteStreams.toByteArray(in);
+              }
+            } else {
+              // A generation's contents never change, so a cached copy is always current.
+              ByteBuffer cached = cache.get(listing.getBucketName(), task.source.getName(),
+                  task.source.getGeneration(), new DiskObjectCache.Loader() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                      // Verified before it is published, so a corrupt copy is never cached.
+                      try (InputStream in = Checksums.openVerified(getObject)) {
+                        StorageUtils.copy(in, out);
+                      }
+                    }
+                  });
+              task.sourceBytes = new byte[cached.remaining()];
+              cached.get(task.sourceBytes);
+            }
+            stats.bytesDownloaded.addAndGet(task.sourceBytes.length);
+          }
+        }));
+    stages.add(new PipelineStage<ConversionTask<T>>(
+        "decode", config.cpuThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(ConversionTask<T> task) throws Exception {
+            int maxWidth = renditions.getMaxWidth();
+            int maxHeight = renditions.getMaxHeight();
+            long cost = task.sourceBytes.length
+                + transformer.estimateDecodedBytes(task.sourceBytes, maxWidth, maxHeight);
+            task.budgetShare = budget.acquire(cost);
+            // Decode no larger than the biggest rendition needs.
+            task.image = transformer.decode(task.sourceBytes, maxWidth, maxHeight);
+            task.sourceSize = transformer.readSize(task.sourceBytes);
+            task.sourceBytes = null;
+          }
+        }));
+    stages.add(new PipelineStage<ConversionTask<T>>(
+        "transform", config.cpuThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(ConversionTask<T> task) throws Exception {
+            // A subsampled image is rounded to whole pixels, so size from the header instead.
+            task.renditions = task.sourceSize != null
+                ? renditions.render(
+                    transformer, task.image, task.sourceSize[0], task.sourceSize[1])
+                : renditions.render(transformer, task.image);
+            task.image = null;
+            budget.release(task.budgetShare);
+            task.budgetShare = 0;
+          }
+        }));
+    stages.add(new PipelineStage<ConversionTask<T>>(
+        "encode", config.cpuThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(ConversionTask<T> task) throws Exception {
+            List<RenditionSpec.Rendition> specs = renditions.getRenditions();
+            task.outputs = new ArrayList<byte[]>(specs.size());
+            for (int i = 0; i < specs.size(); i++) {
+              RenditionSpec.Rendition rendition = specs.get(i);
+              task.outputs.add(transformer.encode(
+                  task.renditions.get(i), rendition.getFormat(), rendition.getQuality()));
+            }
+            task.renditions = null;
+          }
+        }));
+    stages.add(new PipelineStage<ConversionTask<T>>(
+        "upload", config.ioThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(final ConversionTask<T> task) throws Exception {
+            List<RenditionSpec.Rendition> specs = renditions.getRenditions();
+            List<Future<Void>> pending = new ArrayList<Future<Void>>();
+            for (int i = 0; i < specs.size() - 1; i++) {
+              final int index = i;
+              pending.add(uploadFanout.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  upload(task, index);
+                  return null;
+                }
+              }));
+            }
+            upload(task, specs.size() - 1);
+            for (Future<Void> upload : pending) {
+              try {
+                upload.get();
+              } catch (ExecutionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw (IOException) e.getCause();
+              }
+            }
+            task.outputs = null;
+          }
+
+          private void upload(ConversionTask<T> task, int index) throws IOException {
+            RenditionSpec.Rendition rendition = renditions.getRenditions().get(index);
+            byte[] output = task.outputs.get(index);
+            GcsFilename filename =
+                new GcsFilename(targetBucket, rendition.objectName(task.source.getName()));
+            TrafficPolicy policy = uploadPolicy;
+            long start = policy != null ? policy.acquire() : 0;
+            int status = 0;
+            try {
+              gcsService.createOrReplace(filename,
+                  new GcsFileOptions.Builder().mimeType(rendition.getContentType()).build(),
+                  ByteBuffer.wrap(output));
+              status = 200;
+            } catch (IOException | RuntimeException e) {
+              status = failureStatus(e);
+              throw e;
+            } finally {
+              if (policy != null) {
+                policy.release(start, status, false);
+              }
+            }
+            // Outside the slot: the metadata request takes its own from the Storage client.
+            if (config.verifyUploads) {
+              verifyUpload(filename, output);
+            }
+            stats.bytesUploaded.addAndGet(output.length);
+            stats.renditionsUploaded.incrementAndGet();
+          }
+
+          /**
+           * Checks the written object's ETag, which GCS sets to the MD5 of a non-composite
+           * object's contents. GcsService can't send a checksum with the write, so this costs a
+           * metadata request, but no second transfer of the data.
+           */
+          private void verifyUpload(GcsFilename filename, byte[] output) throws IOException {
+            GcsFileMetadata written = gcsService.getMetadata(filename);
+            String etag = written != null ? written.getEtag() : null;
+            if (etag == null || !etag.replace("\"", "").matches("[0-9a-f]{32}")) {
+              return;
+            }
+            String md5 = Hashing.md5().hashBytes(output).toString();
+            if (!etag.replace("\"", "").equals(md5)) {
+              throw new IOException("MD5 mismatch for " + filename + ": expected " + md5
+                  + ", stored " + etag);
+            }
+          }
+        }));
+
+    // Duplicates skip the other stages. Not linked to them, so workers that hand duplicates over
+    // never wait on their own queue.
+    final PipelineStage<ConversionTask<T>> copyStage = new PipelineStage<ConversionTask<T>>(
+        "copy", config.ioThreads, config.queueCapacity,
+        new PipelineStage.Work<ConversionTask<T>>() {
+          @Override
+          public void process(ConversionTask<T> task) throws Exception {
+            for (RenditionSpec.Rendition rendition : renditions.getRenditions()) {
+              storage.objects()
+                  .copy(targetBucket, rendition.objectName(task.copyOf),
+                      targetBucket, rendition.objectName(task.source.getName()), null)
+                  .setFields("name")
+                  .execute();
+              stats.renditionsCopied.incrementAndGet();
+            }
+          }
+        });
+
+    PipelineStage.Listener<ConversionTask<T>> listener =
+        new PipelineStage.Listener<ConversionTask<T>>() {
+          @Override
+          public void onComplete(ConversionTask<T> task) {
+            try {
+              if (manifest != null) {
+                List<String> names = new ArrayList<String>();
+                for (RenditionSpec.Rendition rendition : renditions.getRenditions()) {
+                  names.add(rendition.objectName(task.source.getName()));
+                }
+                manifest.record(task.source, renditions, names);
+              }
+              stats.converted.incrementAndGet();
+            } catch (IOException e) {
+              onFailure(task, "record", e);
+              return;
+            }
+            if (duplicates != null) {
+              for (ConversionTask<T> duplicate : duplicates.converted(task)) {
+                copyStage.submit(duplicate);
+              }
+            }
+            inFlight.finish();
+          }
+
+          @Override
+          public void onFailure(ConversionTask<T> task, String stageName, Exception e) {
+            budget.release(task.budgetShare);
+            task.budgetShare = 0;
+            stats.failed.incrementAndGet();
+            System.err.println("Failed to " + stageName + " " + task.source.getName() + ": " + e);
+            if (duplicates != null) {
+              // Identical contents would fail the same way; the next run tries them again.
+              for (ConversionTask<T> duplicate : duplicates.failed(task)) {
+                stats.failed.incrementAndGet();
+                System.err.println("Failed to convert " + duplicate.source.getName()
+                    + ": same contents as " + task.source.getName());
+                inFlight.finish();
+              }
+            }
+            inFlight.finish();
+          }
+        };
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).setListener(listener);
+      if (i + 1 < stages.size()) {
+        stages.get(i).setNext(stages.get(i + 1));
+      }
+    }
+    copyStage.setListener(listener);
+    stages.add(copyStage);
+
+    ScheduledExecutorService reporter = null;
+    if (config.reportIntervalSeconds > 0) {
+      reporter = Executors.newSingleThreadScheduledExecutor();
+      reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          StringBuilder progress = new StringBuilder("Conversion progress: ").append(stats)
+              .append(String.format("\n  decode budget: %dMB admitted, %d waiting",
+                  budget.getAdmittedBytes() / (1024 * 1024), budget.getWaiting()));
+          if (config.sourceCache != null) {
+            progress.append("\n  source cache: ").append(config.sourceCache);
+          }
+          for (PipelineStage<ConversionTask<T>> stage : stages) {
+            progress.append("\n  ").append(stage);
+          }
+          System.out.println(progress);
+        }
+      }, config.reportIntervalSeconds, config.reportIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    for (PipelineStage<ConversionTask<T>> stage : stages) {
+      StorageMetrics.register("type=PipelineStage,name=" + stage.getName(), stage);
+    }
+    try {
+      PipelineStage<ConversionTask<T>> first = stages.get(0);
+      for (StorageObject object : listing) {
+        stats.listed.incrementAndGet();
+        if (!accepts(object)) {
+          stats.skipped.incrementAndGet();
+          continue;
+        }
+        if (manifest != null && manifest.isUpToDate(object, renditions)) {
+          stats.upToDate.incrementAndGet();
+          continue;
+        }
+        inFlight.start();
+        ConversionTask<T> task = new ConversionTask<T>(object);
+        if (duplicates == null || !duplicates.isDuplicate(task)) {
+          first.submit(task);
+        } else if (task.copyOf != null) {
+          copyStage.submit(task);
+        }
+      }
+      inFlight.awaitDrained();
+    } finally {
+      if (reporter != null) {
+        reporter.shutdownNow();
+      }
+      uploadFanout.shutdown();
+      for (PipelineStage<ConversionTask<T>> stage : stages) {
+        stage.shutdown();
+        StorageMetrics.unregister("type=PipelineStage,name=" + stage.getName());
+      }
+    }
+    return stats;
+  }
+
+  private boolean accepts(StorageObject object) {
+    String contentType = object.getContentType();
+    if (contentType == null) {
+      return false;
+    }
+    return contentTypes.isEmpty()
+        ? contentType.startsWith("image/") : contentTypes.contains(contentType);
+  }
+
+  /**
+   * Tracks sources by content, so that each distinct content is converted only once.
+   */
+  private static class Duplicates<T> {
+    // Content key -> the duplicates waiting for the first source with that content.
+    private final Map<String, List<ConversionTask<T>>> pending =
+        new HashMap<String, List<ConversionTask<T>>>();
+    // Content key -> the source whose renditions were made from that content.
+    private final Cache<String, String> converted =
+        CacheBuilder.newBuilder().maximumSize(MAX_REMEMBERED_CONTENTS).build();
+
+    /**
+     * Returns false if the task is the first with its contents and must be converted. Otherwise
+     * the task is either held until the first one is converted, or, if that has already
+     * happened, gets {@code copyOf} set and can be copied right away.
+     */
+    synchronized boolean isDuplicate(ConversionTask<T> task) {
+      String key = contentKey(task.source);
+      if (key == null) {
+        return false;
+      }
+      String original = converted.getIfPresent(key);
+      if (original != null) {
+        task.copyOf = original;
+        return true;
+      }
+      List<ConversionTask<T>> waiting = pending.get(key);
+      if (waiting != null) {
+        waiting.add(task);
+        return true;
+      }
+      pending.put(key, new ArrayList<ConversionTask<T>>());
+      task.contentKey = key;
+      return false;
+    }
+
+    /**
+     * Records that the task's renditions are written, and returns its duplicates, ready to copy.
+     */
+    synchronized List<ConversionTask<T>> converted(ConversionTask<T> task) {
+      if (task.contentKey == null) {
+        return Collections.emptyList();
+      }
+      String original = task.source.getName();
+      converted.put(task.contentKey, original);
+      List<ConversionTask<T>> waiting = pending.remove(task.contentKey);
+      for (ConversionTask<T> duplicate : waiting) {
+        duplicate.copyOf = original;
+      }
+      return waiting;
+    }
+
+    /**
+     * Returns the duplicates of a task that failed to convert.
+     */
+    synchronized List<ConversionTask<T>> failed(ConversionTask<T> task) {
+      if (task.contentKey == null) {
+        return Collections.emptyList();
+      }
+      return pending.remove(task.contentKey);
+    }
+
+    private static String contentKey(StorageObject source) {
+      if (source.getMd5Hash() != null) {
+        return "md5:" + source.getMd5Hash();
+      }
+      // Composite objects have no MD5; a CRC32C alone is too weak without the size.
+      if (source.getCrc32c() != null && source.getSize() != null) {
+        return "crc32c:" + source.getCrc32c() + ":" + source.getSize();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Counts the objects that have entered the pipeline but not yet left it.
+   */
+  private static class InFlight {
+    private long count;
+
+    synchronized void start() {
+      count++;
+    }
+
+    synchronized void finish() {
+      if (--count == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized void awaitDrained() throws InterruptedException {
+      while (count > 0) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Returns the status to report to the traffic policy for a failed upload. GcsService retries
+   * internally, so only some failures carry an HTTP status: one it gave up retrying counts as an
+   * overload (503), one it wouldn't retry as a client error (400), and anything else as a
+   * request that got no response (0).
+   */
+  static int failureStatus(Throwable failure) {
+    int status = 0;
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof HttpResponseException) {
+        return ((HttpResponseException) cause).getStatusCode();
+      }
+      if (cause instanceof RetriesExhaustedException) {
+        status = 503;
+      } else if (cause instanceof NonRetriableException && status == 0) {
+        status = 400;
+      }
+    }
+    return status;
+  }
+}
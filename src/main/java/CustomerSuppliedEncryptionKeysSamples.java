@@ -19,9 +19,13 @@ import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.CheckedInputStream;
 
 /**
  * Demonstrates the use of GCS's CSEK features via the Java API client library
@@ -75,6 +79,26 @@ class CustomerSuppliedEncryptionKeysSamples {
       String base64CseKey,
       String base64CseKeyHash)
       throws Exception {
+    try {
+      return openObject(storage, bucketName, objectName, base64CseKey, base64CseKeyHash);
+    } catch (GoogleJsonResponseException e) {
+      System.out.println("Error downloading: " + e.getContent());
+      System.exit(1);
+      return null;
+    }
+  }
+
+  /**
+   * Starts the download of a CSEK-protected object, like {@link #downloadObject}, but reports
+   * errors by throwing rather than exiting.
+   */
+  static InputStream openObject(
+      Storage storage,
+      String bucketName,
+      String objectName,
+      String base64CseKey,
+      String base64CseKeyHash)
+      throws IOException {
     Storage.Objects.Get getObject = storage.objects().get(bucketName, objectName);
 
     // If you're using AppEngine, turn off setDirectDownloadEnabled:
@@ -88,13 +112,35 @@ class CustomerSuppliedEncryptionKeysSamples {
 
     getObject.setRequestHeaders(httpHeaders);
 
-    try {
-      return getObject.executeMediaAsInputStream();
-    } catch (GoogleJsonResponseException e) {
-      System.out.println("Error downloading: " + e.getContent());
-      System.exit(1);
-      return null;
-    }
+    // Reading the stream to its end checks the decrypted contents against the object's CRC32C.
+    return Checksums.openVerified(getObject);
+  }
+
+  /**
+   * Downloads a CSEK-protected object from GCS into a local file, fetching several byte ranges
+   * concurrently. Suited to large objects, where a single stream can't use the full link.
+   *
+   * @param storage A Storage object, ready for use
+   * @param bucketName The name of the source bucket
+   * @param objectName The name of the source object
+   * @param destination The file to write the decrypted contents to
+   * @param base64CseKey An AES256 key, encoded as a base64 string.
+   * @param base64CseKeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   * @return The metadata of the downloaded object.
+   * @throws IOException if there was some error downloading from GCS.
+   */
+  public static StorageObject downloadObjectToFile(
+      Storage storage,
+      String bucketName,
+      String objectName,
+      Path destination,
+      String base64CseKey,
+      String base64CseKeyHash)
+      throws IOException {
+    SlicedDownload download = new SlicedDownload.Builder(storage)
+        .headers(encryptionHeaders(base64CseKey, base64CseKeyHash))
+        .build();
+    return download.download(bucketName, objectName, destination);
   }
 
   /**
@@ -118,7 +164,31 @@ class CustomerSuppliedEncryptionKeysSamples {
       String base64CseKey,
       String base64CseKeyHash)
       throws IOException {
-    InputStreamContent mediaContent = new InputStreamContent("text/plain", data);
+    try {
+      insertObject(storage, bucketName, objectName, data, base64CseKey, base64CseKeyHash);
+    } catch (GoogleJsonResponseException e) {
+      System.out.println("Error uploading: " + e.getContent());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Uploads an object to be stored with a CSEK, like {@link #uploadObject}, but reports errors by
+   * throwing rather than exiting.
+   *
+   * @return the metadata of the new object.
+   */
+  static StorageObject insertObject(
+      Storage storage,
+      String bucketName,
+      String objectName,
+      InputStream data,
+      String base64CseKey,
+      String base64CseKeyHash)
+      throws IOException {
+    // The CRC32C is computed as the upload reads the stream, and checked against GCS's.
+    CheckedInputStream checkedData = new CheckedInputStream(data, Checksums.newCrc32c());
+    InputStreamContent mediaContent = new InputStreamContent("text/plain", checkedData);
     Storage.Objects.Insert insertObject =
         storage.objects().insert(bucketName, null, mediaContent).setName(objectName);
     // The client library's default gzip setting may cause objects to be stored with gzip encoding,
@@ -134,12 +204,55 @@ class CustomerSuppliedEncryptionKeysSamples {
 
     insertObject.setRequestHeaders(httpHeaders);
 
-    try {
-      insertObject.execute();
-    } catch (GoogleJsonResponseException e) {
-      System.out.println("Error uploading: " + e.getContent());
-      System.exit(1);
-    }
+    StorageObject written = insertObject.execute();
+    Checksums.verifyCrc32c(objectName, written.getCrc32c(), checkedData.getChecksum().getValue());
+    return written;
+  }
+
+  /**
+   * Uploads a file to GCS with a resumable upload, to be stored with a customer-supplied key
+   * (CSEK). The session is saved to the given state file after every chunk, so if the upload is
+   * interrupted, calling this again with the same arguments continues from the last byte GCS
+   * confirmed instead of starting over. The CSEK headers are sent with every chunk.
+   *
+   * @param storage A Storage object, ready for use
+   * @param bucketName The name of the destination bucket
+   * @param objectName The name of the destination object
+   * @param file The file to upload
+   * @param base64CseKey An AES256 key, encoded as a base64 string.
+   * @param base64CseKeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   * @param stateFile Where to keep the upload session between attempts.
+   * @throws IOException if there was some error uploading to GCS.
+   */
+  public static StorageObject uploadObjectResumably(
+      Storage storage,
+      String bucketName,
+      String objectName,
+      File file,
+      String base64CseKey,
+      String base64CseKeyHash,
+      Path stateFile)
+      throws IOException {
+    ResumableUpload upload = new ResumableUpload.Builder(storage)
+        .headers(encryptionHeaders(base64CseKey, base64CseKeyHash))
+        .stateFile(stateFile)
+        // Start with 8 MiB chunks and let the chunk size follow the measured throughput.
+        .chunkSizeBytes(8L * 1024 * 1024)
+        .adaptiveChunkSize(5, ResumableUpload.CHUNK_GRANULARITY, 256L * 1024 * 1024)
+        .build();
+    return upload.upload(
+        file, bucketName, new StorageObject().setName(objectName).setContentType("text/plain"));
+  }
+
+  /**
+   * Returns the headers that tell GCS to encrypt (or decrypt) an object with the given CSEK.
+   */
+  static HttpHeaders encryptionHeaders(String base64CseKey, String base64CseKeyHash) {
+    HttpHeaders httpHeaders = new HttpHeaders();
+    httpHeaders.set("x-goog-encryption-algorithm", "AES256");
+    httpHeaders.set("x-goog-encryption-key", base64CseKey);
+    httpHeaders.set("x-goog-encryption-key-sha256", base64CseKeyHash);
+    return httpHeaders;
   }
 
   /**
@@ -200,6 +313,44 @@ class CustomerSuppliedEncryptionKeysSamples {
     }
   }
 
+  /**
+   * Changes the key of every CSEK-protected object under a prefix, rewriting many objects at a
+   * time. Running it again after an interruption resumes each unfinished object from its saved
+   * rewrite token and skips objects that already use the new key.
+   *
+   * @param storage A Storage object, ready for use
+   * @param bucketName The name of the bucket containing the objects
+   * @param prefix Only objects whose names begin with this prefix are rotated
+   * @param originalBase64Key The AES256 key currently associated with the objects,
+   *     encoded as a base64 string.
+   * @param originalBase64KeyHash The SHA-256 hash of the above key,
+   *     also encoded as a base64 string.
+   * @param newBase64Key An AES256 key which will replace the existing key,
+   *     encoded as a base64 string.
+   * @param newBase64KeyHash The SHA-256 hash of the above key, also encoded as a base64 string.
+   * @param stateFile Where the rewrite tokens of unfinished objects are kept between runs
+   * @return the rotation's statistics, including every object that could not be rotated.
+   */
+  public static KeyRotation.RotationStats rotateKeys(
+      Storage storage,
+      String bucketName,
+      String prefix,
+      String originalBase64Key,
+      String originalBase64KeyHash,
+      String newBase64Key,
+      String newBase64KeyHash,
+      Path stateFile)
+      throws IOException, InterruptedException {
+    KeyRotation rotation = new KeyRotation.Builder(storage, originalBase64Key,
+        originalBase64KeyHash, newBase64Key, newBase64KeyHash)
+        .concurrency(32)
+        // Save progress on large objects every 256 MiB copied.
+        .maxBytesRewrittenPerCall(256L * 1024 * 1024)
+        .stateFile(stateFile)
+        .build();
+    return rotation.rotate(bucketName, prefix);
+  }
+
   public static void main(String[] args) throws Exception {
     if (args.length != 1) {
       System.out.println("\nPlease run this with one argument: "
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fair, global limit on the memory held by decoded images in flight.
+ *
+ * <p>Each image is admitted with its estimated decode cost and holds that share of the budget
+ * until it is released. Images are admitted strictly in arrival order: once a large image is
+ * waiting, smaller ones queue behind it rather than slipping past, so large images are never
+ * starved. An image that costs more than the whole budget is admitted alone.</p>
+ */
+class DecodeBudget {
+
+  // The budget is kept in KiB so that budgets of any practical size fit the semaphore's ints.
+  private static final int UNIT = 1024;
+
+  private final int totalUnits;
+  private final Semaphore units;
+
+  /**
+   * @param budgetBytes the estimated bytes all admitted images may use together.
+   */
+  DecodeBudget(long budgetBytes) {
+    this.totalUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / UNIT));
+    this.units = new Semaphore(totalUnits, true);
+  }
+
+  /**
+   * Waits until an image of the given cost fits in the budget, then takes its share.
+   *
+   * @return the share taken, to be passed to {@link #release}.
+   */
+  int acquire(long costBytes) throws InterruptedException {
+    int share = (int) Math.max(1, Math.min(totalUnits, (costBytes + UNIT - 1) / UNIT));
+    units.acquire(share);
+    return share;
+  }
+
+  void release(int share) {
+    if (share > 0) {
+      units.release(share);
+    }
+  }
+
+  /**
+   * Returns the estimated bytes currently admitted.
+   */
+  long getAdmittedBytes() {
+    return (long) (totalUnits - units.availablePermits()) * UNIT;
+  }
+
+  /**
+   * Returns the number of images waiting to be admitted.
+   */
+  int getWaiting() {
+    return units.getQueueLength();
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A size-bounded cache of object contents on local disk, keyed by bucket, object name and
+ * generation.
+ *
+ * <p>Since a generation's contents never change, entries never go stale; they are only evicted,
+ * least recently used first, once the cache grows past its byte limit. Each entry is written to a
+ * temporary file and moved into place, so readers (including other processes sharing the
+ * directory) never see a partial file. Hits are returned as read-only memory-mapped buffers.
+ * Concurrent misses for the same generation share a single download.</p>
+ *
+ * <p>The recency order is saved to an index file every so often and on {@link #close()}. The
+ * files themselves are authoritative: on startup, files missing from the index are adopted as
+ * least recently used and index lines without a file are dropped, so a crash only loses
+ * recency.</p>
+ */
+public class DiskObjectCache implements Closeable {
+
+  private static final String ENTRY_SUFFIX = ".bin";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String INDEX_FILE = "index";
+  // Temporary files untouched for this long belong to a process that died mid-download; younger
+  // ones may still be written by another process sharing the directory.
+  private static final long STALE_TEMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+  // Publishes between index saves; the index only orders entries, so losing it is harmless.
+  private static final int INDEX_SAVE_INTERVAL = 64;
+
+  /**
+   * Writes the contents of an object that is missing from the cache.
+   */
+  public interface Loader {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Builds a {@link DiskObjectCache}.
+   */
+  public static class Builder {
+    private final Path directory;
+    private long maxBytes = 1024L * 1024 * 1024;
+
+    /**
+     * @param directory the directory the cache keeps its files in, created if missing.
+     */
+    public Builder(Path directory) {
+      this.directory = directory;
+    }
+
+    /**
+     * Sets the total size of the cached contents above which the least recently used entries
+     * are deleted.
+     */
+    public Builder maxBytes(long maxBytes) {
+      this.maxBytes = maxBytes;
+      return this;
+    }
+
+    public DiskObjectCache build() throws IOException {
+      return new DiskObjectCache(this);
+    }
+  }
+
+  private final Path directory;
+  private final long maxBytes;
+  // Entry file name -> size, in access order.
+  private final LinkedHashMap<String, Long> entries =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private final Striped<Lock> loadLocks = Striped.lock(64);
+  private long totalBytes;
+  private int unsavedChanges;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private DiskObjectCache(Builder builder) throws IOException {
+    this.directory = builder.directory;
+    this.maxBytes = builder.maxBytes;
+    Files.createDirectories(directory);
+    loadIndex();
+  }
+
+  /**
+   * Returns the cached contents of the given object generation, or null if they aren't cached.
+   */
+  public ByteBuffer get(String bucketName, String objectName, long generation)
+      throws IOException {
+    String fileName = fileName(bucketName, objectName, generation);
+    synchronized (this) {
+      if (entries.get(fileName) == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+    }
+    try {
+      ByteBuffer contents = map(directory.resolve(fileName));
+      hits.incrementAndGet();
+      return contents;
+    } catch (NoSuchFileException e) {
+      // Deleted by another process sharing the directory.
+      forget(fileName);
+      misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /**
+   * Returns the contents of the given object generation, calling the loader to fetch and cache
+   * them first if they aren't cached. Only one caller loads a given generation at a time; the
+   * others wait and then read the cached copy.
+   */
+  public ByteBuffer get(String bucketName, String objectName, long generation, Loader loader)
+      throws IOException {
+    ByteBuffer contents = get(bucketName, objectName, generation);
+    if (contents != null) {
+      return contents;
+    }
+    String fileName = fileName(bucketName, objectName, generation);
+    Lock lock = loadLocks.get(fileName);
+    lock.lock();
+    try {
+      synchronized (this) {
+        if (entries.containsKey(fileName)) {
+          // Loaded by the caller we waited for.
+          return map(directory.resolve(fileName));
+        }
+      }
+      return map(publish(fileName, loader));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the total size of the cached contents.
+   */
+  public synchronized long getBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  /**
+   * Saves the index, so that the next process using the directory keeps the recency order.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    saveIndex();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d entries, %dMB of %dMB; %d hits, %d misses, %d evicted",
+        entries.size(), totalBytes / (1024 * 1024), maxBytes / (1024 * 1024),
+        hits.get(), misses.get(), evictions.get());
+  }
+
+  private Path publish(String fileName, Loader loader) throws IOException {
+    Path temp = Files.createTempFile(directory, fileName, TEMP_SUFFIX);
+    Path target = directory.resolve(fileName);
+    try {
+      try (OutputStream out = Files.newOutputStream(temp)) {
+        loader.writeTo(out);
+      }
+      Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    long size = Files.size(target);
+    synchronized (this) {
+      Long previous = entries.put(fileName, size);
+      totalBytes += size - (previous != null ? previous : 0);
+      evict(fileName);
+      if (++unsavedChanges >= INDEX_SAVE_INTERVAL) {
+        saveIndex();
+      }
+    }
+    return target;
+  }
+
+  /**
+   * Deletes the least recently used entries until the cache fits, never deleting the one just
+   * published.
+   */
+  private synchronized void evict(String keep) throws IOException {
+    Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      Map.Entry<String, Long> entry = eldest.next();
+      if (entry.getKey().equals(keep)) {
+        continue;
+      }
+      // Buffers already mapped from the file stay readable after it is deleted.
+      Files.deleteIfExists(directory.resolve(entry.getKey()));
+      totalBytes -= entry.getValue();
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  private synchronized void forget(String fileName) {
+    Long size = entries.remove(fileName);
+    if (size != null) {
+      totalBytes -= size;
+    }
+  }
+
+  private void loadIndex() throws IOException {
+    Path index = directory.resolve(INDEX_FILE);
+    LinkedHashMap<String, Long> onDisk = new LinkedHashMap<String, Long>();
+    long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEMP_SUFFIX)) {
+          try {
+            if (Files.getLastModifiedTime(file).toMillis() < staleBefore) {
+              Files.deleteIfExists(file);
+            }
+          } catch (NoSuchFileException e) {
+            // Moved into place or cleaned up by its owner meanwhile.
+          }
+        } else if (name.endsWith(ENTRY_SUFFIX)) {
+          onDisk.put(name, Files.size(file));
+        }
+      }
+    }
+    // Files the index doesn't know about go first, as the least recently used.
+    LinkedHashMap<String, Long> ordered = new LinkedHashMap<String, Long>(onDisk);
+    if (Files.exists(index)) {
+      try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          Long size = onDisk.get(line.trim());
+          if (size != null) {
+            // Re-inserting moves the entry to the end, after everything read before it.
+            ordered.remove(line.trim());
+            ordered.put(line.trim(), size);
+          }
+        }
+      }
+    }
+    synchronized (this) {
+      for (Map.Entry<String, Long> entry : ordered.entrySet()) {
+        entries.put(entry.getKey(), entry.getValue());
+        totalBytes += entry.getValue();
+      }
+      evict(null);
+    }
+  }
+
+  private synchronized void saveIndex() throws IOException {
+    Path index = directory.resolve(INDEX_FILE);
+    Path temp = directory.resolve(INDEX_FILE + TEMP_SUFFIX);
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      // Least recently used first.
+      for (String fileName : entries.keySet()) {
+        writer.write(fileName);
+        writer.newLine();
+      }
+    }
+    Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    unsavedChanges = 0;
+  }
+
+  private static ByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // The mapping outlives the channel.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private static String fileName(String bucketName, String objectName, long generation) {
+    // Object names may contain any character, so entries are named by a hash of the key.
+    return Hashing.sha256()
+        .hashString(bucketName + "/" + objectName + "#" + generation, StandardCharsets.UTF_8)
+        + ENTRY_SUFFIX;
+  }
+}
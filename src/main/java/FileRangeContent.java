@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * HTTP content backed by a byte range of a shared {@link FileChannel}.
+ *
+ * <p>Reads use positional {@link FileChannel#read(ByteBuffer, long)} calls, so many ranges of the
+ * same file can be sent concurrently without any of them moving the channel's position. Because
+ * the range can be re-read from the start, the content supports retries.</p>
+ */
+class FileRangeContent extends AbstractInputStreamContent {
+
+  private final FileChannel channel;
+  private final long offset;
+  private final long length;
+
+  /**
+   * @param type the content type.
+   * @param channel the open channel to read from; the caller is responsible for closing it.
+   * @param offset the position of the first byte of the range.
+   * @param length the number of bytes in the range.
+   */
+  FileRangeContent(String type, FileChannel channel, long offset, long length) {
+    super(type);
+    this.channel = channel;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return true;
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new InputStream() {
+      private long position = offset;
+      private final long end = offset + length;
+
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (position >= end) {
+          return -1;
+        }
+        int toRead = (int) Math.min(len, end - position);
+        int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+        if (read > 0) {
+          position += read;
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - position);
+      }
+    };
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    // Used when the range is a whole request body, as for each ResumableUpload chunk;
+    // MediaHttpUploader's chunked uploads read getInputStream() instead. The target wraps a
+    // stream, so this is no kernel-level copy: the JDK moves the range through its own buffer.
+    long copied = StorageUtils.transferTo(channel, offset, length, Channels.newChannel(out));
+    if (copied < length) {
+      throw new IOException("File ended " + (length - copied) + " bytes before the range");
+    }
+    out.flush();
+  }
+
+  @Override
+  public FileRangeContent setType(String type) {
+    return (FileRangeContent) super.setType(type);
+  }
+
+  @Override
+  public FileRangeContent setCloseInputStream(boolean closeInputStream) {
+    return (FileRangeContent) super.setCloseInputStream(closeInputStream);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A backend that decodes, resizes and encodes images.
+ *
+ * <p>Implementations choose their own in-memory image representation. Aspect-preserving
+ * resizes all go through {@link #fitWithin}, so switching backends never changes output
+ * dimensions.</p>
+ *
+ * @param <T> the backend's decoded image type.
+ */
+public interface ImageTransformer<T> {
+
+  /**
+   * Decodes an encoded image (PNG, JPEG, ...).
+   */
+  T decode(byte[] data) throws IOException;
+
+  /**
+   * Decodes an encoded image that will only be scaled to fit within the given box. Backends that
+   * can decode at reduced resolution may return any image at least large enough to fill the box
+   * after {@link #resize}; others decode at full size.
+   */
+  default T decode(byte[] data, int maxWidth, int maxHeight) throws IOException {
+    return decode(data);
+  }
+
+  /**
+   * Returns roughly how many bytes of heap {@link #decode(byte[], int, int)} and the scaling
+   * that follows will need for this image, without decoding it. Backends that decode out of
+   * process need only the encoded bytes.
+   */
+  default long estimateDecodedBytes(byte[] data, int maxWidth, int maxHeight) {
+    return data.length;
+  }
+
+  /**
+   * Like {@link #decode(byte[], int, int)}, reading the encoded image from a stream. The stream
+   * is not closed.
+   */
+  default T decode(InputStream in, int maxWidth, int maxHeight) throws IOException {
+    return decode(ByteStreams.toByteArray(in), maxWidth, maxHeight);
+  }
+
+  /**
+   * Returns the width and height stored in an encoded image's header, or null if the backend
+   * can't read them without decoding. An image decoded at reduced resolution has lost its exact
+   * proportions, so renditions are sized from these.
+   */
+  default int[] readSize(byte[] data) throws IOException {
+    return null;
+  }
+
+  int getWidth(T image);
+
+  int getHeight(T image);
+
+  /**
+   * Scales the image to exactly the given size.
+   */
+  T scaleTo(T image, int width, int height) throws IOException;
+
+  /**
+   * Scales the image to fit within the given box, preserving its aspect ratio.
+   */
+  default T resize(T image, int maxWidth, int maxHeight) throws IOException {
+    int[] size = fitWithin(getWidth(image), getHeight(image), maxWidth, maxHeight);
+    return scaleTo(image, size[0], size[1]);
+  }
+
+  /**
+   * Encodes the image.
+   *
+   * @param format the output format, e.g. "jpeg" or "png".
+   * @param quality the output quality from 1 to 100; ignored by lossless formats.
+   */
+  byte[] encode(T image, String format, int quality) throws IOException;
+
+  /**
+   * Returns the dimensions an image of the given size is scaled to when fitted within the box,
+   * preserving its aspect ratio. Each dimension is at least one pixel.
+   */
+  static int[] fitWithin(int width, int height, int maxWidth, int maxHeight) {
+    double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
+    return new int[] {
+        Math.max(1, (int) Math.round(width * scale)),
+        Math.max(1, (int) Math.round(height * scale))};
+  }
+
+  /**
+   * Returns the transformer for a deployment: "java2d" resizes in-process, anything else
+   * (including null) uses the App Engine ImagesService.
+   */
+  static ImageTransformer<?> forName(String name) {
+    if ("java2d".equalsIgnoreCase(name)) {
+      return new Java2DImageTransformer();
+    }
+    return new ImagesServiceTransformer();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.OutputSettings;
+import com.google.appengine.api.images.Transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An {@link ImageTransformer} backed by the App Engine ImagesService.
+ *
+ * <p>Resizes are only recorded locally; they are sent to the service together with the output
+ * encoding in a single {@code applyTransform} call when the image is encoded.</p>
+ */
+public class ImagesServiceTransformer
+    implements ImageTransformer<ImagesServiceTransformer.PendingImage> {
+
+  /**
+   * A source image plus the transforms still to be applied to it.
+   */
+  public static class PendingImage {
+    private final Image source;
+    private final List<Transform> transforms;
+    private final int width;
+    private final int height;
+
+    PendingImage(Image source, List<Transform> transforms, int width, int height) {
+      this.source = source;
+      this.transforms = transforms;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private final ImagesService imagesService = ImagesServiceFactory.getImagesService();
+
+  @Override
+  public PendingImage decode(byte[] data) {
+    Image image = ImagesServiceFactory.makeImage(data);
+    return new PendingImage(
+        image, new ArrayList<Transform>(), image.getWidth(), image.getHeight());
+  }
+
+  @Override
+  public int getWidth(PendingImage image) {
+    return image.width;
+  }
+
+  @Override
+  public int getHeight(PendingImage image) {
+    return image.height;
+  }
+
+  @Override
+  public PendingImage scaleTo(PendingImage image, int width, int height) {
+    List<Transform> transforms = new ArrayList<Transform>(image.transforms);
+    // Allow stretching so the service honors the exact size rather than refitting it.
+    transforms.add(ImagesServiceFactory.makeResize(width, height, true));
+    return new PendingImage(image.source, transforms, width, height);
+  }
+
+  @Override
+  public byte[] encode(PendingImage image, String format, int quality) {
+    OutputSettings outputSettings = new OutputSettings(outputEncoding(format));
+    if (outputSettings.getOutputEncoding() != ImagesService.OutputEncoding.PNG) {
+      outputSettings.setQuality(quality);
+    }
+    List<Transform> transforms = image.transforms;
+    if (transforms.isEmpty()) {
+      // The service needs at least one transform; an identity resize just re-encodes.
+      transforms = new ArrayList<Transform>();
+      transforms.add(ImagesServiceFactory.makeResize(image.width, image.height, true));
+    }
+    Image result = imagesService.applyTransform(
+        ImagesServiceFactory.makeCompositeTransform(transforms), image.source, outputSettings);
+    return result.getImageData();
+  }
+
+  private static ImagesService.OutputEncoding outputEncoding(String format) {
+    switch (format.toLowerCase()) {
+      case "jpg":
+      case "jpeg":
+        return ImagesService.OutputEncoding.JPEG;
+      case "webp":
+        return ImagesService.OutputEncoding.WEBP;
+      case "png":
+        return ImagesService.OutputEncoding.PNG;
+      default:
+        throw new IllegalArgumentException("Unsupported output format: " + format);
+    }
+  }
+}
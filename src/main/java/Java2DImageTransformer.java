@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * An {@link ImageTransformer} that works entirely in-process with ImageIO and Java2D.
+ *
+ * <p>Downscaling is done in steps of at most one half with bilinear filtering, finishing with a
+ * bicubic pass. This gives results close to a single high-quality filter at a fraction of the
+ * cost, and avoids the aliasing of a single bilinear step over a large ratio. The transformer is
+ * stateless and safe to use from every worker thread.</p>
+ *
+ * <p>When the target size is known up front, {@link #decode(InputStream, int, int)} reads the
+ * dimensions from the image header and has the reader skip source pixels as it decodes, so a
+ * large photo never exists on the heap at full resolution.</p>
+ */
+public class Java2DImageTransformer implements ImageTransformer<BufferedImage> {
+
+  @Override
+  public BufferedImage decode(byte[] data) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+    if (image == null) {
+      throw new IOException("Unsupported or corrupt image data");
+    }
+    return image;
+  }
+
+  @Override
+  public BufferedImage decode(byte[] data, int maxWidth, int maxHeight) throws IOException {
+    return decode(new ByteArrayInputStream(data), maxWidth, maxHeight);
+  }
+
+  @Override
+  public BufferedImage decode(InputStream in, int maxWidth, int maxHeight) throws IOException {
+    // Cache in memory rather than in a temp file; the reader only ever moves forward, so the
+    // cache is discarded as it goes.
+    ImageInputStream input = new MemoryCacheImageInputStream(in);
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported or corrupt image data");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        ImageReadParam param = reader.getDefaultReadParam();
+        int factor = subsampling(reader.getWidth(0), reader.getHeight(0), maxWidth, maxHeight);
+        if (factor > 1) {
+          param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+        return reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  @Override
+  public long estimateDecodedBytes(byte[] data, int maxWidth, int maxHeight) {
+    int[] size;
+    try {
+      size = readSize(data);
+    } catch (IOException e) {
+      // Let decode report the problem.
+      return data.length;
+    }
+    int factor = subsampling(size[0], size[1], maxWidth, maxHeight);
+    long pixels = (long) (size[0] / factor) * (size[1] / factor);
+    // Four bytes per pixel, plus a third for the successively halved copies made by scaleTo.
+    return pixels * 4 * 4 / 3;
+  }
+
+  @Override
+  public int[] readSize(byte[] data) throws IOException {
+    try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        throw new IOException("Unsupported or corrupt image data");
+      }
+      ImageReader reader = readers.next();
+      try {
+        // Reads only as far as the header.
+        reader.setInput(input, true, true);
+        return new int[] {reader.getWidth(0), reader.getHeight(0)};
+      } finally {
+        reader.dispose();
+      }
+    }
+  }
+
+  /**
+   * Returns the largest subsampling factor that still leaves the decoded image at least twice
+   * the size it will be scaled to. Subsampling just drops pixels, so the remaining factor of
+   * two is left to {@link #scaleTo}, whose filtering keeps the result free of aliasing.
+   */
+  static int subsampling(int width, int height, int maxWidth, int maxHeight) {
+    double reduction = Math.max((double) width / maxWidth, (double) height / maxHeight);
+    return Math.max(1, (int) (reduction / 2));
+  }
+
+  @Override
+  public int getWidth(BufferedImage image) {
+    return image.getWidth();
+  }
+
+  @Override
+  public int getHeight(BufferedImage image) {
+    return image.getHeight();
+  }
+
+  @Override
+  public BufferedImage scaleTo(BufferedImage image, int targetWidth, int targetHeight) {
+    BufferedImage current = image;
+    int width = image.getWidth();
+    int height = image.getHeight();
+    // Halve while more than a factor of two remains, then make one final exact step.
+    while (width / 2 >= targetWidth && height / 2 >= targetHeight) {
+      width /= 2;
+      height /= 2;
+      current = scale(current, width, height, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+    if (width != targetWidth || height != targetHeight) {
+      current = scale(
+          current, targetWidth, targetHeight, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    }
+    return current;
+  }
+
+  @Override
+  public byte[] encode(BufferedImage image, String format, int quality) throws IOException {
+    boolean jpeg = "jpeg".equalsIgnoreCase(format) || "jpg".equalsIgnoreCase(format);
+    if (jpeg && image.getColorModel().hasAlpha()) {
+      // The JPEG writer can't store alpha; flatten onto an opaque image first.
+      image = scale(image, image.getWidth(), image.getHeight(),
+          RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, BufferedImage.TYPE_INT_RGB);
+    }
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+    if (!writers.hasNext()) {
+      throw new IOException("No ImageIO writer for format " + format);
+    }
+    ImageWriter writer = writers.next();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      writer.setOutput(ios);
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      if (jpeg) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+      }
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  private static BufferedImage scale(
+      BufferedImage source, int width, int height, Object interpolation) {
+    int type = source.getColorModel().hasAlpha()
+        ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+    return scale(source, width, height, interpolation, type);
+  }
+
+  private static BufferedImage scale(
+      BufferedImage source, int width, int height, Object interpolation, int type) {
+    BufferedImage scaled = new BufferedImage(width, height, type);
+    Graphics2D g = scaled.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+      g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+      g.drawImage(source, 0, 0, width, height, null);
+    } finally {
+      g.dispose();
+    }
+    return scaled;
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsFilename;
+import com.google.appengine.tools.cloudstorage.GcsInputChannel;
+import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
+import com.google.common.io.BaseEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * A {@link GcsService} that works through a JSON API {@link Storage} client instead of the XML
+ * API, whose host the App Engine client fixes. It lets the code written against GcsService (the
+ * conversion pipeline's uploads) run against any endpoint the client points at, such as a
+ * {@link LocalGcsServer}, with the client's credentials, metrics and traffic policy.
+ *
+ * <p>Writes are buffered in memory and sent as one request when the channel is closed; reads
+ * stream a single media download from the requested position.</p>
+ */
+public class JsonApiGcsService implements GcsService {
+
+  private final Storage storage;
+
+  /**
+   * @param storage the client that sends the requests.
+   */
+  public JsonApiGcsService(Storage storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public GcsOutputChannel createOrReplace(GcsFilename filename, GcsFileOptions options) {
+    return new BufferedOutputChannel(filename, options);
+  }
+
+  @Override
+  public void createOrReplace(GcsFilename filename, GcsFileOptions options, ByteBuffer src)
+      throws IOException {
+    byte[] data = new byte[src.remaining()];
+    src.get(data);
+    Storage.Objects.Insert insert = storage.objects().insert(filename.getBucketName(),
+        toStorageObject(filename, options), new ByteArrayContent(options.getMimeType(), data));
+    // Metadata and media in one multipart request, rather than a resumable session.
+    insert.getMediaHttpUploader().setDirectUploadEnabled(true).setDisableGZipContent(true);
+    if (options.getAcl() != null) {
+      insert.setPredefinedAcl(toPredefinedAcl(options.getAcl()));
+    }
+    insert.setFields("name").execute();
+  }
+
+  @Override
+  public GcsInputChannel openReadChannel(GcsFilename filename, long startPosition)
+      throws IOException {
+    Storage.Objects.Get get =
+        storage.objects().get(filename.getBucketName(), filename.getObjectName());
+    if (startPosition > 0) {
+      get.setRequestHeaders(new HttpHeaders().setRange("bytes=" + startPosition + "-"));
+    }
+    InputStream content = startPosition > 0
+        ? get.executeMedia().getContent() : Checksums.openVerified(get);
+    return new StreamInputChannel(Channels.newChannel(content));
+  }
+
+  /**
+   * Same as {@link #openReadChannel}; the download streams, so there is nothing to prefetch.
+   */
+  @Override
+  public GcsInputChannel openPrefetchingReadChannel(GcsFilename filename, long startPosition,
+      int blockSize) {
+    try {
+      return openReadChannel(filename, startPosition);
+    } catch (IOException e) {
+      throw new IllegalStateException("Couldn't open " + filename, e);
+    }
+  }
+
+  @Override
+  public GcsFileMetadata getMetadata(GcsFilename filename) throws IOException {
+    StorageObject object;
+    try {
+      object = storage.objects().get(filename.getBucketName(), filename.getObjectName())
+          .execute();
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() == 404) {
+        return null;
+      }
+      throw e;
+    }
+    // The builder rejects nulls, so only the fields the object has are set.
+    GcsFileOptions.Builder options = new GcsFileOptions.Builder();
+    if (object.getContentType() != null) {
+      options.mimeType(object.getContentType());
+    }
+    if (object.getCacheControl() != null) {
+      options.cacheControl(object.getCacheControl());
+    }
+    if (object.getContentEncoding() != null) {
+      options.contentEncoding(object.getContentEncoding());
+    }
+    if (object.getContentDisposition() != null) {
+      options.contentDisposition(object.getContentDisposition());
+    }
+    if (object.getMetadata() != null) {
+      for (Map.Entry<String, String> entry : object.getMetadata().entrySet()) {
+        options.addUserMetadata(entry.getKey(), entry.getValue());
+      }
+    }
+    return new GcsFileMetadata(filename, options.build(), xmlEtag(object),
+        object.getSize().longValue(), new Date(object.getUpdated().getValue()));
+  }
+
+  @Override
+  public boolean delete(GcsFilename filename) throws IOException {
+    try {
+      storage.objects().delete(filename.getBucketName(), filename.getObjectName()).execute();
+      return true;
+    } catch (GoogleJsonResponseException e) {
+      if (e.getStatusCode() == 404) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void compose(Iterable<String> source, GcsFilename dest) throws IOException {
+    List<ComposeRequest.SourceObjects> sources = new ArrayList<ComposeRequest.SourceObjects>();
+    for (String name : source) {
+      sources.add(new ComposeRequest.SourceObjects().setName(name));
+    }
+    StorageObject destination = new StorageObject().setName(dest.getObjectName());
+    storage.objects()
+        .compose(dest.getBucketName(), dest.getObjectName(),
+            new ComposeRequest().setSourceObjects(sources).setDestination(destination))
+        .setFields("name")
+        .execute();
+  }
+
+  @Override
+  public void copy(GcsFilename source, GcsFilename dest) throws IOException {
+    // A rewrite, unlike a copy, works for objects of any size and across locations.
+    String token = null;
+    do {
+      Storage.Objects.Rewrite rewrite = storage.objects().rewrite(
+          source.getBucketName(), source.getObjectName(),
+          dest.getBucketName(), dest.getObjectName(), null);
+      if (token != null) {
+        rewrite.setRewriteToken(token);
+      }
+      RewriteResponse response = rewrite.setFields("done,rewriteToken").execute();
+      token = Boolean.TRUE.equals(response.getDone()) ? null : response.getRewriteToken();
+    } while (token != null);
+  }
+
+  @Override
+  public void update(GcsFilename source, GcsFileOptions options) throws IOException {
+    Storage.Objects.Patch patch = storage.objects().patch(source.getBucketName(),
+        source.getObjectName(), toStorageObject(source, options).setName(null));
+    if (options.getAcl() != null) {
+      patch.setPredefinedAcl(toPredefinedAcl(options.getAcl()));
+    }
+    patch.setFields("name").execute();
+  }
+
+  @Override
+  public ListResult list(final String bucket, final ListOptions options) throws IOException {
+    return new ListResult(new Callable<Iterator<ListItem>>() {
+      private String pageToken;
+      private boolean started;
+
+      @Override
+      public Iterator<ListItem> call() throws IOException {
+        if (started && pageToken == null) {
+          return null;
+        }
+        started = true;
+        Storage.Objects.List list = storage.objects().list(bucket)
+            .setPrefix(options.getPrefix())
+            .setPageToken(pageToken);
+        if (!options.isRecursive()) {
+          list.setDelimiter("/");
+        }
+        Objects page = list.execute();
+        pageToken = page.getNextPageToken();
+        List<ListItem> items = new ArrayList<ListItem>();
+        if (page.getPrefixes() != null) {
+          for (String prefix : page.getPrefixes()) {
+            items.add(new ListItem.Builder().setName(prefix).setDirectory(true).build());
+          }
+        }
+        if (page.getItems() != null) {
+          for (StorageObject object : page.getItems()) {
+            items.add(new ListItem.Builder()
+                .setName(object.getName())
+                .setLength(object.getSize().longValue())
+                .setEtag(xmlEtag(object))
+                .setLastModified(new Date(object.getUpdated().getValue()))
+                .build());
+          }
+        }
+        return items.iterator();
+      }
+    });
+  }
+
+  /**
+   * The object metadata for a GcsService write.
+   */
+  private static StorageObject toStorageObject(GcsFilename filename, GcsFileOptions options) {
+    StorageObject object = new StorageObject()
+        .setName(filename.getObjectName())
+        .setContentType(options.getMimeType())
+        .setCacheControl(options.getCacheControl())
+        .setContentEncoding(options.getContentEncoding())
+        .setContentDisposition(options.getContentDisposition());
+    if (!options.getUserMetadata().isEmpty()) {
+      object.setMetadata(options.getUserMetadata());
+    }
+    return object;
+  }
+
+  /**
+   * Converts an XML API canned ACL ("public-read") to the JSON API's name for it
+   * ("publicRead").
+   */
+  private static String toPredefinedAcl(String cannedAcl) {
+    StringBuilder predefined = new StringBuilder();
+    boolean upper = false;
+    for (char c : cannedAcl.toCharArray()) {
+      if (c == '-') {
+        upper = true;
+      } else {
+        predefined.append(upper ? Character.toUpperCase(c) : c);
+        upper = false;
+      }
+    }
+    return predefined.toString();
+  }
+
+  /**
+   * Returns the ETag the XML API reports, which is the hex MD5 for non-composite objects; the
+   * JSON API's ETag is opaque.
+   */
+  private static String xmlEtag(StorageObject object) {
+    return object.getMd5Hash() != null
+        ? BaseEncoding.base16().lowerCase().encode(
+            BaseEncoding.base64().decode(object.getMd5Hash()))
+        : object.getEtag();
+  }
+
+  /**
+   * Collects the written bytes and uploads them on close.
+   */
+  private class BufferedOutputChannel implements GcsOutputChannel {
+    private static final long serialVersionUID = 1L;
+    private final GcsFilename filename;
+    private final GcsFileOptions options;
+    private transient ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    BufferedOutputChannel(GcsFilename filename, GcsFileOptions options) {
+      this.filename = filename;
+      this.options = options;
+    }
+
+    @Override
+    public GcsFilename getFilename() {
+      return filename;
+    }
+
+    @Override
+    public int getBufferSizeBytes() {
+      return StorageUtils.BUFFER_SIZE;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      if (buffer == null) {
+        throw new IOException("Channel for " + filename + " is closed");
+      }
+      int written = src.remaining();
+      byte[] bytes = new byte[written];
+      src.get(bytes);
+      buffer.write(bytes);
+      return written;
+    }
+
+    @Override
+    public void waitForOutstandingWrites() {
+      // Nothing is sent before close.
+    }
+
+    @Override
+    public boolean isOpen() {
+      return buffer != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (buffer != null) {
+        byte[] data = buffer.toByteArray();
+        buffer = null;
+        createOrReplace(filename, options, ByteBuffer.wrap(data));
+      }
+    }
+  }
+
+  /**
+   * A read channel over a download stream.
+   */
+  private static class StreamInputChannel implements GcsInputChannel {
+    private static final long serialVersionUID = 1L;
+    private final transient ReadableByteChannel channel;
+
+    StreamInputChannel(ReadableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      return channel.read(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // GcsInputChannel.close doesn't throw; the download is abandoned either way.
+      }
+    }
+  }
+}
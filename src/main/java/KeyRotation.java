@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Rotates the customer-supplied encryption key of every object under a bucket prefix.
+ *
+ * <p>Objects are rewritten in place, many at a time. Large objects take several rewrite calls;
+ * the rewrite token of every unfinished object is saved to a state file after each call, so a
+ * rotation that is interrupted picks up where each object left off when it is run again.
+ * Objects already encrypted with the new key are skipped, which makes re-running a finished or
+ * partly finished rotation cheap. Failures are reported per object and never stop the rest of
+ * the job.</p>
+ */
+public class KeyRotation {
+
+  private static final String LISTING_FIELDS = "name,size,generation,customerEncryption";
+
+  /**
+   * Progress and outcome of a rotation.
+   */
+  public static class RotationStats extends RewriteStats {
+    RotationStats() {
+      super("rotated");
+    }
+
+    public long getRotated() {
+      return completed.get();
+    }
+  }
+
+  /**
+   * Builds a {@link KeyRotation}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private final String oldBase64Key;
+    private final String oldBase64KeyHash;
+    private final String newBase64Key;
+    private final String newBase64KeyHash;
+    private int concurrency = 16;
+    private Long maxBytesRewrittenPerCall;
+    private int maxAttempts = 5;
+    private Path stateFile;
+    private long reportIntervalSeconds = 10;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     * @param oldBase64Key the key the objects are currently encrypted with.
+     * @param oldBase64KeyHash the SHA-256 hash of the current key.
+     * @param newBase64Key the key to encrypt the objects with.
+     * @param newBase64KeyHash the SHA-256 hash of the new key.
+     */
+    public Builder(Storage storage, String oldBase64Key, String oldBase64KeyHash,
+        String newBase64Key, String newBase64KeyHash) {
+      this.storage = storage;
+      this.oldBase64Key = oldBase64Key;
+      this.oldBase64KeyHash = oldBase64KeyHash;
+      this.newBase64Key = newBase64Key;
+      this.newBase64KeyHash = newBase64KeyHash;
+    }
+
+    /**
+     * Sets how many objects are rewritten at the same time.
+     */
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Sets how many bytes the service copies per rewrite call, a multiple of 1 MiB. Smaller
+     * values save progress more often; null leaves it to the service.
+     */
+    public Builder maxBytesRewrittenPerCall(Long maxBytesRewrittenPerCall) {
+      this.maxBytesRewrittenPerCall = maxBytesRewrittenPerCall;
+      return this;
+    }
+
+    /**
+     * Sets how many times a rewrite call is attempted before the object is reported as failed.
+     * This replaces the retries of the client's traffic policy, which rewrite calls don't use.
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the file in which the rewrite tokens of unfinished objects are kept, or null to keep
+     * them in memory only.
+     */
+    public Builder stateFile(Path stateFile) {
+      this.stateFile = stateFile;
+      return this;
+    }
+
+    /**
+     * Sets how often progress is printed while the job runs; zero disables progress reports.
+     */
+    public Builder reportIntervalSeconds(long reportIntervalSeconds) {
+      this.reportIntervalSeconds = reportIntervalSeconds;
+      return this;
+    }
+
+    public KeyRotation build() {
+      return new KeyRotation(this);
+    }
+  }
+
+  private final Builder config;
+  private final Storage storage;
+  private final RewriteJob job;
+
+  private KeyRotation(Builder builder) {
+    this.config = builder;
+    this.storage = builder.storage;
+    this.job = new RewriteJob("Key rotation", builder.concurrency, builder.maxAttempts,
+        builder.stateFile, builder.reportIntervalSeconds);
+  }
+
+  /**
+   * Rotates the key of every object under the prefix and waits for the rotation to finish.
+   *
+   * @param bucketName the bucket containing the objects.
+   * @param prefix only rotate objects whose names begin with this prefix, or null for all.
+   */
+  public RotationStats rotate(final String bucketName, String prefix)
+      throws IOException, InterruptedException {
+    RotationStats stats = new RotationStats();
+    job.run(new BucketListing(storage, bucketName, prefix, LISTING_FIELDS, null).iterator(),
+        new RewriteJob.Planner() {
+          @Override
+          public Storage.Objects.Rewrite plan(StorageObject object) throws IOException {
+            return needsRotation(object) ? rotation(bucketName, object) : null;
+          }
+        }, stats);
+    return stats;
+  }
+
+  private boolean needsRotation(StorageObject object) {
+    // Objects without a customer-supplied key can't be read with the old key either.
+    return object.getCustomerEncryption() != null
+        && !config.newBase64KeyHash.equals(object.getCustomerEncryption().getKeySha256());
+  }
+
+  private Storage.Objects.Rewrite rotation(String bucketName, StorageObject object)
+      throws IOException {
+    String name = object.getName();
+    Storage.Objects.Rewrite rewrite = storage.objects()
+        .rewrite(bucketName, name, bucketName, name, null)
+        .setSourceGeneration(object.getGeneration())
+        // Never replace a version written after the listing.
+        .setIfGenerationMatch(object.getGeneration())
+        .setMaxBytesRewrittenPerCall(config.maxBytesRewrittenPerCall);
+    rewrite.setRequestHeaders(rotationHeaders());
+    return rewrite;
+  }
+
+  private HttpHeaders rotationHeaders() {
+    HttpHeaders headers = CustomerSuppliedEncryptionKeysSamples.encryptionHeaders(
+        config.newBase64Key, config.newBase64KeyHash);
+    headers.set("x-goog-copy-source-encryption-algorithm", "AES256");
+    headers.set("x-goog-copy-source-encryption-key", config.oldBase64Key);
+    headers.set("x-goog-copy-source-encryption-key-sha256", config.oldBase64KeyHash);
+    return headers;
+  }
+}
@@ -0,0 +1,1558 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Bucket;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.ObjectAccessControl;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An in-memory stand-in for the GCS JSON API, served over plain HTTP on the loopback interface,
+ * so that the samples and their performance runs work on a machine with no network or
+ * credentials. Point a client at it with {@link StorageFactory.Builder#rootUrl} and
+ * {@link StorageFactory.Builder#anonymous}, and use a {@link JsonApiGcsService} in place of the
+ * App Engine GcsService.
+ *
+ * <p>It implements the subset of the API this project uses: bucket get; object list (with
+ * prefixes, delimiters and paging), get (metadata, or media with {@code Range} and
+ * {@code x-goog-hash}), simple, multipart and resumable insert, patch, delete, compose, copy,
+ * multi-call rewrite with rewrite tokens, ACL insert, and the batch endpoint. Generation
+ * preconditions, sent CRC32C/MD5 hashes and customer-supplied encryption key headers are checked
+ * the way GCS checks them, and JSON responses are trimmed to the {@code fields} selection. Every
+ * bucket exists; objects live in memory until the server is closed.</p>
+ *
+ * <p>For load testing, every exchange can be delayed by a random latency, all transfers share a
+ * bandwidth cap, and any share of requests (including each request inside a batch) can be
+ * failed with a given status such as 429 or 503.</p>
+ */
+public class LocalGcsServer implements Closeable {
+
+  private static final JsonFactory JSON = JacksonFactory.getDefaultInstance();
+  private static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_COMPOSE_SOURCES = 32;
+  private static final int MAX_BATCH_SIZE = 100;
+  private static final int TRANSFER_CHUNK = 64 * 1024;
+  private static final String ENCRYPTION_HEADERS = "x-goog-encryption-";
+  private static final String SOURCE_ENCRYPTION_HEADERS = "x-goog-copy-source-encryption-";
+  private static final Pattern CONTENT_RANGE =
+      Pattern.compile("bytes (?:\\*|(\\d+)-(\\d+))/(\\*|\\d+)");
+  private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+  /**
+   * Builds and starts a {@link LocalGcsServer}.
+   */
+  public static class Builder {
+    private int port = 0;
+    private long minLatencyMillis = 0;
+    private long maxLatencyMillis = 0;
+    private long bandwidthBytesPerSecond = 0;
+    private final Map<Integer, Double> errorRates = new LinkedHashMap<Integer, Double>();
+    private long rewriteBytesPerCall = 8L * 1024 * 1024;
+    private int threads = 64;
+
+    /**
+     * Sets the port to listen on. Defaults to 0, any free port.
+     */
+    public Builder port(int port) {
+      this.port = port;
+      return this;
+    }
+
+    /**
+     * Delays the response to every HTTP exchange by a uniformly random time in the given range.
+     */
+    public Builder latencyMillis(long minLatencyMillis, long maxLatencyMillis) {
+      this.minLatencyMillis = minLatencyMillis;
+      this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+      return this;
+    }
+
+    /**
+     * Caps the combined rate of all uploads and downloads, as if they shared one link. Zero (the
+     * default) leaves them uncapped.
+     */
+    public Builder bandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+      this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+      return this;
+    }
+
+    /**
+     * Fails the given share of requests (0 to 1) with the given HTTP status, e.g. 429 or 503,
+     * before they take effect. Can be called for several statuses.
+     */
+    public Builder errorRate(int status, double rate) {
+      errorRates.put(status, rate);
+      return this;
+    }
+
+    /**
+     * Sets how many bytes a rewrite copies per call before it returns a rewrite token, so that
+     * large rewrites take several calls as they do in GCS.
+     */
+    public Builder rewriteBytesPerCall(long rewriteBytesPerCall) {
+      this.rewriteBytesPerCall = rewriteBytesPerCall;
+      return this;
+    }
+
+    /**
+     * Sets how many exchanges are served at once.
+     */
+    public Builder threads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    public LocalGcsServer build() throws IOException {
+      return new LocalGcsServer(this);
+    }
+  }
+
+  private final Builder config;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final RateLimiter bandwidth;
+  // Bucket name -> object name -> current generation, in name order for listing.
+  private final ConcurrentMap<String, ConcurrentSkipListMap<String, Blob>> buckets =
+      new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Blob>>();
+  // Upload ID -> resumable upload session. Finished sessions are kept for a while, since clients
+  // ask for the status of a session after losing the response that completed it.
+  private final ConcurrentMap<String, UploadSession> sessions = CacheBuilder.newBuilder()
+      .expireAfterAccess(1, TimeUnit.HOURS)
+      .<String, UploadSession>build()
+      .asMap();
+  private final AtomicLong generations = new AtomicLong(System.currentTimeMillis() * 1000);
+  private final DateTime started = new DateTime(System.currentTimeMillis());
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final AtomicLong bytesReceived = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  private LocalGcsServer(Builder builder) throws IOException {
+    this.config = builder;
+    this.bandwidth = builder.bandwidthBytesPerSecond > 0
+        ? RateLimiter.create(builder.bandwidthBytesPerSecond) : null;
+    this.executor = Executors.newFixedThreadPool(builder.threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "local-gcs-server");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.server = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the root URL to give {@link StorageFactory.Builder#rootUrl}, with a trailing slash.
+   */
+  public String getRootUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * Returns a client for this server that sends no credentials and adds no retries or pacing of
+   * its own.
+   */
+  public Storage newClient() {
+    return new Storage.Builder(new NetHttpTransport(), JSON, null)
+        .setRootUrl(getRootUrl())
+        .setApplicationName("LocalGcsServer client")
+        .build();
+  }
+
+  /**
+   * Stores an object directly, e.g. to seed a bucket before a test.
+   *
+   * @return the new object's metadata.
+   */
+  public StorageObject putObject(String bucketName, String objectName, String contentType,
+      byte[] data) throws IOException {
+    try {
+      return store(bucketName, new StorageObject().setName(objectName).setContentType(contentType),
+          data, null, null, null, null).metadata.clone();
+    } catch (HttpError e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Stores every file under a directory as an object named by its relative path.
+   *
+   * @return the number of objects stored.
+   */
+  public int putDirectory(final String bucketName, final Path directory) throws IOException {
+    final AtomicLong count = new AtomicLong();
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+          throws IOException {
+        String name = directory.relativize(file).toString().replace(File.separatorChar, '/');
+        String contentType = Files.probeContentType(file);
+        putObject(bucketName, name,
+            contentType != null ? contentType : "application/octet-stream",
+            Files.readAllBytes(file));
+        count.incrementAndGet();
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return (int) count.get();
+  }
+
+  /**
+   * Returns the contents of an object's current generation, or null if it doesn't exist.
+   */
+  public byte[] getObjectContent(String bucketName, String objectName) {
+    Blob blob = bucket(bucketName).get(objectName);
+    return blob != null ? blob.data.clone() : null;
+  }
+
+  /**
+   * Stops serving and drops every object.
+   */
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+    buckets.clear();
+    sessions.clear();
+  }
+
+  /**
+   * Returns the number of requests served so far, counting each request inside a batch.
+   */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d requests (%d failed by injection); %dMB received, %dMB sent",
+        requests.get(), injectedErrors.get(), bytesReceived.get() / (1024 * 1024),
+        bytesSent.get() / (1024 * 1024));
+  }
+
+  /**
+   * The contents and metadata of one object generation.
+   */
+  private static class Blob {
+    final StorageObject metadata;
+    final byte[] data;
+    // The SHA-256 of the customer-supplied key the object is stored with, or null.
+    final String keySha256;
+
+    Blob(StorageObject metadata, byte[] data, String keySha256) {
+      this.metadata = metadata;
+      this.data = data;
+      this.keySha256 = keySha256;
+    }
+  }
+
+  /**
+   * A resumable upload in progress, or finished if it has a result.
+   */
+  private static class UploadSession {
+    final String bucketName;
+    final StorageObject requested;
+    final String keySha256;
+    final String kmsKeyName;
+    final Long ifGenerationMatch;
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    Blob result;
+
+    UploadSession(String bucketName, StorageObject requested, String keySha256,
+        String kmsKeyName, Long ifGenerationMatch) {
+      this.bucketName = bucketName;
+      this.requested = requested;
+      this.keySha256 = keySha256;
+      this.kmsKeyName = kmsKeyName;
+      this.ifGenerationMatch = ifGenerationMatch;
+    }
+  }
+
+  /**
+   * An HTTP request, either a whole exchange or one part of a batch.
+   */
+  private static class Request {
+    final String method;
+    final String rawPath;
+    final List<String> path = new ArrayList<String>();
+    final Map<String, String> query = new HashMap<String, String>();
+    // Lower-case names.
+    final Map<String, String> headers;
+    final byte[] body;
+    final String baseUrl;
+
+    Request(String method, String rawPath, String rawQuery, Map<String, String> headers,
+        byte[] body, String baseUrl) throws IOException {
+      String override = headers.get("x-http-method-override");
+      this.method = override != null ? override : method;
+      this.rawPath = rawPath;
+      this.headers = headers;
+      this.body = body;
+      this.baseUrl = baseUrl;
+      for (String segment : rawPath.split("/")) {
+        if (!segment.isEmpty()) {
+          // Path segments escape '+' as %2B, so a literal '+' is a plus, not a space.
+          path.add(URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8"));
+        }
+      }
+      if (rawQuery != null) {
+        for (String parameter : rawQuery.split("&")) {
+          int equals = parameter.indexOf('=');
+          if (equals > 0) {
+            query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+          }
+        }
+      }
+    }
+
+    String header(String name) {
+      return headers.get(name);
+    }
+
+    String query(String name) {
+      return query.get(name);
+    }
+
+    Long queryLong(String name) throws HttpError {
+      String value = query.get(name);
+      try {
+        return value != null ? Long.valueOf(value) : null;
+      } catch (NumberFormatException e) {
+        throw new HttpError(400, "invalid", "Invalid value for " + name + ": " + value);
+      }
+    }
+  }
+
+  /**
+   * An HTTP response with its body in memory.
+   */
+  private static class Response {
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    byte[] body = new byte[0];
+    int offset;
+    int length;
+
+    Response(int status) {
+      this.status = status;
+    }
+
+    Response body(String contentType, byte[] body, int offset, int length) {
+      headers.put("Content-Type", contentType);
+      this.body = body;
+      this.offset = offset;
+      this.length = length;
+      return this;
+    }
+  }
+
+  /**
+   * An error response, thrown from wherever the request turns out to be invalid.
+   */
+  private static class HttpError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+    final String reason;
+
+    HttpError(int status, String reason, String message) {
+      super(message);
+      this.status = status;
+      this.reason = reason;
+    }
+  }
+
+  /**
+   * A part of a multipart body.
+   */
+  private static class Part {
+    // Lower-case names.
+    final Map<String, String> headers;
+    final byte[] body;
+
+    Part(Map<String, String> headers, byte[] body) {
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+
+  private void serve(HttpExchange exchange) {
+    try {
+      if (config.maxLatencyMillis > 0) {
+        Thread.sleep(config.minLatencyMillis + ThreadLocalRandom.current()
+            .nextLong(config.maxLatencyMillis - config.minLatencyMillis + 1));
+      }
+      Map<String, String> headers = new HashMap<String, String>();
+      for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+        headers.put(header.getKey().toLowerCase(), header.getValue().get(0));
+      }
+      byte[] body = transfer(exchange.getRequestBody(), null, bytesReceived);
+      if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+        body = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+      }
+      String host = headers.get("host");
+      URI uri = exchange.getRequestURI();
+      Request request = new Request(exchange.getRequestMethod(), uri.getRawPath(),
+          uri.getRawQuery(), headers, body,
+          "http://" + (host != null ? host : "localhost:" + server.getAddress().getPort()) + "/");
+      Response response = respond(request);
+      for (Map.Entry<String, String> header : response.headers.entrySet()) {
+        exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+      }
+      exchange.sendResponseHeaders(response.status, response.length > 0 ? response.length : -1);
+      if (response.length > 0) {
+        try (OutputStream out = exchange.getResponseBody()) {
+          transfer(new ByteArrayInputStream(response.body, response.offset, response.length), out,
+              bytesSent);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      // The client went away; nothing to answer.
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Copies a stream at no more than the shared bandwidth cap, returning what was read if there
+   * is no destination.
+   */
+  private byte[] transfer(InputStream in, OutputStream out, AtomicLong counter)
+      throws IOException {
+    ByteArrayOutputStream buffer = out == null ? new ByteArrayOutputStream() : null;
+    byte[] chunk = new byte[TRANSFER_CHUNK];
+    int n;
+    while ((n = in.read(chunk)) > 0) {
+      if (bandwidth != null) {
+        bandwidth.acquire(n);
+      }
+      (out != null ? out : buffer).write(chunk, 0, n);
+      counter.addAndGet(n);
+    }
+    return buffer != null ? buffer.toByteArray() : null;
+  }
+
+  private Response respond(Request request) {
+    // Counted here, like injected errors, so that each request inside a batch counts too.
+    requests.incrementAndGet();
+    Integer injected = rollError();
+    if (injected != null) {
+      injectedErrors.incrementAndGet();
+      return error(injected, injected == 429 ? "rateLimitExceeded" : "backendError",
+          "Injected failure");
+    }
+    try {
+      return route(request);
+    } catch (HttpError e) {
+      return error(e.status, e.reason, e.getMessage());
+    } catch (IOException | RuntimeException e) {
+      return error(500, "internalError", String.valueOf(e));
+    }
+  }
+
+  private Integer rollError() {
+    double roll = ThreadLocalRandom.current().nextDouble();
+    for (Map.Entry<Integer, Double> rate : config.errorRates.entrySet()) {
+      roll -= rate.getValue();
+      if (roll < 0) {
+        return rate.getKey();
+      }
+    }
+    return null;
+  }
+
+  private Response route(Request request) throws HttpError, IOException {
+    List<String> path = request.path;
+    String method = request.method;
+    if (!path.isEmpty() && path.get(0).equals("batch") && method.equals("POST")) {
+      return batch(request);
+    }
+    boolean upload = !path.isEmpty() && path.get(0).equals("upload");
+    // Media downloads may go through /download/storage/v1/..., with alt=media as usual.
+    boolean download = !path.isEmpty() && path.get(0).equals("download");
+    List<String> api = upload || download ? path.subList(1, path.size()) : path;
+    if (api.size() >= 4 && api.get(0).equals("storage") && api.get(1).equals("v1")
+        && api.get(2).equals("b")) {
+      String bucketName = api.get(3);
+      if (upload) {
+        if (api.size() == 5 && api.get(4).equals("o")) {
+          if (method.equals("POST")) {
+            return insert(request, bucketName);
+          }
+          if (method.equals("PUT")) {
+            return uploadChunk(request);
+          }
+        }
+      } else if (download) {
+        if (api.size() == 6 && api.get(4).equals("o") && method.equals("GET")) {
+          return get(request, bucketName, api.get(5));
+        }
+      } else if (api.size() == 4 && method.equals("GET")) {
+        return json(request, 200, getBucket(bucketName));
+      } else if (api.size() == 5 && api.get(4).equals("o") && method.equals("GET")) {
+        return json(request, 200, list(request, bucketName));
+      } else if (api.size() >= 6 && api.get(4).equals("o")) {
+        String objectName = api.get(5);
+        if (api.size() == 6 && method.equals("GET")) {
+          return get(request, bucketName, objectName);
+        } else if (api.size() == 6 && method.equals("DELETE")) {
+          return delete(request, bucketName, objectName);
+        } else if (api.size() == 6 && method.equals("PATCH")) {
+          return json(request, 200, patch(request, bucketName, objectName));
+        } else if (api.size() == 7 && api.get(6).equals("compose") && method.equals("POST")) {
+          return json(request, 200, compose(request, bucketName, objectName));
+        } else if (api.size() == 7 && api.get(6).equals("acl") && method.equals("POST")) {
+          return json(request, 200, insertAcl(request, bucketName, objectName));
+        } else if (api.size() == 11 && api.get(7).equals("b") && api.get(9).equals("o")
+            && method.equals("POST")) {
+          if (api.get(6).equals("copyTo")) {
+            return json(request, 200,
+                copy(request, bucketName, objectName, api.get(8), api.get(10)));
+          }
+          if (api.get(6).equals("rewriteTo")) {
+            return json(request, 200,
+                rewrite(request, bucketName, objectName, api.get(8), api.get(10)));
+          }
+        }
+      }
+    }
+    throw new HttpError(404, "notFound", "Not found: " + method + " " + request.rawPath);
+  }
+
+  private Bucket getBucket(String bucketName) {
+    return new Bucket()
+        .setKind("storage#bucket")
+        .setId(bucketName)
+        .setName(bucketName)
+        .setLocation("US")
+        .setStorageClass("STANDARD")
+        .setMetageneration(1L)
+        .setTimeCreated(started)
+        .setUpdated(started);
+  }
+
+  private Objects list(Request request, String bucketName) throws HttpError {
+    String prefix = request.query("prefix") != null ? request.query("prefix") : "";
+    String delimiter = request.query("delimiter");
+    Long maxResults = request.queryLong("maxResults");
+    int pageSize = maxResults != null && maxResults > 0
+        ? (int) Math.min(maxResults, MAX_PAGE_SIZE) : MAX_PAGE_SIZE;
+    String pageToken = request.query("pageToken");
+    NavigableMap<String, Blob> bucket = bucket(bucketName);
+    NavigableMap<String, Blob> remaining = pageToken != null
+        ? bucket.tailMap(new String(BaseEncoding.base64Url().decode(pageToken),
+            StandardCharsets.UTF_8), false)
+        : bucket.tailMap(prefix, true);
+
+    List<StorageObject> items = new ArrayList<StorageObject>();
+    List<String> prefixes = new ArrayList<String>();
+    String lastPrefix = null;
+    String lastName = null;
+    boolean more = false;
+    for (Map.Entry<String, Blob> entry : remaining.entrySet()) {
+      String name = entry.getKey();
+      if (!name.startsWith(prefix)) {
+        break;
+      }
+      int end = delimiter != null ? name.indexOf(delimiter, prefix.length()) : -1;
+      if (end >= 0) {
+        String folder = name.substring(0, end + delimiter.length());
+        if (!folder.equals(lastPrefix)) {
+          // Prefixes count toward the page size, like items.
+          if (items.size() + prefixes.size() == pageSize) {
+            more = true;
+            break;
+          }
+          prefixes.add(folder);
+          lastPrefix = folder;
+        }
+      } else {
+        if (items.size() + prefixes.size() == pageSize) {
+          more = true;
+          break;
+        }
+        items.add(entry.getValue().metadata.clone());
+      }
+      lastName = name;
+    }
+
+    Objects page = new Objects().setKind("storage#objects");
+    if (!items.isEmpty()) {
+      page.setItems(items);
+    }
+    if (!prefixes.isEmpty()) {
+      page.setPrefixes(prefixes);
+    }
+    if (more) {
+      // The next page starts after the last name consumed, including those folded into a prefix.
+      page.setNextPageToken(
+          BaseEncoding.base64Url().encode(lastName.getBytes(StandardCharsets.UTF_8)));
+    }
+    return page;
+  }
+
+  private Response get(Request request, String bucketName, String objectName)
+      throws HttpError, IOException {
+    Blob blob = find(bucketName, objectName, request.queryLong("generation"));
+    checkGeneration(blob, request.queryLong("ifGenerationMatch"));
+    if (!"media".equals(request.query("alt"))) {
+      return json(request, 200, blob.metadata);
+    }
+    checkKey(blob, encryptionKey(request, ENCRYPTION_HEADERS));
+    StorageObject metadata = blob.metadata;
+    int length = blob.data.length;
+    int start = 0;
+    int end = length - 1;
+    String range = request.header("range");
+    Matcher matcher = range != null ? RANGE.matcher(range) : null;
+    boolean ranged = matcher != null && matcher.matches()
+        && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty());
+    if (ranged) {
+      if (matcher.group(1).isEmpty()) {
+        // A suffix range: the last n bytes.
+        start = (int) Math.max(0, length - Long.parseLong(matcher.group(2)));
+      } else {
+        start = (int) Math.min(Long.parseLong(matcher.group(1)), Integer.MAX_VALUE);
+        if (!matcher.group(2).isEmpty()) {
+          end = (int) Math.min(Long.parseLong(matcher.group(2)), length - 1);
+        }
+      }
+      if (start >= length || start > end) {
+        Response response = error(416, "requestedRangeNotSatisfiable",
+            "Requested range not satisfiable");
+        response.headers.put("Content-Range", "bytes */" + length);
+        return response;
+      }
+    }
+    Response response = new Response(ranged ? 206 : 200)
+        .body(metadata.getContentType(), blob.data, start, end - start + 1);
+    if (ranged) {
+      response.headers.put("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
+    if (metadata.getContentEncoding() != null) {
+      response.headers.put("Content-Encoding", metadata.getContentEncoding());
+    }
+    response.headers.put("x-goog-hash", "crc32c=" + metadata.getCrc32c()
+        + (metadata.getMd5Hash() != null ? ",md5=" + metadata.getMd5Hash() : ""));
+    response.headers.put("x-goog-generation", String.valueOf(metadata.getGeneration()));
+    response.headers.put("x-goog-metageneration", String.valueOf(metadata.getMetageneration()));
+    response.headers.put("x-goog-stored-content-length", String.valueOf(length));
+    response.headers.put("ETag", metadata.getEtag());
+    return response;
+  }
+
+  private Response delete(Request request, String bucketName, String objectName)
+      throws HttpError {
+    ConcurrentSkipListMap<String, Blob> bucket = bucket(bucketName);
+    synchronized (bucket) {
+      Blob blob = find(bucketName, objectName, request.queryLong("generation"));
+      checkGeneration(blob, request.queryLong("ifGenerationMatch"));
+      bucket.remove(objectName);
+    }
+    return new Response(204);
+  }
+
+  private StorageObject patch(Request request, String bucketName, String objectName)
+      throws HttpError, IOException {
+    StorageObject changes = parse(request.body, StorageObject.class);
+    ConcurrentSkipListMap<String, Blob> bucket = bucket(bucketName);
+    synchronized (bucket) {
+      Blob blob = find(bucketName, objectName, request.queryLong("generation"));
+      checkGeneration(blob, request.queryLong("ifGenerationMatch"));
+      Long ifMetagenerationMatch = request.queryLong("ifMetagenerationMatch");
+      if (ifMetagenerationMatch != null
+          && !ifMetagenerationMatch.equals(blob.metadata.getMetageneration())) {
+        throw new HttpError(412, "conditionNotMet", "Precondition Failed");
+      }
+      StorageObject metadata = blob.metadata.clone();
+      if (changes != null) {
+        for (Map.Entry<String, Object> field : changes.entrySet()) {
+          if (field.getKey().equals("metadata") && metadata.getMetadata() != null
+              && changes.getMetadata() != null) {
+            // Custom metadata is merged key by key; a null value removes the key.
+            Map<String, String> merged = new LinkedHashMap<String, String>(metadata.getMetadata());
+            for (Map.Entry<String, String> entry : changes.getMetadata().entrySet()) {
+              if (entry.getValue() == null || Data.isNull(entry.getValue())) {
+                merged.remove(entry.getKey());
+              } else {
+                merged.put(entry.getKey(), entry.getValue());
+              }
+            }
+            metadata.setMetadata(merged);
+          } else if (isSettable(field.getKey())) {
+            metadata.set(field.getKey(), field.getValue());
+          }
+        }
+      }
+      metadata.setMetageneration(metadata.getMetageneration() + 1)
+          .setUpdated(new DateTime(System.currentTimeMillis()));
+      bucket.put(objectName, new Blob(metadata, blob.data, blob.keySha256));
+      return metadata;
+    }
+  }
+
+  private StorageObject compose(Request request, String bucketName, String objectName)
+      throws HttpError, IOException {
+    ComposeRequest compose = parse(request.body, ComposeRequest.class);
+    if (compose == null || compose.getSourceObjects() == null
+        || compose.getSourceObjects().isEmpty()) {
+      throw new HttpError(400, "required", "Required: sourceObjects");
+    }
+    if (compose.getSourceObjects().size() > MAX_COMPOSE_SOURCES) {
+      throw new HttpError(400, "invalid",
+          "The number of source components provided exceeds " + MAX_COMPOSE_SOURCES);
+    }
+    String keySha256 = encryptionKey(request, ENCRYPTION_HEADERS);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    int componentCount = 0;
+    for (ComposeRequest.SourceObjects source : compose.getSourceObjects()) {
+      Blob part = find(bucketName, source.getName(), source.getGeneration());
+      if (source.getObjectPreconditions() != null) {
+        checkGeneration(part, source.getObjectPreconditions().getIfGenerationMatch());
+      }
+      checkKey(part, keySha256);
+      data.write(part.data);
+      componentCount += part.metadata.getComponentCount() != null
+          ? part.metadata.getComponentCount() : 1;
+    }
+    StorageObject destination = compose.getDestination() != null
+        ? compose.getDestination().clone() : new StorageObject();
+    return store(bucketName, destination.setName(objectName), data.toByteArray(), keySha256,
+        request.query("kmsKeyName"), componentCount, request.queryLong("ifGenerationMatch"))
+        .metadata;
+  }
+
+  private StorageObject copy(Request request, String sourceBucket, String sourceObject,
+      String destinationBucket, String destinationObject) throws HttpError, IOException {
+    Blob source = find(sourceBucket, sourceObject, request.queryLong("sourceGeneration"));
+    checkKey(source, encryptionKey(request, SOURCE_ENCRYPTION_HEADERS));
+    return store(destinationBucket,
+        destinationMetadata(source, request).setName(destinationObject), source.data,
+        encryptionKey(request, ENCRYPTION_HEADERS), request.query("destinationKmsKeyName"),
+        source.metadata.getComponentCount(), request.queryLong("ifGenerationMatch")).metadata;
+  }
+
+  private RewriteResponse rewrite(Request request, String sourceBucket, String sourceObject,
+      String destinationBucket, String destinationObject) throws HttpError, IOException {
+    Blob source = find(sourceBucket, sourceObject, request.queryLong("sourceGeneration"));
+    checkKey(source, encryptionKey(request, SOURCE_ENCRYPTION_HEADERS));
+    String destinationKey = encryptionKey(request, ENCRYPTION_HEADERS);
+
+    // A token names the rewrite it continues and how far that rewrite got.
+    String rewriteId = sourceBucket + "\n" + sourceObject + "\n" + source.metadata.getGeneration()
+        + "\n" + destinationBucket + "\n" + destinationObject;
+    long done = 0;
+    String token = request.query("rewriteToken");
+    if (token != null) {
+      String decoded;
+      try {
+        decoded = new String(BaseEncoding.base64Url().decode(token), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+        throw new HttpError(400, "invalid", "Invalid rewrite token");
+      }
+      int split = decoded.lastIndexOf('\n');
+      if (split < 0 || !decoded.substring(0, split).equals(rewriteId)) {
+        throw new HttpError(400, "invalid", "The rewrite token doesn't match this rewrite");
+      }
+      done = Long.parseLong(decoded.substring(split + 1));
+    }
+    long perCall = config.rewriteBytesPerCall;
+    Long maxBytesRewrittenPerCall = request.queryLong("maxBytesRewrittenPerCall");
+    if (maxBytesRewrittenPerCall != null) {
+      perCall = Math.min(perCall, maxBytesRewrittenPerCall);
+    }
+    long size = source.data.length;
+    done = Math.min(size, done + Math.max(1, perCall));
+
+    RewriteResponse response = new RewriteResponse()
+        .setKind("storage#rewriteResponse")
+        .setObjectSize(BigInteger.valueOf(size))
+        .setTotalBytesRewritten(BigInteger.valueOf(done));
+    if (done < size) {
+      return response.setDone(false).setRewriteToken(BaseEncoding.base64Url()
+          .encode((rewriteId + "\n" + done).getBytes(StandardCharsets.UTF_8)));
+    }
+    Blob written = store(destinationBucket,
+        destinationMetadata(source, request).setName(destinationObject), source.data,
+        destinationKey, request.query("destinationKmsKeyName"),
+        source.metadata.getComponentCount(), request.queryLong("ifGenerationMatch"));
+    return response.setDone(true).setResource(written.metadata);
+  }
+
+  private ObjectAccessControl insertAcl(Request request, String bucketName, String objectName)
+      throws HttpError, IOException {
+    ObjectAccessControl entry = parse(request.body, ObjectAccessControl.class);
+    if (entry == null || entry.getEntity() == null || entry.getRole() == null) {
+      throw new HttpError(400, "required", "Required: entity and role");
+    }
+    ConcurrentSkipListMap<String, Blob> bucket = bucket(bucketName);
+    synchronized (bucket) {
+      Blob blob = find(bucketName, objectName, request.queryLong("generation"));
+      StorageObject metadata = blob.metadata.clone();
+      entry.setKind("storage#objectAccessControl")
+          .setBucket(bucketName)
+          .setObject(objectName)
+          .setGeneration(metadata.getGeneration());
+      List<ObjectAccessControl> acl = new ArrayList<ObjectAccessControl>();
+      if (metadata.getAcl() != null) {
+        for (ObjectAccessControl existing : metadata.getAcl()) {
+          if (!entry.getEntity().equals(existing.getEntity())) {
+            acl.add(existing);
+          }
+        }
+      }
+      acl.add(entry);
+      metadata.setAcl(acl)
+          .setMetageneration(metadata.getMetageneration() + 1)
+          .setUpdated(new DateTime(System.currentTimeMillis()));
+      bucket.put(objectName, new Blob(metadata, blob.data, blob.keySha256));
+      return entry;
+    }
+  }
+
+  private Response insert(Request request, String bucketName) throws HttpError, IOException {
+    String uploadType = request.query("uploadType");
+    String keySha256 = encryptionKey(request, ENCRYPTION_HEADERS);
+    StorageObject requested;
+    byte[] data;
+    if ("resumable".equals(uploadType)) {
+      return startSession(request, bucketName, keySha256);
+    } else if ("multipart".equals(uploadType)) {
+      List<Part> parts = parseMultipart(request.body, request.header("content-type"));
+      if (parts.size() != 2) {
+        throw new HttpError(400, "invalid", "A multipart upload has a metadata and a media part");
+      }
+      requested = parse(parts.get(0).body, StorageObject.class);
+      requested = requested != null ? requested : new StorageObject();
+      if (requested.getContentType() == null) {
+        requested.setContentType(parts.get(1).headers.get("content-type"));
+      }
+      data = parts.get(1).body;
+    } else if (uploadType == null || "media".equals(uploadType)) {
+      requested = new StorageObject().setContentType(request.header("content-type"));
+      data = request.body;
+    } else {
+      throw new HttpError(400, "invalid", "Invalid uploadType: " + uploadType);
+    }
+    if (requested.getName() == null) {
+      requested.setName(request.query("name"));
+    }
+    return json(request, 200, store(bucketName, requested, data, keySha256,
+        request.query("kmsKeyName"), null, request.queryLong("ifGenerationMatch")).metadata);
+  }
+
+  private Response startSession(Request request, String bucketName, String keySha256)
+      throws HttpError, IOException {
+    StorageObject requested = parse(request.body, StorageObject.class);
+    requested = requested != null ? requested : new StorageObject();
+    if (requested.getName() == null) {
+      requested.setName(request.query("name"));
+    }
+    if (requested.getName() == null) {
+      throw new HttpError(400, "required", "Required: name");
+    }
+    if (requested.getContentType() == null) {
+      requested.setContentType(request.header("x-upload-content-type"));
+    }
+    String uploadId = UUID.randomUUID().toString();
+    sessions.put(uploadId, new UploadSession(bucketName, requested, keySha256,
+        request.query("kmsKeyName"), request.queryLong("ifGenerationMatch")));
+    Response response = new Response(200);
+    response.headers.put("Location", request.baseUrl + "upload/storage/v1/b/"
+        + URLEncoder.encode(bucketName, "UTF-8") + "/o?uploadType=resumable&upload_id="
+        + uploadId);
+    return response;
+  }
+
+  private Response uploadChunk(Request request) throws HttpError, IOException {
+    UploadSession session = request.query("upload_id") != null
+        ? sessions.get(request.query("upload_id")) : null;
+    if (session == null) {
+      throw new HttpError(404, "notFound", "No such upload session");
+    }
+    String keySha256 = encryptionKey(request, ENCRYPTION_HEADERS);
+    if (keySha256 != null && !keySha256.equals(session.keySha256)) {
+      throw new HttpError(400, "invalid", "The encryption key differs from the session's");
+    }
+    synchronized (session) {
+      if (session.result != null) {
+        return json(request, 200, session.result.metadata);
+      }
+      long received = session.received.size();
+      long first = received;
+      long total;
+      String contentRange = request.header("content-range");
+      if (contentRange == null) {
+        // The rest of the data in one request.
+        total = received + request.body.length;
+      } else {
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (!matcher.matches()) {
+          throw new HttpError(400, "invalid", "Invalid Content-Range: " + contentRange);
+        }
+        total = matcher.group(3).equals("*") ? -1 : Long.parseLong(matcher.group(3));
+        if (matcher.group(1) != null) {
+          first = Long.parseLong(matcher.group(1));
+          long last = Long.parseLong(matcher.group(2));
+          if (last - first + 1 != request.body.length) {
+            throw new HttpError(400, "invalid", "Content-Range doesn't match the body length");
+          }
+        } else if (request.body.length > 0) {
+          throw new HttpError(400, "invalid", "A status query has no body");
+        }
+      }
+      if (first > received) {
+        throw new HttpError(400, "invalid",
+            "Chunk starts at " + first + " but only " + received + " bytes were received");
+      }
+      // Bytes already received are resent after a lost response; keep only the new ones.
+      int skip = (int) (received - first);
+      if (skip < request.body.length) {
+        session.received.write(request.body, skip, request.body.length - skip);
+      }
+      received = session.received.size();
+      if (total >= 0 && received > total) {
+        throw new HttpError(400, "invalid", "Received more than the declared total");
+      }
+      if (total >= 0 && received == total) {
+        session.result = store(session.bucketName, session.requested,
+            session.received.toByteArray(), session.keySha256, session.kmsKeyName, null,
+            session.ifGenerationMatch);
+        session.received = null;
+        return json(request, 200, session.result.metadata);
+      }
+      Response response = new Response(308);
+      if (received > 0) {
+        response.headers.put("Range", "bytes=0-" + (received - 1));
+      }
+      return response;
+    }
+  }
+
+  private Response batch(Request request) throws HttpError, IOException {
+    List<Part> parts = parseMultipart(request.body, request.header("content-type"));
+    if (parts.size() > MAX_BATCH_SIZE) {
+      throw new HttpError(400, "invalid", "A batch holds at most " + MAX_BATCH_SIZE + " calls");
+    }
+    String boundary = "batch_" + UUID.randomUUID().toString().replace("-", "");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (Part part : parts) {
+      Response response = respond(parseEmbeddedRequest(part.body, request.baseUrl));
+      String contentId = part.headers.get("content-id");
+      StringBuilder head = new StringBuilder()
+          .append("--").append(boundary).append("\r\n")
+          .append("Content-Type: application/http\r\n");
+      if (contentId != null) {
+        head.append("Content-ID: ")
+            .append(contentId.startsWith("<")
+                ? "<response-" + contentId.substring(1) : "response-" + contentId)
+            .append("\r\n");
+      }
+      head.append("\r\nHTTP/1.1 ").append(response.status).append(' ')
+          .append(reasonPhrase(response.status)).append("\r\n");
+      for (Map.Entry<String, String> header : response.headers.entrySet()) {
+        head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+      }
+      head.append("Content-Length: ").append(response.length).append("\r\n\r\n");
+      out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+      out.write(response.body, response.offset, response.length);
+      out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+    out.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    byte[] body = out.toByteArray();
+    return new Response(200)
+        .body("multipart/mixed; boundary=" + boundary, body, 0, body.length);
+  }
+
+  private static Request parseEmbeddedRequest(byte[] part, String baseUrl)
+      throws HttpError, IOException {
+    String text = new String(part, StandardCharsets.ISO_8859_1);
+    int headEnd = text.indexOf("\r\n\r\n");
+    int separator = 4;
+    if (headEnd < 0) {
+      headEnd = text.length();
+      separator = 0;
+    }
+    String[] lines = text.substring(0, headEnd).split("\r\n");
+    String[] requestLine = lines[0].split(" ");
+    if (requestLine.length < 2) {
+      throw new HttpError(400, "invalid", "Invalid batch part: " + lines[0]);
+    }
+    Map<String, String> headers = new HashMap<String, String>();
+    for (int i = 1; i < lines.length; i++) {
+      int colon = lines[i].indexOf(':');
+      if (colon > 0) {
+        headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+            lines[i].substring(colon + 1).trim());
+      }
+    }
+    byte[] body = Arrays.copyOfRange(part, Math.min(part.length, headEnd + separator),
+        part.length);
+    String contentLength = headers.get("content-length");
+    if (contentLength != null) {
+      body = Arrays.copyOf(body, Math.min(body.length, Integer.parseInt(contentLength)));
+    }
+    URI uri = URI.create(requestLine[1]);
+    return new Request(requestLine[0], uri.getRawPath(), uri.getRawQuery(), headers, body,
+        baseUrl);
+  }
+
+  /**
+   * Splits a multipart body into its parts, given the request's Content-Type.
+   */
+  private static List<Part> parseMultipart(byte[] body, String contentType) throws HttpError {
+    Matcher boundaryMatcher = contentType != null
+        ? Pattern.compile("boundary=\"?([^\";]+)\"?").matcher(contentType) : null;
+    if (boundaryMatcher == null || !boundaryMatcher.find()) {
+      throw new HttpError(400, "invalid", "Expected a multipart body");
+    }
+    byte[] delimiter = ("--" + boundaryMatcher.group(1)).getBytes(StandardCharsets.ISO_8859_1);
+    List<Part> parts = new ArrayList<Part>();
+    int position = indexOf(body, delimiter, 0);
+    while (position >= 0) {
+      int start = position + delimiter.length;
+      if (start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') {
+        break;
+      }
+      // Skip the line break after the delimiter.
+      while (start < body.length && (body[start] == '\r' || body[start] == '\n')) {
+        start++;
+      }
+      int next = indexOf(body, delimiter, start);
+      if (next < 0) {
+        break;
+      }
+      int end = next;
+      // The line break before the next delimiter belongs to it.
+      if (end > start && body[end - 1] == '\n') {
+        end--;
+      }
+      if (end > start && body[end - 1] == '\r') {
+        end--;
+      }
+      parts.add(parsePart(Arrays.copyOfRange(body, start, end)));
+      position = next;
+    }
+    return parts;
+  }
+
+  private static Part parsePart(byte[] part) {
+    byte[] separator = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    int headEnd = indexOf(part, separator, 0);
+    Map<String, String> headers = new HashMap<String, String>();
+    if (headEnd < 0) {
+      return new Part(headers, part);
+    }
+    for (String line : new String(part, 0, headEnd, StandardCharsets.ISO_8859_1).split("\r\n")) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(),
+            line.substring(colon + 1).trim());
+      }
+    }
+    return new Part(headers, Arrays.copyOfRange(part, headEnd + separator.length, part.length));
+  }
+
+  private static int indexOf(byte[] data, byte[] pattern, int from) {
+    outer:
+    for (int i = from; i <= data.length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (data[i + j] != pattern[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Stores a new generation of an object, checking the caller's preconditions and hashes.
+   *
+   * @param requested the caller's metadata for the object, including its name.
+   * @param componentCount the number of components if the object is composite, or null.
+   */
+  private Blob store(String bucketName, StorageObject requested, byte[] data, String keySha256,
+      String kmsKeyName, Integer componentCount, Long ifGenerationMatch) throws HttpError {
+    String name = requested.getName();
+    if (name == null || name.isEmpty()) {
+      throw new HttpError(400, "required", "Required: name");
+    }
+    // GCS sends the CRC32C big-endian; Guava's HashCode bytes are little-endian.
+    String crc32c = BaseEncoding.base64().encode(
+        Ints.toByteArray(Hashing.crc32c().hashBytes(data).asInt()));
+    if (requested.getCrc32c() != null && !requested.getCrc32c().equals(crc32c)) {
+      throw new HttpError(400, "invalid", "Provided CRC32C \"" + requested.getCrc32c()
+          + "\" doesn't match calculated CRC32C \"" + crc32c + "\".");
+    }
+    String md5 = BaseEncoding.base64().encode(Hashing.md5().hashBytes(data).asBytes());
+    if (requested.getMd5Hash() != null && !requested.getMd5Hash().equals(md5)) {
+      throw new HttpError(400, "invalid", "Provided MD5 hash \"" + requested.getMd5Hash()
+          + "\" doesn't match calculated MD5 hash \"" + md5 + "\".");
+    }
+
+    long generation = generations.incrementAndGet();
+    DateTime now = new DateTime(System.currentTimeMillis());
+    StorageObject metadata = new StorageObject()
+        .setKind("storage#object")
+        .setId(bucketName + "/" + name + "/" + generation)
+        .setBucket(bucketName)
+        .setName(name)
+        .setGeneration(generation)
+        .setMetageneration(1L)
+        .setContentType(requested.getContentType() != null
+            ? requested.getContentType() : "application/octet-stream")
+        .setContentEncoding(requested.getContentEncoding())
+        .setContentDisposition(requested.getContentDisposition())
+        .setContentLanguage(requested.getContentLanguage())
+        .setCacheControl(requested.getCacheControl())
+        .setMetadata(requested.getMetadata())
+        .setAcl(requested.getAcl())
+        .setStorageClass(requested.getStorageClass() != null
+            ? requested.getStorageClass() : "STANDARD")
+        .setSize(BigInteger.valueOf(data.length))
+        .setCrc32c(crc32c)
+        .setEtag(BaseEncoding.base64().encode(
+            Long.toString(generation).getBytes(StandardCharsets.US_ASCII)))
+        .setTimeCreated(now)
+        .setUpdated(now);
+    if (componentCount == null) {
+      metadata.setMd5Hash(md5);
+    } else {
+      // Composite objects have no MD5, only a CRC32C.
+      metadata.setComponentCount(componentCount);
+    }
+    if (keySha256 != null) {
+      metadata.setCustomerEncryption(new StorageObject.CustomerEncryption()
+          .setEncryptionAlgorithm("AES256")
+          .setKeySha256(keySha256));
+    }
+    if (kmsKeyName != null) {
+      // Not in this client's model, but returned by the API.
+      metadata.set("kmsKeyName", kmsKeyName + "/cryptoKeyVersions/1");
+    }
+
+    Blob blob = new Blob(metadata, data, keySha256);
+    ConcurrentSkipListMap<String, Blob> bucket = bucket(bucketName);
+    synchronized (bucket) {
+      checkGeneration(bucket.get(name), ifGenerationMatch);
+      bucket.put(name, blob);
+    }
+    return blob;
+  }
+
+  /**
+   * Returns the metadata a copy or rewrite gives its destination: the request body's, if it has
+   * one, or else the source's.
+   */
+  private static StorageObject destinationMetadata(Blob source, Request request)
+      throws IOException {
+    StorageObject requested = parse(request.body, StorageObject.class);
+    StorageObject from = requested != null && !requested.isEmpty() ? requested : source.metadata;
+    StorageObject destination = new StorageObject();
+    for (Map.Entry<String, Object> field : from.entrySet()) {
+      if (isSettable(field.getKey())) {
+        destination.set(field.getKey(), field.getValue());
+      }
+    }
+    if (destination.getContentType() == null) {
+      destination.setContentType(source.metadata.getContentType());
+    }
+    return destination;
+  }
+
+  private static boolean isSettable(String field) {
+    switch (field) {
+      case "contentType":
+      case "contentEncoding":
+      case "contentDisposition":
+      case "contentLanguage":
+      case "cacheControl":
+      case "metadata":
+      case "acl":
+      case "storageClass":
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private ConcurrentSkipListMap<String, Blob> bucket(String bucketName) {
+    ConcurrentSkipListMap<String, Blob> bucket = buckets.get(bucketName);
+    if (bucket == null) {
+      ConcurrentSkipListMap<String, Blob> created = new ConcurrentSkipListMap<String, Blob>();
+      bucket = buckets.putIfAbsent(bucketName, created);
+      if (bucket == null) {
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  private Blob find(String bucketName, String objectName, Long generation) throws HttpError {
+    Blob blob = bucket(bucketName).get(objectName);
+    if (blob == null || (generation != null && !generation.equals(blob.metadata.getGeneration()))) {
+      throw new HttpError(404, "notFound", "No such object: " + bucketName + "/" + objectName);
+    }
+    return blob;
+  }
+
+  /**
+   * Checks an {@code ifGenerationMatch} precondition, where 0 means the object must not exist.
+   */
+  private static void checkGeneration(Blob blob, Long ifGenerationMatch) throws HttpError {
+    if (ifGenerationMatch == null) {
+      return;
+    }
+    long generation = blob != null ? blob.metadata.getGeneration() : 0;
+    if (generation != ifGenerationMatch) {
+      throw new HttpError(412, "conditionNotMet", "Precondition Failed");
+    }
+  }
+
+  /**
+   * Returns the SHA-256 of the customer-supplied key in the headers with the given prefix, after
+   * checking that it is the hash of the key sent, or null if there is no key.
+   */
+  private static String encryptionKey(Request request, String prefix) throws HttpError {
+    String algorithm = request.header(prefix + "algorithm");
+    String key = request.header(prefix + "key");
+    String keySha256 = request.header(prefix + "key-sha256");
+    if (algorithm == null && key == null && keySha256 == null) {
+      return null;
+    }
+    if (!"AES256".equals(algorithm) || key == null || keySha256 == null) {
+      throw new HttpError(400, "required",
+          "Customer-supplied encryption needs the algorithm (AES256), key and key hash headers");
+    }
+    byte[] keyBytes;
+    try {
+      keyBytes = BaseEncoding.base64().decode(key);
+    } catch (IllegalArgumentException e) {
+      throw new HttpError(400, "customerEncryptionKeyFormatIsInvalid", "Invalid encryption key");
+    }
+    if (keyBytes.length != 32) {
+      throw new HttpError(400, "customerEncryptionKeyFormatIsInvalid",
+          "The encryption key must be 256 bits");
+    }
+    if (!BaseEncoding.base64().encode(Hashing.sha256().hashBytes(keyBytes).asBytes())
+        .equals(keySha256)) {
+      throw new HttpError(400, "customerEncryptionKeySha256IsInvalid",
+          "The provided encryption key hash doesn't match the key");
+    }
+    return keySha256;
+  }
+
+  private static void checkKey(Blob blob, String keySha256) throws HttpError {
+    if (blob.keySha256 == null) {
+      if (keySha256 != null) {
+        throw new HttpError(400, "resourceNotEncryptedWithCustomerEncryptionKey",
+            "The target object is not encrypted by a customer-supplied encryption key.");
+      }
+    } else if (keySha256 == null) {
+      throw new HttpError(400, "resourceIsEncryptedWithCustomerEncryptionKey",
+          "The target object is encrypted by a customer-supplied encryption key.");
+    } else if (!blob.keySha256.equals(keySha256)) {
+      throw new HttpError(400, "customerEncryptionKeySha256IsInvalid",
+          "The provided encryption key is incorrect");
+    }
+  }
+
+  private static <T> T parse(byte[] body, Class<T> type) throws IOException {
+    if (body.length == 0) {
+      return null;
+    }
+    return JSON.fromString(new String(body, StandardCharsets.UTF_8), type);
+  }
+
+  private static Response json(int status, Object value) throws IOException {
+    byte[] body = JSON.toByteArray(value);
+    return new Response(status).body("application/json; charset=UTF-8", body, 0, body.length);
+  }
+
+  /**
+   * Returns a JSON response holding only the fields that the request's {@code fields} parameter
+   * selects, as GCS returns a partial response.
+   */
+  private static Response json(Request request, int status, Object value)
+      throws HttpError, IOException {
+    String fields = request.query("fields");
+    if (fields == null) {
+      return json(status, value);
+    }
+    Map<String, Object> selection = parseFields(fields);
+    return json(status, project(JSON.fromString(JSON.toString(value), Map.class), selection));
+  }
+
+  /**
+   * Parses a field selection such as {@code "nextPageToken,items(name,acl/entity)"} into a tree
+   * of field names. A field selected whole maps to null.
+   */
+  private static Map<String, Object> parseFields(String fields) throws HttpError {
+    int[] position = {0};
+    Map<String, Object> selection = parseSelection(fields, position);
+    if (position[0] != fields.length()) {
+      throw invalidFields(fields);
+    }
+    return selection;
+  }
+
+  private static Map<String, Object> parseSelection(String fields, int[] position)
+      throws HttpError {
+    Map<String, Object> selection = new LinkedHashMap<String, Object>();
+    parseField(fields, position, selection);
+    while (position[0] < fields.length() && fields.charAt(position[0]) == ',') {
+      position[0]++;
+      parseField(fields, position, selection);
+    }
+    return selection;
+  }
+
+  private static void parseField(String fields, int[] position, Map<String, Object> selection)
+      throws HttpError {
+    int start = position[0];
+    while (position[0] < fields.length() && ",/()".indexOf(fields.charAt(position[0])) < 0) {
+      position[0]++;
+    }
+    String name = fields.substring(start, position[0]).trim();
+    if (name.isEmpty()) {
+      throw invalidFields(fields);
+    }
+    Map<String, Object> subselection = null;
+    if (position[0] < fields.length() && fields.charAt(position[0]) == '/') {
+      // "a/b" selects b within a.
+      position[0]++;
+      subselection = new LinkedHashMap<String, Object>();
+      parseField(fields, position, subselection);
+    } else if (position[0] < fields.length() && fields.charAt(position[0]) == '(') {
+      position[0]++;
+      subselection = parseSelection(fields, position);
+      if (position[0] == fields.length() || fields.charAt(position[0]) != ')') {
+        throw invalidFields(fields);
+      }
+      position[0]++;
+    }
+    select(selection, name, subselection);
+  }
+
+  /**
+   * Adds a field to a selection, merging it with any earlier selection of the same field.
+   */
+  @SuppressWarnings("unchecked")
+  private static void select(Map<String, Object> selection, String name,
+      Map<String, Object> subselection) {
+    if (!selection.containsKey(name)) {
+      selection.put(name, subselection);
+      return;
+    }
+    Map<String, Object> selected = (Map<String, Object>) selection.get(name);
+    if (selected == null || subselection == null) {
+      selection.put(name, null);
+      return;
+    }
+    for (Map.Entry<String, Object> field : subselection.entrySet()) {
+      select(selected, field.getKey(), (Map<String, Object>) field.getValue());
+    }
+  }
+
+  /**
+   * Returns the selected fields of a parsed JSON value. A selection applies to each element of
+   * an array.
+   */
+  @SuppressWarnings("unchecked")
+  private static Object project(Object value, Map<String, Object> selection) {
+    if (selection == null) {
+      return value;
+    }
+    if (value instanceof List) {
+      List<Object> projected = new ArrayList<Object>();
+      for (Object element : (List<Object>) value) {
+        projected.add(project(element, selection));
+      }
+      return projected;
+    }
+    if (!(value instanceof Map)) {
+      return value;
+    }
+    Map<String, Object> object = (Map<String, Object>) value;
+    Map<String, Object> projected = new LinkedHashMap<String, Object>();
+    for (Map.Entry<String, Object> field : selection.entrySet()) {
+      if (object.containsKey(field.getKey())) {
+        projected.put(field.getKey(),
+            project(object.get(field.getKey()), (Map<String, Object>) field.getValue()));
+      }
+    }
+    return projected;
+  }
+
+  private static HttpError invalidFields(String fields) {
+    return new HttpError(400, "invalidParameter", "Invalid field selection " + fields);
+  }
+
+  private static Response error(int status, String reason, String message) {
+    Map<String, Object> detail = new LinkedHashMap<String, Object>();
+    detail.put("domain", "global");
+    detail.put("reason", reason);
+    detail.put("message", message);
+    Map<String, Object> error = new LinkedHashMap<String, Object>();
+    error.put("errors", Collections.singletonList(detail));
+    error.put("code", status);
+    error.put("message", message);
+    try {
+      return json(status, Collections.singletonMap("error", error));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String reasonPhrase(int status) {
+    switch (status) {
+      case 200:
+        return "OK";
+      case 204:
+        return "No Content";
+      case 206:
+        return "Partial Content";
+      case 308:
+        return "Resume Incomplete";
+      case 400:
+        return "Bad Request";
+      case 404:
+        return "Not Found";
+      case 412:
+        return "Precondition Failed";
+      case 416:
+        return "Requested Range Not Satisfiable";
+      case 429:
+        return "Too Many Requests";
+      case 503:
+        return "Service Unavailable";
+      default:
+        return status >= 500 ? "Internal Server Error" : "Error";
+    }
+  }
+
+  /**
+   * Runs a server until killed.
+   *
+   * <p>Usage: {@code LocalGcsServer [port] [bucket=directory ...]}, which seeds each bucket with
+   * the files under the directory. Fault injection is set with system properties:
+   * {@code -DlatencyMillis=min-max}, {@code -DbandwidthMBps=n} and
+   * {@code -DerrorRates=429:0.01,503:0.01}.</p>
+   */
+  public static void main(String[] args) throws Exception {
+    Builder builder = new Builder().port(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+    String latency = System.getProperty("latencyMillis");
+    if (latency != null) {
+      String[] range = latency.split("-");
+      builder.latencyMillis(Long.parseLong(range[0]),
+          Long.parseLong(range[range.length - 1]));
+    }
+    builder.bandwidthBytesPerSecond(Long.getLong("bandwidthMBps", 0) * 1024 * 1024);
+    String errorRates = System.getProperty("errorRates");
+    if (errorRates != null) {
+      for (String rate : errorRates.split(",")) {
+        String[] statusAndRate = rate.split(":");
+        builder.errorRate(Integer.parseInt(statusAndRate[0].trim()),
+            Double.parseDouble(statusAndRate[1].trim()));
+      }
+    }
+    LocalGcsServer server = builder.build();
+    for (int i = 1; i < args.length; i++) {
+      String[] seed = args[i].split("=", 2);
+      int count = server.putDirectory(seed[0], Paths.get(seed[1]));
+      System.out.println("Seeded gs://" + seed[0] + " with " + count + " objects from " + seed[1]);
+    }
+    System.out.println("Serving the GCS JSON API at " + server.getRootUrl()
+        + "; run the samples with -DstorageRootUrl=" + server.getRootUrl());
+    while (true) {
+      Thread.sleep(60000);
+      System.out.println(server);
+    }
+  }
+}
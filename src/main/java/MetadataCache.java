@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Bucket;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, expiring cache in front of bucket metadata reads.
+ *
+ * <p>Entries expire a fixed time after they are loaded and the least recently used entries are
+ * evicted once the cache is full. Concurrent misses for the same bucket share a single request.
+ * Changes made to a bucket through this process should be reported with
+ * {@link #invalidateBucket} so that readers never see metadata older than their own writes.</p>
+ *
+ * <p>Object metadata isn't cached: the conversion pipeline takes it from the listing, and
+ * readers that pick a generation to download need the current one.</p>
+ */
+public class MetadataCache {
+
+  /**
+   * Builds a {@link MetadataCache}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private long ttlSeconds = 60;
+    private long maxEntries = 10000;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * Sets how long metadata is served from memory before it is fetched again.
+     */
+    public Builder ttlSeconds(long ttlSeconds) {
+      this.ttlSeconds = ttlSeconds;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of buckets held in memory.
+     */
+    public Builder maxEntries(long maxEntries) {
+      this.maxEntries = maxEntries;
+      return this;
+    }
+
+    public MetadataCache build() {
+      return new MetadataCache(this);
+    }
+  }
+
+  private final LoadingCache<String, Bucket> buckets;
+
+  private MetadataCache(Builder builder) {
+    final Storage storage = builder.storage;
+    this.buckets = CacheBuilder.newBuilder()
+        .expireAfterWrite(builder.ttlSeconds, TimeUnit.SECONDS)
+        .maximumSize(builder.maxEntries)
+        .recordStats()
+        .build(new CacheLoader<String, Bucket>() {
+          @Override
+          public Bucket load(String bucketName) throws IOException {
+            return storage.buckets().get(bucketName).setProjection("full").execute();
+          }
+        });
+  }
+
+  /**
+   * Returns the bucket's full metadata, including its ACLs.
+   */
+  public Bucket getBucket(String bucketName) throws IOException {
+    return get(buckets, bucketName);
+  }
+
+  public void invalidateBucket(String bucketName) {
+    buckets.invalidate(bucketName);
+  }
+
+  public CacheStats getBucketStats() {
+    return buckets.stats();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = buckets.stats();
+    return String.format("buckets: %d hits, %d misses", stats.hitCount(), stats.missCount());
+  }
+
+  private static <K, V> V get(LoadingCache<K, V> cache, K key) throws IOException {
+    try {
+      return cache.get(key);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (UncheckedExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+}
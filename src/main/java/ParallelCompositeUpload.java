@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.ComposeRequest;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Throwables;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a large file as several component objects in parallel, then joins them with
+ * {@code objects().compose}.
+ *
+ * <p>Each component is read straight from a shared {@link FileChannel} range, so no part of the
+ * file is buffered in memory. A single compose call accepts at most 32 sources, so files with
+ * more parts are composed in several rounds. Temporary components are deleted once the final
+ * object exists.</p>
+ *
+ * <p>Note that composite objects have a CRC32C checksum but no MD5 hash. Each component is sent
+ * with the CRC32C of its range, which GCS checks before accepting it, and the components' CRCs
+ * are combined to check the composed object's.</p>
+ */
+public class ParallelCompositeUpload {
+
+  /** The maximum number of source objects in a single compose request. */
+  static final int MAX_COMPOSE_SOURCES = 32;
+
+  /**
+   * Builds a {@link ParallelCompositeUpload}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private long thresholdBytes = 256L * 1024 * 1024;
+    private long partSizeBytes = 64L * 1024 * 1024;
+    private int parallelism = 8;
+    private boolean cleanupOnFailure = true;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * Sets the file size from which {@link #shouldUse} recommends a composite upload.
+     */
+    public Builder thresholdBytes(long thresholdBytes) {
+      this.thresholdBytes = thresholdBytes;
+      return this;
+    }
+
+    public Builder partSizeBytes(long partSizeBytes) {
+      this.partSizeBytes = partSizeBytes;
+      return this;
+    }
+
+    /**
+     * Sets how many components are uploaded at the same time.
+     */
+    public Builder parallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Sets whether already-uploaded components are deleted when the upload fails. Keeping them
+     * can help diagnose failures, but they are billed like any other object.
+     */
+    public Builder cleanupOnFailure(boolean cleanupOnFailure) {
+      this.cleanupOnFailure = cleanupOnFailure;
+      return this;
+    }
+
+    public ParallelCompositeUpload build() {
+      return new ParallelCompositeUpload(this);
+    }
+  }
+
+  private final Storage storage;
+  private final long thresholdBytes;
+  private final long partSizeBytes;
+  private final int parallelism;
+  private final boolean cleanupOnFailure;
+
+  private ParallelCompositeUpload(Builder builder) {
+    this.storage = builder.storage;
+    this.thresholdBytes = builder.thresholdBytes;
+    this.partSizeBytes = builder.partSizeBytes;
+    this.parallelism = builder.parallelism;
+    this.cleanupOnFailure = builder.cleanupOnFailure;
+  }
+
+  /**
+   * Returns true if the file is large enough to benefit from a composite upload.
+   */
+  public boolean shouldUse(File file) {
+    return file.length() >= thresholdBytes && file.length() > partSizeBytes;
+  }
+
+  /**
+   * Uploads the file to the given bucket.
+   *
+   * @param file the file to upload.
+   * @param bucketName the name of the bucket to create the object in.
+   * @param metadata the destination object's metadata; must include its name.
+   * @return the metadata of the composed object.
+   */
+  public StorageObject upload(File file, String bucketName, StorageObject metadata)
+      throws IOException {
+    String tempPrefix = metadata.getName() + ".pcu-" + UUID.randomUUID() + "-";
+    List<String> tempObjects = Collections.synchronizedList(new ArrayList<String>());
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    boolean succeeded = false;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long length = channel.size();
+      List<Callable<StorageObject>> parts = new ArrayList<Callable<StorageObject>>();
+      int index = 0;
+      for (long offset = 0; offset < length; offset += partSizeBytes) {
+        parts.add(uploadPart(channel, offset, Math.min(partSizeBytes, length - offset),
+            bucketName, tempPrefix + index++, tempObjects));
+      }
+      List<StorageObject> components = invokeAll(executor, parts);
+      // The CRC32C of no bytes is zero.
+      long crc = 0;
+      for (int i = 0; i < components.size(); i++) {
+        crc = Checksums.combineCrc32c(crc, Checksums.decodeCrc32c(components.get(i).getCrc32c()),
+            Math.min(partSizeBytes, length - i * partSizeBytes));
+      }
+
+      // Compose in rounds of at most 32 sources until one round can produce the final object.
+      int round = 0;
+      while (components.size() > MAX_COMPOSE_SOURCES) {
+        List<Callable<StorageObject>> composes = new ArrayList<Callable<StorageObject>>();
+        for (int i = 0; i < components.size(); i += MAX_COMPOSE_SOURCES) {
+          List<StorageObject> group =
+              components.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, components.size()));
+          String name = tempPrefix + "r" + round + "-" + (i / MAX_COMPOSE_SOURCES);
+          composes.add(composeTemp(bucketName, group, name, tempObjects));
+        }
+        components = invokeAll(executor, composes);
+        round++;
+      }
+      StorageObject result = compose(bucketName, components, metadata);
+      Checksums.verifyCrc32c(metadata.getName(), result.getCrc32c(), crc);
+      succeeded = true;
+      return result;
+    } finally {
+      executor.shutdownNow();
+      // A part whose upload was already on the wire when the executor was stopped still records
+      // its name once it lands, so wait for it before deciding what to delete.
+      awaitTermination(executor);
+      if (succeeded || cleanupOnFailure) {
+        deleteQuietly(bucketName, tempObjects);
+      }
+    }
+  }
+
+  private Callable<StorageObject> uploadPart(
+      final FileChannel channel, final long offset, final long length,
+      final String bucketName, final String name, final List<String> tempObjects) {
+    return new Callable<StorageObject>() {
+      @Override
+      public StorageObject call() throws IOException {
+        // GCS rejects the component if what it receives doesn't match this checksum. The range
+        // is read through the page cache, which the upload then reads from again.
+        String crc32c = Checksums.encodeCrc32c(Checksums.crc32c(channel, offset, length));
+        Storage.Objects.Insert insert = storage.objects().insert(
+            bucketName, new StorageObject().setName(name).setCrc32c(crc32c),
+            new FileRangeContent("application/octet-stream", channel, offset, length));
+        insert.getMediaHttpUploader().setDisableGZipContent(true);
+        insert.setFields("name,generation,crc32c");
+        StorageObject part = insert.execute();
+        tempObjects.add(name);
+        return part;
+      }
+    };
+  }
+
+  private Callable<StorageObject> composeTemp(
+      final String bucketName, final List<StorageObject> sources, final String name,
+      final List<String> tempObjects) {
+    return new Callable<StorageObject>() {
+      @Override
+      public StorageObject call() throws IOException {
+        StorageObject composed = compose(bucketName, sources,
+            new StorageObject().setName(name).setContentType("application/octet-stream"));
+        tempObjects.add(name);
+        return composed;
+      }
+    };
+  }
+
+  private StorageObject compose(
+      String bucketName, List<StorageObject> sources, StorageObject destination)
+      throws IOException {
+    List<ComposeRequest.SourceObjects> sourceObjects =
+        new ArrayList<ComposeRequest.SourceObjects>();
+    for (StorageObject source : sources) {
+      // Pin each source's generation so a concurrent overwrite can't slip into the result.
+      sourceObjects.add(new ComposeRequest.SourceObjects()
+          .setName(source.getName())
+          .setGeneration(source.getGeneration()));
+    }
+    ComposeRequest request = new ComposeRequest()
+        .setSourceObjects(sourceObjects)
+        .setDestination(destination);
+    return storage.objects().compose(bucketName, destination.getName(), request).execute();
+  }
+
+  private void deleteQuietly(String bucketName, List<String> names) {
+    synchronized (names) {
+      for (String name : names) {
+        try {
+          storage.objects().delete(bucketName, name).execute();
+        } catch (IOException e) {
+          System.err.println("Could not delete temporary object " + name + ": " + e);
+        }
+      }
+    }
+  }
+
+  private static void awaitTermination(ExecutorService executor) {
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks)
+      throws IOException {
+    List<Future<T>> futures = new ArrayList<Future<T>>();
+    for (Callable<T> task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    List<T> results = new ArrayList<T>(futures.size());
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted during composite upload", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of a conversion pipeline: a fixed pool of workers fed by a bounded queue.
+ *
+ * <p>When the queue is full, {@link #submit} blocks the caller (usually the previous stage's
+ * worker) until space frees up, so a slow stage applies back-pressure upstream instead of
+ * letting work pile up in memory.</p>
+ *
+ * <p>The time each item spends in {@link Work#process} is recorded, and together with the queue
+ * depth is available through {@link PipelineStageMXBean}.</p>
+ *
+ * @param <T> the type of work item flowing through the pipeline.
+ */
+class PipelineStage<T> implements PipelineStageMXBean {
+
+  /**
+   * The work a stage performs on each item.
+   */
+  interface Work<T> {
+    void process(T item) throws Exception;
+  }
+
+  /**
+   * Receives the outcome of each item once it leaves the pipeline, either because the last stage
+   * finished it or because some stage failed on it.
+   */
+  interface Listener<T> {
+    void onComplete(T item);
+
+    void onFailure(T item, String stageName, Exception e);
+  }
+
+  private final String name;
+  private final Work<T> work;
+  private final ThreadPoolExecutor executor;
+  private final LatencyHistogram processMicros = new LatencyHistogram();
+  private PipelineStage<T> next;
+  private Listener<T> listener;
+
+  /**
+   * @param name the name of the stage, used for thread names and error reporting.
+   * @param threads the number of workers in this stage.
+   * @param queueCapacity the number of items that may wait for a worker before submit blocks.
+   * @param work the work to perform on each item.
+   */
+  PipelineStage(final String name, int threads, int queueCapacity, Work<T> work) {
+    this.name = name;
+    this.work = work;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(
+        threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        },
+        new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+              throw new RejectedExecutionException("Stage " + name + " has been shut down");
+            }
+            try {
+              // Block until a slot frees up rather than rejecting or running on the caller.
+              executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new RejectedExecutionException("Interrupted while queueing for " + name, e);
+            }
+          }
+        });
+    // All workers must exist before anything is queued directly via the rejection handler.
+    this.executor.prestartAllCoreThreads();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getWorkers() {
+    return executor.getCorePoolSize();
+  }
+
+  @Override
+  public int getActiveWorkers() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Returns the number of items waiting for a worker in this stage.
+   */
+  @Override
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public long getProcessed() {
+    return processMicros.getCount();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return processMicros.getMean() / 1000;
+  }
+
+  @Override
+  public double getP50Millis() {
+    return processMicros.getValueAtPercentile(50) / 1000.0;
+  }
+
+  @Override
+  public double getP99Millis() {
+    return processMicros.getValueAtPercentile(99) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return processMicros.getMax() / 1000.0;
+  }
+
+  /**
+   * Sets the stage that receives items after this one, or null if this is the last stage.
+   */
+  void setNext(PipelineStage<T> next) {
+    this.next = next;
+  }
+
+  void setListener(Listener<T> listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Queues an item for this stage, blocking while the queue is full.
+   */
+  void submit(final T item) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        try {
+          work.process(item);
+        } catch (Exception e) {
+          listener.onFailure(item, name, e);
+          return;
+        } finally {
+          processMicros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+        if (next != null) {
+          try {
+            next.submit(item);
+          } catch (RejectedExecutionException e) {
+            listener.onFailure(item, next.getName(), e);
+          }
+        } else {
+          listener.onComplete(item);
+        }
+      }
+    });
+  }
+
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ROOT, "%s: queued=%d active=%d/%d done=%d p50=%.1fms p99=%.1fms",
+        name, getQueueDepth(), getActiveWorkers(), getWorkers(), getProcessed(), getP50Millis(),
+        getP99Millis());
+  }
+}
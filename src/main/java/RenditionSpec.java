@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The set of output images (renditions) built from each source image.
+ *
+ * <p>A spec can be written as a comma-separated list of
+ * {@code WIDTHxHEIGHT:FORMAT:QUALITY:NAME_TEMPLATE} entries, for example
+ * {@code 100x50:jpeg:85:1xConvert/{name}.jpeg,200x100:jpeg:85:2xConvert/{name}.jpeg}.
+ * Name templates may use these placeholders:</p>
+ * <ul>
+ *   <li>{@code {name}} - the full source object name</li>
+ *   <li>{@code {base}} - the source object name without its extension</li>
+ *   <li>{@code {width}}, {@code {height}} - the rendition's bounding box</li>
+ *   <li>{@code {format}} - the rendition's output format</li>
+ * </ul>
+ */
+public class RenditionSpec {
+
+  /**
+   * One output image: a bounding box, an encoding and where to write the result.
+   */
+  public static class Rendition {
+    private final int width;
+    private final int height;
+    private final String format;
+    private final int quality;
+    private final String nameTemplate;
+
+    /**
+     * @param width the maximum width of the rendition.
+     * @param height the maximum height of the rendition.
+     * @param format the output format, e.g. "jpeg" or "png".
+     * @param quality the output quality from 1 to 100; ignored by lossless formats.
+     * @param nameTemplate the destination object name template.
+     */
+    public Rendition(int width, int height, String format, int quality, String nameTemplate) {
+      if (width <= 0 || height <= 0) {
+        throw new IllegalArgumentException("Invalid rendition size " + width + "x" + height);
+      }
+      this.width = width;
+      this.height = height;
+      this.format = format;
+      this.quality = quality;
+      this.nameTemplate = nameTemplate;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public String getFormat() {
+      return format;
+    }
+
+    public int getQuality() {
+      return quality;
+    }
+
+    public String getContentType() {
+      return "jpg".equalsIgnoreCase(format) ? "image/jpeg" : "image/" + format.toLowerCase();
+    }
+
+    /**
+     * Returns the destination object name for the given source object.
+     */
+    public String objectName(String sourceName) {
+      int dot = sourceName.lastIndexOf('.');
+      String base = dot > sourceName.lastIndexOf('/') ? sourceName.substring(0, dot) : sourceName;
+      return nameTemplate
+          .replace("{name}", sourceName)
+          .replace("{base}", base)
+          .replace("{width}", Integer.toString(width))
+          .replace("{height}", Integer.toString(height))
+          .replace("{format}", format);
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + ":" + format + ":" + quality + ":" + nameTemplate;
+    }
+  }
+
+  private final List<Rendition> renditions;
+
+  /**
+   * @param renditions the renditions to build; there must be at least one.
+   */
+  public RenditionSpec(List<Rendition> renditions) {
+    if (renditions.isEmpty()) {
+      throw new IllegalArgumentException("A rendition spec needs at least one rendition");
+    }
+    List<Rendition> sorted = new ArrayList<Rendition>(renditions);
+    // Largest first, so each rendition can be scaled down from the one before it.
+    Collections.sort(sorted, new Comparator<Rendition>() {
+      @Override
+      public int compare(Rendition a, Rendition b) {
+        return Long.compare((long) b.width * b.height, (long) a.width * a.height);
+      }
+    });
+    this.renditions = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Parses a spec written as comma-separated {@code WIDTHxHEIGHT:FORMAT:QUALITY:NAME_TEMPLATE}
+   * entries.
+   */
+  public static RenditionSpec parse(String spec) {
+    List<Rendition> renditions = new ArrayList<Rendition>();
+    for (String entry : spec.split(",")) {
+      String[] parts = entry.trim().split(":", 4);
+      String[] size = parts[0].split("x");
+      if (parts.length != 4 || size.length != 2) {
+        throw new IllegalArgumentException("Invalid rendition: " + entry);
+      }
+      renditions.add(new Rendition(
+          Integer.parseInt(size[0].trim()), Integer.parseInt(size[1].trim()),
+          parts[1].trim(), Integer.parseInt(parts[2].trim()), parts[3].trim()));
+    }
+    return new RenditionSpec(renditions);
+  }
+
+  /**
+   * Builds every rendition from one decoded source image.
+   *
+   * <p>Renditions are produced largest first, and each one is scaled down from the previous
+   * rendition whenever that is still at least as large, so the full-size source is only
+   * resampled once.</p>
+   *
+   * @return the scaled images, in the order of {@link #getRenditions()}.
+   */
+  public <T> List<T> render(ImageTransformer<T> transformer, T source) throws IOException {
+    return render(transformer, source, transformer.getWidth(source), transformer.getHeight(source));
+  }
+
+  /**
+   * Builds every rendition from a source image that may have been decoded at reduced
+   * resolution, sizing each rendition from the original dimensions so that it comes out the same
+   * as from a full-size decode.
+   *
+   * @param sourceWidth the width of the original image, e.g. from its header.
+   * @param sourceHeight the height of the original image.
+   * @return the scaled images, in the order of {@link #getRenditions()}.
+   */
+  public <T> List<T> render(
+      ImageTransformer<T> transformer, T source, int sourceWidth, int sourceHeight)
+      throws IOException {
+    List<T> results = new ArrayList<T>(renditions.size());
+    T base = source;
+    for (Rendition rendition : renditions) {
+      int[] size = ImageTransformer.fitWithin(
+          sourceWidth, sourceHeight, rendition.width, rendition.height);
+      if (transformer.getWidth(base) < size[0] || transformer.getHeight(base) < size[1]) {
+        base = source;
+      }
+      T scaled = transformer.scaleTo(base, size[0], size[1]);
+      results.add(scaled);
+      base = scaled;
+    }
+    return results;
+  }
+
+  /**
+   * Returns the renditions, largest bounding box first.
+   */
+  public List<Rendition> getRenditions() {
+    return renditions;
+  }
+
+  /**
+   * Returns the width of the smallest box that contains every rendition's box. A source decoded
+   * to fit this box (or larger) can produce every rendition.
+   */
+  public int getMaxWidth() {
+    int max = 0;
+    for (Rendition rendition : renditions) {
+      max = Math.max(max, rendition.getWidth());
+    }
+    return max;
+  }
+
+  /**
+   * Returns the height of the smallest box that contains every rendition's box.
+   */
+  public int getMaxHeight() {
+    int max = 0;
+    for (Rendition rendition : renditions) {
+      max = Math.max(max, rendition.getHeight());
+    }
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (Rendition rendition : renditions) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(rendition);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Uploads a file with the GCS resumable upload protocol, persisting the session so that an
+ * interrupted upload continues from the last confirmed byte instead of starting over.
+ *
+ * <p>After every chunk the session URI and the byte offset confirmed by the server are written
+ * to a small state file. If the upload fails, or the process restarts and uploads the same file
+ * to the same object again, the session is resumed: the server is asked how much it has, and
+ * only the remainder is sent. Any extra headers (such as CSEK headers) are sent with every
+ * request of the session, as GCS requires.</p>
+ *
+ * <p>The chunk size can optionally adapt to the measured throughput, aiming for chunks that take
+ * a fixed amount of time to send. Chunks are always a multiple of 256 KiB.</p>
+ */
+public class ResumableUpload {
+
+  /** Every chunk except the last must be a multiple of this size. */
+  static final int CHUNK_GRANULARITY = 256 * 1024;
+
+  private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+  /**
+   * Builds a {@link ResumableUpload}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private long chunkSizeBytes = 8L * 1024 * 1024;
+    private long minChunkSizeBytes = CHUNK_GRANULARITY;
+    private long maxChunkSizeBytes = 256L * 1024 * 1024;
+    private boolean adaptiveChunkSize = false;
+    private double targetChunkSeconds = 5;
+    private int maxRetries = 10;
+    private HttpHeaders headers = new HttpHeaders();
+    private Path stateFile;
+
+    /**
+     * @param storage a Storage object, ready for use.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    /**
+     * Sets the initial (or, without adaptation, fixed) chunk size. Rounded to 256 KiB.
+     */
+    public Builder chunkSizeBytes(long chunkSizeBytes) {
+      this.chunkSizeBytes = chunkSizeBytes;
+      return this;
+    }
+
+    /**
+     * Lets the chunk size follow the measured throughput, so each chunk takes about
+     * {@code targetChunkSeconds} to send, within the given bounds.
+     */
+    public Builder adaptiveChunkSize(
+        double targetChunkSeconds, long minChunkSizeBytes, long maxChunkSizeBytes) {
+      this.adaptiveChunkSize = true;
+      this.targetChunkSeconds = targetChunkSeconds;
+      this.minChunkSizeBytes = minChunkSizeBytes;
+      this.maxChunkSizeBytes = maxChunkSizeBytes;
+      return this;
+    }
+
+    /**
+     * Sets how many consecutive failed chunks are retried before giving up. The session state is
+     * kept either way, so a later call can still resume.
+     */
+    public Builder maxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Sets headers to send with every request of the session, e.g. CSEK headers.
+     */
+    public Builder headers(HttpHeaders headers) {
+      this.headers = headers;
+      return this;
+    }
+
+    /**
+     * Sets the file the session is persisted to. Without one, uploads can still recover from
+     * failed chunks but not from a restart.
+     */
+    public Builder stateFile(Path stateFile) {
+      this.stateFile = stateFile;
+      return this;
+    }
+
+    public ResumableUpload build() {
+      return new ResumableUpload(this);
+    }
+  }
+
+  private final Storage storage;
+  private final Builder config;
+
+  private ResumableUpload(Builder builder) {
+    this.storage = builder.storage;
+    this.config = builder;
+  }
+
+  /**
+   * Uploads the file, resuming a previous session for the same file and object if the state file
+   * has one.
+   *
+   * @param file the file to upload.
+   * @param bucketName the name of the bucket to create the object in.
+   * @param metadata the destination object's metadata; must include its name.
+   * @return the metadata of the uploaded object.
+   */
+  public StorageObject upload(File file, String bucketName, StorageObject metadata)
+      throws IOException {
+    String contentType = metadata.getContentType() != null
+        ? metadata.getContentType() : "application/octet-stream";
+    long length = file.length();
+    Properties state = loadState(file, bucketName, metadata.getName());
+    String sessionUri = state != null ? state.getProperty("sessionUri") : null;
+    long offset = -1;
+    if (sessionUri != null) {
+      offset = queryOffset(sessionUri, length);
+    }
+    if (offset < 0) {
+      // No session, or it expired: start a fresh one.
+      sessionUri = startSession(bucketName, metadata, contentType, length);
+      offset = 0;
+      state = newState(file, bucketName, metadata.getName(), sessionUri);
+      saveState(state, 0);
+    }
+
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long chunkSizeBytes = roundToGranularity(config.chunkSizeBytes);
+      int failures = 0;
+      while (true) {
+        long chunk = Math.min(chunkSizeBytes, length - offset);
+        long started = System.nanoTime();
+        HttpResponse response;
+        try {
+          response = putChunk(sessionUri, channel, offset, chunk, contentType, length);
+        } catch (IOException e) {
+          if (!isRetryable(e) || ++failures > config.maxRetries) {
+            throw e;
+          }
+          sleepBeforeRetry(failures);
+          // We don't know how much of the chunk arrived; ask the server.
+          long confirmed = queryOffset(sessionUri, length);
+          if (confirmed < 0) {
+            throw new IOException("Upload session for " + metadata.getName() + " expired", e);
+          }
+          offset = confirmed;
+          saveState(state, offset);
+          continue;
+        }
+        try {
+          if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+            long confirmed = confirmedOffset(response);
+            chunkSizeBytes = adaptChunkSize(
+                chunkSizeBytes, confirmed - offset, System.nanoTime() - started);
+            offset = confirmed;
+            failures = 0;
+            saveState(state, offset);
+            continue;
+          }
+          StorageObject result = response.parseAs(StorageObject.class);
+          deleteState();
+          return result;
+        } finally {
+          response.disconnect();
+        }
+      }
+    }
+  }
+
+  private String startSession(
+      String bucketName, StorageObject metadata, String contentType, long length)
+      throws IOException {
+    GenericUrl url = new GenericUrl(storage.getRootUrl() + "upload/" + storage.getServicePath()
+        + "b/" + bucketName + "/o");
+    url.put("uploadType", "resumable");
+    url.put("name", metadata.getName());
+    HttpRequest request = storage.getRequestFactory().buildPostRequest(
+        url, new JsonHttpContent(storage.getJsonFactory(), metadata));
+    HttpHeaders headers = newHeaders();
+    headers.set("X-Upload-Content-Type", contentType);
+    headers.set("X-Upload-Content-Length", length);
+    request.setHeaders(headers);
+    HttpResponse response = request.execute();
+    try {
+      String location = response.getHeaders().getLocation();
+      if (location == null) {
+        throw new IOException("No session URI in resumable upload response");
+      }
+      return location;
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private HttpResponse putChunk(String sessionUri, FileChannel channel, long offset, long chunk,
+      String contentType, long length) throws IOException {
+    HttpRequest request = storage.getRequestFactory().buildPutRequest(
+        new GenericUrl(sessionUri), new FileRangeContent(contentType, channel, offset, chunk));
+    HttpHeaders headers = newHeaders();
+    // An empty chunk (an empty file, or everything already sent) just finalizes the upload.
+    headers.setContentRange(chunk == 0
+        ? "bytes */" + length : "bytes " + offset + "-" + (offset + chunk - 1) + "/" + length);
+    request.setHeaders(headers);
+    request.setParser(storage.getObjectParser());
+    request.setFollowRedirects(false);
+    request.setThrowExceptionOnExecuteError(false);
+    // Retries are handled here, at the chunk level, so the server's offset can be re-checked.
+    request.setNumberOfRetries(0);
+    HttpResponse response = request.execute();
+    if (!response.isSuccessStatusCode()
+        && response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+      HttpResponseException e = new HttpResponseException(response);
+      response.disconnect();
+      throw e;
+    }
+    return response;
+  }
+
+  /**
+   * Asks the server how many bytes of the session it has.
+   *
+   * @return the confirmed offset, the file length if the upload already completed, or -1 if the
+   *     session no longer exists.
+   */
+  private long queryOffset(String sessionUri, long length) throws IOException {
+    HttpRequest request = storage.getRequestFactory().buildPutRequest(
+        new GenericUrl(sessionUri), new EmptyContent());
+    HttpHeaders headers = newHeaders();
+    headers.setContentRange("bytes */" + length);
+    request.setHeaders(headers);
+    request.setFollowRedirects(false);
+    request.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = request.execute();
+    try {
+      int status = response.getStatusCode();
+      if (status == STATUS_RESUME_INCOMPLETE) {
+        return confirmedOffset(response);
+      }
+      if (response.isSuccessStatusCode()) {
+        // Already complete; an empty final request returns the object's metadata.
+        return length;
+      }
+      if (status == 404 || status == 410) {
+        return -1;
+      }
+      throw new HttpResponseException(response);
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private static long confirmedOffset(HttpResponse response) {
+    // The Range header looks like "bytes=0-1234"; without one, nothing has been stored yet.
+    String range = response.getHeaders().getRange();
+    if (range == null) {
+      return 0;
+    }
+    return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+  }
+
+  private long adaptChunkSize(long chunkSizeBytes, long bytesSent, long elapsedNanos) {
+    if (!config.adaptiveChunkSize || bytesSent <= 0 || elapsedNanos <= 0) {
+      return chunkSizeBytes;
+    }
+    double bytesPerSecond = bytesSent / (elapsedNanos / 1e9);
+    long target = (long) (bytesPerSecond * config.targetChunkSeconds);
+    target = Math.max(config.minChunkSizeBytes, Math.min(config.maxChunkSizeBytes, target));
+    // Move halfway towards the target to smooth out noisy measurements.
+    return roundToGranularity((chunkSizeBytes + target) / 2);
+  }
+
+  private static boolean isRetryable(IOException e) {
+    if (!(e instanceof HttpResponseException)) {
+      // Connection resets, timeouts and the like.
+      return true;
+    }
+    int status = ((HttpResponseException) e).getStatusCode();
+    return status >= 500 || status == 408 || status == 429;
+  }
+
+  private static long roundToGranularity(long size) {
+    return Math.max(CHUNK_GRANULARITY, size / CHUNK_GRANULARITY * CHUNK_GRANULARITY);
+  }
+
+  private HttpHeaders newHeaders() {
+    HttpHeaders headers = new HttpHeaders();
+    headers.fromHttpHeaders(config.headers);
+    return headers;
+  }
+
+  private static void sleepBeforeRetry(int failures) throws IOException {
+    try {
+      Thread.sleep(Math.min(32000L, 500L << Math.min(failures, 6)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while retrying upload", e);
+    }
+  }
+
+  private Properties newState(File file, String bucketName, String objectName, String uri) {
+    Properties state = new Properties();
+    state.setProperty("sessionUri", uri);
+    state.setProperty("bucket", bucketName);
+    state.setProperty("object", objectName);
+    state.setProperty("file", file.getAbsolutePath());
+    state.setProperty("fileLength", Long.toString(file.length()));
+    state.setProperty("fileLastModified", Long.toString(file.lastModified()));
+    return state;
+  }
+
+  /**
+   * Returns the saved state if it describes an upload of this same file to this same object.
+   */
+  private Properties loadState(File file, String bucketName, String objectName)
+      throws IOException {
+    if (config.stateFile == null || !Files.exists(config.stateFile)) {
+      return null;
+    }
+    Properties state = new Properties();
+    try (InputStream in = Files.newInputStream(config.stateFile)) {
+      state.load(in);
+    }
+    Properties expected = newState(file, bucketName, objectName, "");
+    for (String key : new String[] {"bucket", "object", "file", "fileLength", "fileLastModified"}) {
+      if (!expected.getProperty(key).equals(state.getProperty(key))) {
+        return null;
+      }
+    }
+    return state;
+  }
+
+  private void saveState(Properties state, long confirmedBytes) throws IOException {
+    if (config.stateFile == null) {
+      return;
+    }
+    state.setProperty("confirmedBytes", Long.toString(confirmedBytes));
+    Path temp = config.stateFile.resolveSibling(config.stateFile.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      state.store(out, "Resumable upload session");
+    }
+    Files.move(temp, config.stateFile,
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void deleteState() throws IOException {
+    if (config.stateFile != null) {
+      Files.deleteIfExists(config.stateFile);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites many listed objects server-side, many at a time, for {@link KeyRotation} and
+ * {@link BucketMigration}.
+ *
+ * <p>Each object's rewrite is continued over as many calls as it takes. Its rewrite token is
+ * saved in a {@link RewriteTokens} after every call, and failed calls are retried with backoff.
+ * Failures are recorded per object in the job's {@link RewriteStats} and never stop the rest of
+ * the job.</p>
+ */
+class RewriteJob {
+
+  /**
+   * Chooses what to do with each listed object.
+   */
+  interface Planner {
+    /**
+     * Returns the rewrite that brings the object up to date, or null to skip it. Called on the
+     * listing thread, in listing order.
+     */
+    Storage.Objects.Rewrite plan(StorageObject object) throws IOException;
+  }
+
+  private final String name;
+  private final int concurrency;
+  private final int maxAttempts;
+  private final long reportIntervalSeconds;
+  private final RewriteTokens tokens;
+
+  /**
+   * @param name what progress reports call the job, e.g. "Key rotation".
+   * @param concurrency how many objects are rewritten at the same time.
+   * @param maxAttempts how many times a rewrite call is attempted before the object fails.
+   * @param stateFile the file to keep rewrite tokens in, or null to keep them in memory only.
+   * @param reportIntervalSeconds how often progress is printed; zero disables the reports.
+   */
+  RewriteJob(String name, int concurrency, int maxAttempts, Path stateFile,
+      long reportIntervalSeconds) {
+    this.name = name;
+    this.concurrency = concurrency;
+    this.maxAttempts = maxAttempts;
+    this.reportIntervalSeconds = reportIntervalSeconds;
+    this.tokens = new RewriteTokens(stateFile, name + " rewrite tokens");
+  }
+
+  /**
+   * Rewrites every listed object that the planner returns a rewrite for, and waits for the
+   * rewrites to finish.
+   */
+  void run(Iterator<StorageObject> listing, Planner planner, final RewriteStats stats)
+      throws IOException, InterruptedException {
+    tokens.load();
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    // Bounds the objects queued ahead of the workers, so a huge listing isn't held in memory.
+    final Semaphore permits = new Semaphore(concurrency * 2);
+
+    ScheduledExecutorService reporter = null;
+    if (reportIntervalSeconds > 0) {
+      reporter = Executors.newSingleThreadScheduledExecutor();
+      reporter.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          System.out.println(name + " progress: " + stats);
+        }
+      }, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    try {
+      while (listing.hasNext()) {
+        final StorageObject object = listing.next();
+        stats.listed.incrementAndGet();
+        final Storage.Objects.Rewrite rewrite;
+        try {
+          rewrite = planner.plan(object);
+        } catch (IOException e) {
+          fail(object, e, stats);
+          continue;
+        }
+        if (rewrite == null) {
+          stats.skipped.incrementAndGet();
+          continue;
+        }
+        permits.acquire();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              rewrite(object, rewrite, stats);
+              stats.completed.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+              fail(object, e, stats);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            } finally {
+              permits.release();
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    } finally {
+      // Any rewrite still running keeps its last saved token for the next run.
+      executor.shutdownNow();
+      if (reporter != null) {
+        reporter.shutdownNow();
+      }
+    }
+  }
+
+  private static void fail(StorageObject object, Exception e, RewriteStats stats) {
+    stats.fail(object.getName(), e.toString());
+    System.err.println("Failed to rewrite " + object.getName() + ": " + e);
+  }
+
+  private void rewrite(StorageObject source, Storage.Objects.Rewrite rewrite, RewriteStats stats)
+      throws IOException, InterruptedException {
+    String sourceName = source.getName();
+    Long generation = source.getGeneration();
+    // Tokens are keyed by source object; a token is tied to its source generation.
+    String token = tokens.get(sourceName, generation);
+    if (token != null) {
+      stats.resumed.incrementAndGet();
+    }
+    long rewritten = 0;
+    int failures = 0;
+    while (true) {
+      rewrite.setRewriteToken(token);
+      RewriteResponse response;
+      try {
+        HttpRequest request = rewrite.buildHttpRequest();
+        // Failed calls are retried by this loop; retries by the client's policy would multiply.
+        request.setNumberOfRetries(0);
+        response = request.execute().parseAs(RewriteResponse.class);
+      } catch (IOException e) {
+        if (!isRetryable(e) || ++failures >= maxAttempts) {
+          throw e;
+        }
+        Thread.sleep(Math.min(32000L, 500L << Math.min(failures - 1, 6)));
+        continue;
+      }
+      failures = 0;
+      stats.rewriteCalls.incrementAndGet();
+      long total = response.getTotalBytesRewritten().longValue();
+      stats.bytesRewritten.addAndGet(Math.max(0, total - rewritten));
+      rewritten = total;
+      if (Boolean.TRUE.equals(response.getDone())) {
+        tokens.put(sourceName, generation, null);
+        return;
+      }
+      token = response.getRewriteToken();
+      tokens.put(sourceName, generation, token);
+    }
+  }
+
+  private static boolean isRetryable(IOException e) {
+    if (!(e instanceof HttpResponseException)) {
+      return true;
+    }
+    int status = ((HttpResponseException) e).getStatusCode();
+    return status >= 500 || status == 408 || status == 429;
+  }
+}
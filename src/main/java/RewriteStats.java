@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and outcome of a job that rewrites many objects, such as a key rotation or a bucket
+ * migration.
+ */
+public abstract class RewriteStats {
+  private final long startNanos = System.nanoTime();
+  private final String completedLabel;
+  final AtomicLong listed = new AtomicLong();
+  final AtomicLong skipped = new AtomicLong();
+  final AtomicLong completed = new AtomicLong();
+  final AtomicLong resumed = new AtomicLong();
+  final AtomicLong rewriteCalls = new AtomicLong();
+  final AtomicLong bytesRewritten = new AtomicLong();
+  private final Map<String, String> failures = new TreeMap<String, String>();
+
+  /**
+   * @param completedLabel what the progress report calls the objects rewritten, e.g. "rotated".
+   */
+  RewriteStats(String completedLabel) {
+    this.completedLabel = completedLabel;
+  }
+
+  /**
+   * Returns the error of every object that could not be rewritten, by source object name.
+   */
+  public synchronized Map<String, String> getFailures() {
+    return Collections.unmodifiableMap(new TreeMap<String, String>(failures));
+  }
+
+  synchronized void fail(String objectName, String error) {
+    failures.put(objectName, error);
+  }
+
+  synchronized int getFailed() {
+    return failures.size();
+  }
+
+  public double getBytesPerSecond() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return seconds > 0 ? bytesRewritten.get() / seconds : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "listed=%d skipped=%d %s=%d resumed=%d failed=%d calls=%d rewritten=%dB (%.1f MB/sec)",
+        listed.get(), skipped.get(), completedLabel, completed.get(), resumed.get(), getFailed(),
+        rewriteCalls.get(), bytesRewritten.get(), getBytesPerSecond() / (1024 * 1024));
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * The rewrite tokens of objects whose multi-call rewrites are in progress, optionally kept in a
+ * state file so that an interrupted job continues each rewrite where it left off.
+ *
+ * <p>A token only continues the rewrite of the source generation it was issued for, so each is
+ * stored with that generation. The file is replaced atomically after every change.</p>
+ */
+class RewriteTokens {
+
+  private final Path stateFile;
+  private final String description;
+  // Object name -> "generation token".
+  private final Properties tokens = new Properties();
+
+  /**
+   * @param stateFile the file to keep the tokens in, or null to keep them in memory only.
+   * @param description the comment written at the top of the file.
+   */
+  RewriteTokens(Path stateFile, String description) {
+    this.stateFile = stateFile;
+    this.description = description;
+  }
+
+  /**
+   * Replaces the tokens in memory with those saved in the state file, if there is one.
+   */
+  synchronized void load() throws IOException {
+    tokens.clear();
+    if (stateFile != null && Files.exists(stateFile)) {
+      try (InputStream in = Files.newInputStream(stateFile)) {
+        tokens.load(in);
+      }
+    }
+  }
+
+  /**
+   * Returns the saved token for the given object generation, or null to start from scratch.
+   */
+  synchronized String get(String objectName, Long generation) {
+    String saved = tokens.getProperty(objectName);
+    if (saved == null) {
+      return null;
+    }
+    int space = saved.indexOf(' ');
+    return saved.substring(0, space).equals(String.valueOf(generation))
+        ? saved.substring(space + 1) : null;
+  }
+
+  /**
+   * Saves the token for the given object generation, or forgets the object's token if null.
+   */
+  synchronized void put(String objectName, Long generation, String token) throws IOException {
+    if (token == null) {
+      if (tokens.remove(objectName) == null) {
+        return;
+      }
+    } else {
+      tokens.setProperty(objectName, generation + " " + token);
+    }
+    if (stateFile == null) {
+      return;
+    }
+    Path temp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      tokens.store(out, description);
+    }
+    Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
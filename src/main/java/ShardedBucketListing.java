@@ -0,0 +1,481 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lazy view over the objects in a bucket that lists many prefixes of the bucket at once.
+ *
+ * <p>A single listing is one sequential chain of page requests. This listing first discovers
+ * the bucket's folder layout with delimiter listings, a few levels deep, and then lists every
+ * folder found (a shard) as its own chain of pages, several at a time. A full scan speeds up with
+ * the number of shards listed concurrently, as long as the bucket has enough folders.</p>
+ *
+ * <p>By default objects are returned in whatever order the shards produce them. In ordered mode
+ * they come back in name order, as from {@link BucketListing}; shards are then listed in order,
+ * with the next few shards listed ahead of the consumer. The objects stored directly at the
+ * discovered folder levels are held in memory until they are returned; everything else is
+ * buffered only up to a bounded number of objects. Iterate each listing to its end, or its
+ * shard workers stay blocked on their full buffers.</p>
+ */
+public class ShardedBucketListing extends BucketListing {
+
+  private static final String DELIMITER = "/";
+
+  /**
+   * Builds a {@link ShardedBucketListing}.
+   */
+  public static class Builder {
+    private final Storage client;
+    private final String bucketName;
+    private String prefix;
+    private String objectFields;
+    private Long pageSize;
+    private int concurrency = 16;
+    private int maxDepth = 2;
+    private boolean ordered = false;
+    private int bufferedObjects = 4000;
+
+    /**
+     * @param client a Storage object, ready for use.
+     * @param bucketName the name of the bucket to list.
+     */
+    public Builder(Storage client, String bucketName) {
+      this.client = client;
+      this.bucketName = bucketName;
+    }
+
+    /**
+     * Only lists objects whose names begin with this prefix. Defaults to null, for all objects.
+     */
+    public Builder prefix(String prefix) {
+      this.prefix = prefix;
+      return this;
+    }
+
+    /**
+     * Sets a comma-separated list of object fields to return (e.g.
+     * {@link BucketListing#CONVERSION_FIELDS}). Defaults to null, for the full object metadata.
+     */
+    public Builder objectFields(String objectFields) {
+      this.objectFields = objectFields;
+      return this;
+    }
+
+    public Builder pageSize(Long pageSize) {
+      this.pageSize = pageSize;
+      return this;
+    }
+
+    /**
+     * Sets how many shards (and, while discovering them, folders) are listed at the same time.
+     */
+    public Builder concurrency(int concurrency) {
+      this.concurrency = concurrency;
+      return this;
+    }
+
+    /**
+     * Sets how many folder levels below the prefix are expanded into shards. Expansion stops
+     * early once there are at least as many shards as {@link #concurrency}.
+     */
+    public Builder maxDepth(int maxDepth) {
+      this.maxDepth = maxDepth;
+      return this;
+    }
+
+    /**
+     * Sets whether objects are returned in name order. Defaults to false.
+     */
+    public Builder ordered(boolean ordered) {
+      this.ordered = ordered;
+      return this;
+    }
+
+    /**
+     * Sets how many listed objects may wait for the consumer, in total when unordered and per
+     * shard when ordered.
+     */
+    public Builder bufferedObjects(int bufferedObjects) {
+      this.bufferedObjects = bufferedObjects;
+      return this;
+    }
+
+    public ShardedBucketListing build() {
+      return new ShardedBucketListing(this);
+    }
+  }
+
+  private final Builder config;
+
+  private ShardedBucketListing(Builder builder) {
+    super(builder.client, builder.bucketName, builder.prefix, builder.objectFields,
+        builder.pageSize);
+    this.config = builder;
+  }
+
+  @Override
+  public Iterator<StorageObject> iterator() {
+    final AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(config.concurrency,
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "bucket-listing-shard-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      List<Object> entries = discover(executor);
+      return config.ordered
+          ? new OrderedIterator(entries, executor) : new UnorderedIterator(entries, executor);
+    } catch (RuntimeException e) {
+      executor.shutdownNow();
+      throw e;
+    }
+  }
+
+  @Override
+  public Spliterator<StorageObject> spliterator() {
+    if (config.ordered) {
+      return super.spliterator();
+    }
+    // Shards interleave, so an unordered stream must not promise encounter order.
+    return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.NONNULL);
+  }
+
+  /**
+   * Returns the listing as a name-ordered list of objects found during discovery and the shard
+   * prefixes left to list, one folder level deeper per round.
+   */
+  private List<Object> discover(ExecutorService executor) {
+    List<Object> entries = Collections.<Object>singletonList(
+        getPrefix() != null ? getPrefix() : "");
+    for (int depth = 0; depth < config.maxDepth && countShards(entries) < config.concurrency;
+        depth++) {
+      Map<String, Future<List<Object>>> expansions = new HashMap<String, Future<List<Object>>>();
+      for (Object entry : entries) {
+        if (entry instanceof String) {
+          expansions.put((String) entry, executor.submit(expand((String) entry)));
+        }
+      }
+      List<Object> expanded = new ArrayList<Object>();
+      for (Object entry : entries) {
+        if (entry instanceof String) {
+          // A folder's contents sort together, where the folder itself sorted.
+          expanded.addAll(await(expansions.get(entry)));
+        } else {
+          expanded.add(entry);
+        }
+      }
+      entries = expanded;
+    }
+    return entries;
+  }
+
+  /**
+   * Lists one level of a folder, returning its objects and subfolders in name order.
+   */
+  private Callable<List<Object>> expand(final String folder) {
+    return new Callable<List<Object>>() {
+      @Override
+      public List<Object> call() throws IOException {
+        List<Object> contents = new ArrayList<Object>();
+        Storage.Objects.List listRequest = newShardRequest(folder).setDelimiter(DELIMITER);
+        if (config.objectFields != null) {
+          listRequest.setFields("nextPageToken,prefixes,items(" + config.objectFields + ")");
+        }
+        String pageToken = null;
+        do {
+          Objects objects = listRequest.setPageToken(pageToken).execute();
+          List<Object> page = new ArrayList<Object>();
+          if (objects.getItems() != null) {
+            page.addAll(objects.getItems());
+          }
+          if (objects.getPrefixes() != null) {
+            page.addAll(objects.getPrefixes());
+          }
+          // Each page is in name order, but its objects and prefixes come as separate lists.
+          Collections.sort(page, new Comparator<Object>() {
+            @Override
+            public int compare(Object a, Object b) {
+              return sortKey(a).compareTo(sortKey(b));
+            }
+          });
+          contents.addAll(page);
+          pageToken = objects.getNextPageToken();
+        } while (pageToken != null);
+        return contents;
+      }
+    };
+  }
+
+  private Storage.Objects.List newShardRequest(String shardPrefix) throws IOException {
+    Storage.Objects.List listRequest = config.client.objects().list(getBucketName());
+    if (!shardPrefix.isEmpty()) {
+      listRequest.setPrefix(shardPrefix);
+    }
+    if (config.pageSize != null) {
+      listRequest.setMaxResults(config.pageSize);
+    }
+    return listRequest;
+  }
+
+  /**
+   * Lists every object under a shard prefix into a queue, followed by a {@link Done} marker.
+   */
+  private Runnable listShard(final String shardPrefix, final BlockingQueue<Object> queue) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        RuntimeException failure = null;
+        try {
+          for (StorageObject object : new BucketListing(config.client, getBucketName(),
+              shardPrefix.isEmpty() ? null : shardPrefix, config.objectFields, config.pageSize)) {
+            queue.put(object);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        } catch (RuntimeException e) {
+          failure = e;
+        }
+        try {
+          queue.put(new Done(failure));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+  }
+
+  private static int countShards(List<Object> entries) {
+    int shards = 0;
+    for (Object entry : entries) {
+      if (entry instanceof String) {
+        shards++;
+      }
+    }
+    return shards;
+  }
+
+  private static String sortKey(Object entry) {
+    return entry instanceof String ? (String) entry : ((StorageObject) entry).getName();
+  }
+
+  private <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while listing gs://" + getBucketName(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw new UncheckedIOException((IOException) cause);
+      }
+      throw new IllegalStateException("Failed to list gs://" + getBucketName(), cause);
+    }
+  }
+
+  /**
+   * Marks the end of a shard, carrying its failure if it failed.
+   */
+  private static class Done {
+    final RuntimeException failure;
+
+    Done(RuntimeException failure) {
+      this.failure = failure;
+    }
+  }
+
+  /**
+   * Returns the discovered objects, then the shards' objects as soon as any shard produces them.
+   */
+  private class UnorderedIterator implements Iterator<StorageObject> {
+    private final Iterator<Object> discovered;
+    private final BlockingQueue<Object> queue;
+    private final ExecutorService executor;
+    private int shardsLeft;
+    private StorageObject next;
+
+    UnorderedIterator(List<Object> entries, ExecutorService executor) {
+      this.queue = new ArrayBlockingQueue<Object>(config.bufferedObjects);
+      this.executor = executor;
+      List<Object> objects = new ArrayList<Object>();
+      for (Object entry : entries) {
+        if (entry instanceof String) {
+          executor.execute(listShard((String) entry, queue));
+          shardsLeft++;
+        } else {
+          objects.add(entry);
+        }
+      }
+      // Workers exit once the shards are listed.
+      executor.shutdown();
+      this.discovered = objects.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (discovered.hasNext()) {
+        next = (StorageObject) discovered.next();
+        return true;
+      }
+      while (shardsLeft > 0) {
+        Object item = take(queue, executor);
+        if (item instanceof Done) {
+          shardsLeft--;
+          if (((Done) item).failure != null) {
+            executor.shutdownNow();
+            throw ((Done) item).failure;
+          }
+        } else {
+          next = (StorageObject) item;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public StorageObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      StorageObject result = next;
+      next = null;
+      return result;
+    }
+  }
+
+  /**
+   * Returns the entries in name order, listing the shards up to {@code concurrency} ahead.
+   */
+  private class OrderedIterator implements Iterator<StorageObject> {
+    private final List<Object> entries;
+    private final ExecutorService executor;
+    // Entry index -> the queue of a shard that has been started but not yet consumed.
+    private final Map<Integer, BlockingQueue<Object>> started =
+        new HashMap<Integer, BlockingQueue<Object>>();
+    private int position;
+    private int nextToStart;
+    private BlockingQueue<Object> current;
+    private StorageObject next;
+
+    OrderedIterator(List<Object> entries, ExecutorService executor) {
+      this.entries = entries;
+      this.executor = executor;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null) {
+        if (current != null) {
+          Object item = take(current, executor);
+          if (item instanceof Done) {
+            current = null;
+            if (((Done) item).failure != null) {
+              executor.shutdownNow();
+              throw ((Done) item).failure;
+            }
+          } else {
+            next = (StorageObject) item;
+          }
+          continue;
+        }
+        if (position == entries.size()) {
+          executor.shutdown();
+          return false;
+        }
+        Object entry = entries.get(position);
+        if (entry instanceof String) {
+          startAhead();
+          current = started.remove(position);
+        } else {
+          next = (StorageObject) entry;
+        }
+        position++;
+      }
+      return true;
+    }
+
+    @Override
+    public StorageObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      StorageObject result = next;
+      next = null;
+      return result;
+    }
+
+    /**
+     * Keeps the shard at the current position, and the ones after it, listing in the background.
+     */
+    private void startAhead() {
+      nextToStart = Math.max(nextToStart, position);
+      // The current shard always has a worker, so the consumer never waits on an unstarted one.
+      while (nextToStart < entries.size() && started.size() < config.concurrency) {
+        Object entry = entries.get(nextToStart);
+        if (entry instanceof String) {
+          BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(config.bufferedObjects);
+          executor.execute(listShard((String) entry, queue));
+          started.put(nextToStart, queue);
+        }
+        nextToStart++;
+      }
+    }
+  }
+
+  private Object take(BlockingQueue<Object> queue, ExecutorService executor) {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      throw new IllegalStateException("Interrupted while listing gs://" + getBucketName(), e);
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+/**
+ * Downloads a large object as concurrent byte-range slices, written straight into a
+ * memory-mapped destination file.
+ *
+ * <p>The destination is pre-sized to the object's length and each slice is mapped and filled in
+ * place, so slices can complete in any order and nothing is buffered beyond a small copy buffer
+ * per slice. A failed slice is retried on its own, continuing from the last byte it wrote.
+ * Every slice request is pinned to the generation read up front, so a concurrent overwrite of
+ * the object can't produce a mixed file.</p>
+ *
+ * <p>Each slice computes the CRC32C of its bytes as they arrive; the slices' CRCs are combined
+ * and checked against the object's CRC32C once all of them are in.</p>
+ */
+public class SlicedDownload {
+
+  /**
+   * Builds a {@link SlicedDownload}.
+   */
+  public static class Builder {
+    private final Storage storage;
+    private int sliceSizeBytes = 64 * 1024 * 1024;
+    private int parallelism = 8;
+    private int maxRetriesPerSlice = 5;
+    private HttpHeaders headers = new HttpHeaders();
+
+    /**
+     * @param storage a Storage object, ready for use.
+     */
+    public Builder(Storage storage) {
+      this.storage = storage;
+    }
+
+    public Builder sliceSizeBytes(int sliceSizeBytes) {
+      this.sliceSizeBytes = sliceSizeBytes;
+      return this;
+    }
+
+    /**
+     * Sets how many slices are downloaded at the same time.
+     */
+    public Builder parallelism(int parallelism) {
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    public Builder maxRetriesPerSlice(int maxRetriesPerSlice) {
+      this.maxRetriesPerSlice = maxRetriesPerSlice;
+      return this;
+    }
+
+    /**
+     * Sets headers to send with every request, e.g. CSEK headers.
+     */
+    public Builder headers(HttpHeaders headers) {
+      this.headers = headers;
+      return this;
+    }
+
+    public SlicedDownload build() {
+      return new SlicedDownload(this);
+    }
+  }
+
+  private final Storage storage;
+  private final int sliceSizeBytes;
+  private final int parallelism;
+  private final int maxRetriesPerSlice;
+  private final HttpHeaders headers;
+
+  private SlicedDownload(Builder builder) {
+    this.storage = builder.storage;
+    this.sliceSizeBytes = builder.sliceSizeBytes;
+    this.parallelism = builder.parallelism;
+    this.maxRetriesPerSlice = builder.maxRetriesPerSlice;
+    this.headers = builder.headers;
+  }
+
+  /**
+   * Downloads the object into the destination file, replacing it if it exists. If the download
+   * fails, the partial file is deleted.
+   *
+   * @param bucketName the name of the bucket containing the object.
+   * @param objectName the name of the object to download.
+   * @param destination the file to write.
+   * @return the metadata of the downloaded object generation.
+   */
+  public StorageObject download(String bucketName, String objectName, Path destination)
+      throws IOException {
+    Storage.Objects.Get getMetadata = storage.objects().get(bucketName, objectName);
+    getMetadata.setRequestHeaders(newHeaders());
+    StorageObject metadata = getMetadata.execute();
+    long length = metadata.getSize().longValue();
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    boolean succeeded = false;
+    try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (length > 0) {
+        // Pre-size the file so every slice can be mapped independently.
+        channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+      }
+      List<Future<Long>> slices = new ArrayList<Future<Long>>();
+      for (long offset = 0; offset < length; offset += sliceSizeBytes) {
+        slices.add(executor.submit(downloadSlice(
+            metadata, channel, offset, (int) Math.min(sliceSizeBytes, length - offset))));
+      }
+      List<Long> sliceCrcs = awaitAll(slices);
+      // The CRC32C of no bytes is zero.
+      long crc = 0;
+      for (int i = 0; i < sliceCrcs.size(); i++) {
+        long sliceLength = Math.min(sliceSizeBytes, length - (long) i * sliceSizeBytes);
+        crc = Checksums.combineCrc32c(crc, sliceCrcs.get(i), sliceLength);
+      }
+      Checksums.verifyCrc32c(objectName, metadata.getCrc32c(), crc);
+      channel.force(false);
+      succeeded = true;
+      return metadata;
+    } finally {
+      executor.shutdownNow();
+      if (!succeeded) {
+        Files.deleteIfExists(destination);
+      }
+    }
+  }
+
+  /**
+   * Returns a task that downloads one slice and returns its CRC32C.
+   */
+  private Callable<Long> downloadSlice(
+      final StorageObject metadata, final FileChannel channel, final long offset,
+      final int length) {
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws IOException, InterruptedException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, length);
+        Checksum crc = Checksums.newCrc32c();
+        int failures = 0;
+        while (buffer.hasRemaining()) {
+          try {
+            readRange(metadata, offset + buffer.position(), buffer, crc);
+          } catch (IOException e) {
+            if (!isRetryable(e) || ++failures > maxRetriesPerSlice) {
+              throw e;
+            }
+            // Keep what this slice already has and ask only for the rest.
+            Thread.sleep(Math.min(16000L, 250L << Math.min(failures, 6)));
+          }
+        }
+        return crc.getValue();
+      }
+    };
+  }
+
+  private void readRange(StorageObject metadata, long start, MappedByteBuffer buffer,
+      Checksum crc) throws IOException {
+    Storage.Objects.Get getObject = storage.objects()
+        .get(metadata.getBucket(), metadata.getName())
+        .setGeneration(metadata.getGeneration());
+    HttpHeaders requestHeaders = newHeaders();
+    requestHeaders.setRange("bytes=" + start + "-" + (start + buffer.remaining() - 1));
+    getObject.setRequestHeaders(requestHeaders);
+    byte[] chunk = new byte[StorageUtils.BUFFER_SIZE];
+    try (InputStream in = getObject.executeMediaAsInputStream()) {
+      while (buffer.hasRemaining()) {
+        int n = in.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+        if (n < 0) {
+          throw new IOException("Range response for " + metadata.getName() + " ended early");
+        }
+        // Checksum the bytes while they are still in a small, cache-resident buffer.
+        crc.update(chunk, 0, n);
+        buffer.put(chunk, 0, n);
+      }
+    }
+  }
+
+  private HttpHeaders newHeaders() {
+    HttpHeaders requestHeaders = new HttpHeaders();
+    requestHeaders.fromHttpHeaders(headers);
+    return requestHeaders;
+  }
+
+  private static boolean isRetryable(IOException e) {
+    if (!(e instanceof HttpResponseException)) {
+      return true;
+    }
+    int status = ((HttpResponseException) e).getStatusCode();
+    return status >= 500 || status == 408 || status == 429;
+  }
+
+  private static <T> List<T> awaitAll(List<Future<T>> futures) throws IOException {
+    List<T> results = new ArrayList<T>(futures.size());
+    try {
+      for (Future<T> future : futures) {
+        results.add(future.get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted during sliced download", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+}
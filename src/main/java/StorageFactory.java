@@ -14,9 +14,13 @@
  * limitations under the License.
  */
 
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.storage.Storage;
@@ -25,38 +29,268 @@ import com.google.api.services.storage.StorageScopes;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.params.HttpParams;
 
 /**
  * This class manages the details of creating a Storage service, including auth.
+ *
+ * <p>{@link #getService()} returns a shared client built from the default {@link Builder}
+ * settings, or from the settings passed to {@link #configure} before first use. Once built, the
+ * client is read without any locking. Use a {@link Builder} directly for a separately tuned
+ * client.</p>
  */
 // [START authentication_application_default_credentials]
 public class StorageFactory {
-  private static Storage instance = null;
+  private static volatile Storage instance = null;
+  private static Builder defaultBuilder = new Builder();
+
+  public static Storage getService() throws IOException, GeneralSecurityException {
+    Storage service = instance;
+    if (service == null) {
+      // Only the very first callers contend here; afterwards the volatile read above suffices.
+      synchronized (StorageFactory.class) {
+        service = instance;
+        if (service == null) {
+          service = defaultBuilder.build();
+          instance = service;
+        }
+      }
+    }
+    return service;
+  }
 
-  public static synchronized Storage getService() throws IOException, GeneralSecurityException {
-    if (instance == null) {
-      instance = buildService();
+  /**
+   * Sets the settings used to build the shared client. Must be called before the first call to
+   * {@link #getService()}.
+   */
+  public static synchronized void configure(Builder builder) {
+    if (instance != null) {
+      throw new IllegalStateException("The shared Storage client has already been built");
     }
-    return instance;
+    defaultBuilder = builder;
   }
 
-  private static Storage buildService() throws IOException, GeneralSecurityException {
-    HttpTransport transport = GoogleNetHttpTransport.newTrustedTransport();
-    JsonFactory jsonFactory = new JacksonFactory();
-    GoogleCredential credential = GoogleCredential.getApplicationDefault(transport, jsonFactory);
+  /**
+   * Builds Storage clients with tuned HTTP transport and credential settings.
+   */
+  public static class Builder {
+    private boolean apacheTransport = false;
+    private int maxConnectionsPerRoute = 64;
+    private int maxConnectionsTotal = 256;
+    private int connectTimeoutMillis = 20000;
+    private int readTimeoutMillis = 20000;
+    private boolean keepAlive = true;
+    private long tokenRefreshAheadSeconds = 300;
+    private String applicationName = "GCS Samples";
+    private StorageMetrics metrics = StorageMetrics.getDefault();
+    private TrafficPolicy trafficPolicy = TrafficPolicy.getDefault();
+    private String rootUrl;
+    private boolean anonymous = false;
+
+    /**
+     * Uses a pooled Apache HttpClient transport instead of {@code HttpURLConnection}. The Apache
+     * pool honors the connection limits per client; the {@code HttpURLConnection} keep-alive pool
+     * is configured JVM-wide through the {@code http.maxConnections} system property.
+     */
+    public Builder useApacheTransport(boolean apacheTransport) {
+      this.apacheTransport = apacheTransport;
+      return this;
+    }
+
+    /**
+     * Sets how many connections to one host are kept open for reuse.
+     */
+    public Builder maxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    /**
+     * Sets the total connection limit of the Apache transport's pool.
+     */
+    public Builder maxConnectionsTotal(int maxConnectionsTotal) {
+      this.maxConnectionsTotal = maxConnectionsTotal;
+      return this;
+    }
+
+    public Builder connectTimeoutMillis(int connectTimeoutMillis) {
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      return this;
+    }
+
+    public Builder readTimeoutMillis(int readTimeoutMillis) {
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    public Builder keepAlive(boolean keepAlive) {
+      this.keepAlive = keepAlive;
+      return this;
+    }
+
+    /**
+     * Sets how long before expiry the access token is refreshed in the background, so that
+     * requests never wait on a token refresh. Zero refreshes lazily, on the request path.
+     */
+    public Builder tokenRefreshAheadSeconds(long tokenRefreshAheadSeconds) {
+      this.tokenRefreshAheadSeconds = tokenRefreshAheadSeconds;
+      return this;
+    }
+
+    public Builder applicationName(String applicationName) {
+      this.applicationName = applicationName;
+      return this;
+    }
+
+    /**
+     * Sets where the client records request latency, bytes and retries, or null to record
+     * nothing. Defaults to {@link StorageMetrics#getDefault()}.
+     */
+    public Builder metrics(StorageMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Sets the rate limit, in-flight limit and retry backoff the client's requests follow, or
+     * null to send requests unthrottled with the client library's default retries. Defaults to
+     * {@link TrafficPolicy#getDefault()}, which is shared with every other client built with
+     * defaults.
+     */
+    public Builder trafficPolicy(TrafficPolicy trafficPolicy) {
+      this.trafficPolicy = trafficPolicy;
+      return this;
+    }
+
+    /**
+     * Sends requests to the given root URL, with a trailing slash, instead of the public
+     * endpoint; e.g. the URL of a {@link LocalGcsServer}.
+     */
+    public Builder rootUrl(String rootUrl) {
+      this.rootUrl = rootUrl;
+      return this;
+    }
 
-    // Depending on the environment that provides the default credentials (for
-    // example: Compute Engine, App Engine), the credentials may require us to
-    // specify the scopes we need explicitly.  Check for this case, and inject
-    // the Cloud Storage scope if required.
-    if (credential.createScopedRequired()) {
-      Collection<String> scopes = StorageScopes.all();
-      credential = credential.createScoped(scopes);
+    /**
+     * Sends requests without credentials, e.g. to a {@link LocalGcsServer}, so that no
+     * application default credentials are needed.
+     */
+    public Builder anonymous(boolean anonymous) {
+      this.anonymous = anonymous;
+      return this;
     }
 
-    return new Storage.Builder(transport, jsonFactory, credential)
-        .setApplicationName("GCS Samples")
-        .build();
+    public Storage build() throws IOException, GeneralSecurityException {
+      HttpTransport transport = buildTransport();
+      JsonFactory jsonFactory = new JacksonFactory();
+      GoogleCredential credential = null;
+      if (!anonymous) {
+        credential = GoogleCredential.getApplicationDefault(transport, jsonFactory);
+
+        // Depending on the environment that provides the default credentials (for
+        // example: Compute Engine, App Engine), the credentials may require us to
+        // specify the scopes we need explicitly.  Check for this case, and inject
+        // the Cloud Storage scope if required.
+        if (credential.createScopedRequired()) {
+          Collection<String> scopes = StorageScopes.all();
+          credential = credential.createScoped(scopes);
+        }
+        if (tokenRefreshAheadSeconds > 0) {
+          refreshAhead(credential, tokenRefreshAheadSeconds);
+        }
+      }
+
+      final GoogleCredential requestCredential = credential;
+      final StorageMetrics requestMetrics = metrics;
+      final TrafficPolicy requestPolicy = trafficPolicy;
+      HttpRequestInitializer initializer = new HttpRequestInitializer() {
+        @Override
+        public void initialize(HttpRequest request) throws IOException {
+          if (requestCredential != null) {
+            requestCredential.initialize(request);
+          }
+          request.setConnectTimeout(connectTimeoutMillis);
+          request.setReadTimeout(readTimeoutMillis);
+          if (requestMetrics != null) {
+            // After the credential, so that it wraps the interceptors the credential installs.
+            requestMetrics.instrument(request);
+          }
+          if (requestPolicy != null) {
+            // Outermost, so that waiting for a slot doesn't count as request latency.
+            requestPolicy.attach(request);
+          }
+        }
+      };
+
+      Storage.Builder storage = new Storage.Builder(transport, jsonFactory, initializer)
+          .setApplicationName(applicationName);
+      if (rootUrl != null) {
+        storage.setRootUrl(rootUrl);
+      }
+      return storage.build();
+    }
+
+    private HttpTransport buildTransport() throws IOException, GeneralSecurityException {
+      if (!apacheTransport) {
+        // HttpURLConnection's keep-alive pool is JVM-wide and only configurable this way.
+        System.setProperty("http.keepAlive", Boolean.toString(keepAlive));
+        System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerRoute));
+        return GoogleNetHttpTransport.newTrustedTransport();
+      }
+      ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+          .trustCertificates(GoogleUtils.getCertificateTrustStore());
+      HttpParams params = builder.getHttpParams();
+      ConnManagerParams.setMaxConnectionsPerRoute(
+          params, new ConnPerRouteBean(maxConnectionsPerRoute));
+      ConnManagerParams.setMaxTotalConnections(params, maxConnectionsTotal);
+      ApacheHttpTransport transport = builder.build();
+      if (!keepAlive) {
+        ((AbstractHttpClient) transport.getHttpClient())
+            .setReuseStrategy(new NoConnectionReuseStrategy());
+      }
+      return transport;
+    }
+  }
+
+  private static final ScheduledExecutorService TOKEN_REFRESHER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "storage-token-refresh");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Keeps the credential's access token refreshed at least {@code aheadSeconds} before expiry.
+   * The credential only refreshes on the request path once its token is nearly expired, which
+   * stalls every request waiting on it; refreshing from a background thread avoids that.
+   */
+  private static void refreshAhead(final GoogleCredential credential, final long aheadSeconds) {
+    TOKEN_REFRESHER.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        Long expiresIn = credential.getExpiresInSeconds();
+        if (expiresIn == null || expiresIn <= aheadSeconds) {
+          try {
+            credential.refreshToken();
+          } catch (IOException e) {
+            // The credential will still refresh itself on the next request.
+            System.err.println("Background token refresh failed: " + e.getMessage());
+          }
+        }
+      }
+    }, 0, 30, TimeUnit.SECONDS);
   }
 }
 // [END authentication_application_default_credentials]
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency, byte and retry metrics for every request a Storage client sends, grouped by operation
+ * (list, get, download, insert, delete, rewrite, compose, ...).
+ *
+ * <p>{@link StorageFactory} attaches these to each request it builds; see
+ * {@link #instrument(HttpRequest)}. Each operation is published as an MXBean under the
+ * {@value #JMX_DOMAIN} domain as soon as it is first seen, and {@link #startLogging} prints a
+ * snapshot periodically. Latency runs from sending the request to receiving the response
+ * headers, and response bytes are counted from the Content-Length header.</p>
+ */
+public class StorageMetrics {
+
+  /** The JMX domain under which the samples publish their metrics. */
+  public static final String JMX_DOMAIN = "StorageSample";
+
+  /**
+   * The JMX view of one operation's metrics.
+   */
+  public interface OperationMXBean {
+    long getRequests();
+
+    long getErrors();
+
+    long getRetries();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getBytesPerSecond();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    /** Returns the number of responses by HTTP status, plus "io" for requests without one. */
+    Map<String, Long> getResponsesByStatus();
+
+    /** Returns the number of retries by the status (or "io") of the attempt that failed. */
+    Map<String, Long> getRetriesByCause();
+  }
+
+  /**
+   * The metrics of one operation.
+   */
+  public static class Operation implements OperationMXBean {
+    private final long startNanos = System.nanoTime();
+    private final LatencyHistogram latencyMicros = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> responsesByStatus =
+        new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> retriesByCause =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    void recordResponse(long micros, int statusCode, long responseBytes) {
+      latencyMicros.record(micros);
+      bytesIn.addAndGet(responseBytes);
+      increment(responsesByStatus, Integer.toString(statusCode));
+      if (statusCode >= 400) {
+        errors.incrementAndGet();
+      }
+    }
+
+    void recordIoError() {
+      errors.incrementAndGet();
+      increment(responsesByStatus, "io");
+    }
+
+    void recordRetry(String cause) {
+      retries.incrementAndGet();
+      increment(retriesByCause, cause);
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+      AtomicLong counter = counters.get(key);
+      if (counter == null) {
+        AtomicLong created = new AtomicLong();
+        counter = counters.putIfAbsent(key, created);
+        if (counter == null) {
+          counter = created;
+        }
+      }
+      counter.incrementAndGet();
+    }
+
+    private static Map<String, Long> snapshot(Map<String, AtomicLong> counters) {
+      Map<String, Long> snapshot = new TreeMap<String, Long>();
+      for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+        snapshot.put(entry.getKey(), entry.getValue().get());
+      }
+      return snapshot;
+    }
+
+    @Override
+    public long getRequests() {
+      return latencyMicros.getCount() + getIoErrors();
+    }
+
+    private long getIoErrors() {
+      AtomicLong ioErrors = responsesByStatus.get("io");
+      return ioErrors == null ? 0 : ioErrors.get();
+    }
+
+    @Override
+    public long getErrors() {
+      return errors.get();
+    }
+
+    @Override
+    public long getRetries() {
+      return retries.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+      return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+      return bytesOut.get();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+      double seconds = (System.nanoTime() - startNanos) / 1e9;
+      return seconds > 0 ? (bytesIn.get() + bytesOut.get()) / seconds : 0;
+    }
+
+    @Override
+    public double getMeanMillis() {
+      return latencyMicros.getMean() / 1000;
+    }
+
+    @Override
+    public double getP50Millis() {
+      return latencyMicros.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getP90Millis() {
+      return latencyMicros.getValueAtPercentile(90) / 1000.0;
+    }
+
+    @Override
+    public double getP99Millis() {
+      return latencyMicros.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getP999Millis() {
+      return latencyMicros.getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return latencyMicros.getMax() / 1000.0;
+    }
+
+    @Override
+    public Map<String, Long> getResponsesByStatus() {
+      return snapshot(responsesByStatus);
+    }
+
+    @Override
+    public Map<String, Long> getRetriesByCause() {
+      return snapshot(retriesByCause);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+          "requests=%d errors=%d retries=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms"
+              + " in=%dB out=%dB (%.1f KB/sec) status=%s retriedAfter=%s",
+          getRequests(), getErrors(), getRetries(), getP50Millis(), getP90Millis(),
+          getP99Millis(), getMaxMillis(), getBytesIn(), getBytesOut(),
+          getBytesPerSecond() / 1024, getResponsesByStatus(), getRetriesByCause());
+    }
+  }
+
+  private static volatile StorageMetrics defaultInstance;
+
+  /**
+   * Returns the metrics that {@link StorageFactory} records into unless told otherwise.
+   */
+  public static StorageMetrics getDefault() {
+    StorageMetrics metrics = defaultInstance;
+    if (metrics == null) {
+      synchronized (StorageMetrics.class) {
+        metrics = defaultInstance;
+        if (metrics == null) {
+          metrics = new StorageMetrics(true);
+          defaultInstance = metrics;
+        }
+      }
+    }
+    return metrics;
+  }
+
+  private final boolean publishToJmx;
+  private final ConcurrentMap<String, Operation> operations =
+      new ConcurrentHashMap<String, Operation>();
+
+  /**
+   * @param publishToJmx whether to register each operation as an MXBean.
+   */
+  public StorageMetrics(boolean publishToJmx) {
+    this.publishToJmx = publishToJmx;
+  }
+
+  /**
+   * Returns a snapshot of the operations seen so far, by name.
+   */
+  public Map<String, Operation> getOperations() {
+    return new TreeMap<String, Operation>(operations);
+  }
+
+  Operation operation(String name) {
+    Operation operation = operations.get(name);
+    if (operation == null) {
+      Operation created = new Operation();
+      operation = operations.putIfAbsent(name, created);
+      if (operation == null) {
+        operation = created;
+        if (publishToJmx) {
+          register("type=StorageOperation,name=" + name, created);
+        }
+      }
+    }
+    return operation;
+  }
+
+  /**
+   * Records the given request's latency, bytes, status and retries. Must be called after the
+   * credential (or anything else that sets interceptors) has initialized the request; those
+   * interceptors and handlers keep working as before.
+   */
+  public void instrument(HttpRequest request) {
+    final HttpExecuteInterceptor interceptor = request.getInterceptor();
+    final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+    final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+    final HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler =
+        request.getUnsuccessfulResponseHandler();
+    // One HttpRequest is executed again for every retry; these carry state between attempts.
+    // The method and URL are only set after initializers run, so the operation is looked up
+    // on the first attempt.
+    final Operation[] operation = new Operation[1];
+    final long[] attemptStartNanos = new long[1];
+    final boolean[] attemptRecorded = new boolean[1];
+    final String[] lastFailure = new String[1];
+
+    request.setInterceptor(new HttpExecuteInterceptor() {
+      @Override
+      public void intercept(HttpRequest request) throws IOException {
+        if (operation[0] == null) {
+          operation[0] = operation(operationName(request.getRequestMethod(), request.getUrl()));
+        }
+        if (lastFailure[0] != null) {
+          operation[0].recordRetry(lastFailure[0]);
+          lastFailure[0] = null;
+        }
+        attemptStartNanos[0] = System.nanoTime();
+        attemptRecorded[0] = false;
+        if (interceptor != null) {
+          interceptor.intercept(request);
+        }
+        HttpContent content = request.getContent();
+        if (content != null && content.getLength() > 0) {
+          operation[0].bytesOut.addAndGet(content.getLength());
+        }
+      }
+    });
+    // Unsuccessful responses reach the handler on every attempt; the response interceptor only
+    // sees the final response.
+    final HttpResponseInterceptor recorder = new HttpResponseInterceptor() {
+      @Override
+      public void interceptResponse(HttpResponse response) {
+        if (attemptRecorded[0]) {
+          return;
+        }
+        attemptRecorded[0] = true;
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - attemptStartNanos[0]);
+        Long length = response.getHeaders().getContentLength();
+        int status = response.getStatusCode();
+        operation[0].recordResponse(micros, status, length == null ? 0 : length);
+        // 308 is how resumable uploads confirm a chunk, not a failure.
+        lastFailure[0] = status >= 400 ? Integer.toString(status) : null;
+      }
+    };
+    request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+      @Override
+      public boolean handleResponse(HttpRequest request, HttpResponse response,
+          boolean supportsRetry) throws IOException {
+        recorder.interceptResponse(response);
+        return unsuccessfulResponseHandler != null
+            && unsuccessfulResponseHandler.handleResponse(request, response, supportsRetry);
+      }
+    });
+    request.setResponseInterceptor(new HttpResponseInterceptor() {
+      @Override
+      public void interceptResponse(HttpResponse response) throws IOException {
+        recorder.interceptResponse(response);
+        if (responseInterceptor != null) {
+          responseInterceptor.interceptResponse(response);
+        }
+      }
+    });
+    request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+      @Override
+      public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+          throws IOException {
+        if (operation[0] != null) {
+          operation[0].recordIoError();
+          lastFailure[0] = "io";
+        }
+        return ioExceptionHandler != null
+            && ioExceptionHandler.handleIOException(request, supportsRetry);
+      }
+    });
+  }
+
+  /**
+   * Names the operation a JSON API request performs, from its method and URL.
+   */
+  static String operationName(String method, GenericUrl url) {
+    List<String> path = url.getPathParts();
+    if (path.contains("batch")) {
+      return "batch";
+    }
+    if (path.contains("upload")) {
+      return "insert";
+    }
+    String last = path.isEmpty() ? "" : path.get(path.size() - 1);
+    if ("compose".equals(last)) {
+      return "compose";
+    }
+    if (path.contains("rewriteTo")) {
+      return "rewrite";
+    }
+    if (path.contains("copyTo")) {
+      return "copy";
+    }
+    if (path.contains("acl")) {
+      return "acl";
+    }
+    if (path.contains("o")) {
+      if ("o".equals(last)) {
+        return "GET".equals(method) ? "list" : "insert";
+      }
+      switch (method) {
+        case "GET":
+          return "media".equals(url.getFirst("alt")) ? "download" : "get";
+        case "DELETE":
+          return "delete";
+        case "PATCH":
+          return "patch";
+        case "PUT":
+          return "update";
+        default:
+          return method.toLowerCase(Locale.ROOT);
+      }
+    }
+    if (path.contains("b")) {
+      return "bucket." + method.toLowerCase(Locale.ROOT);
+    }
+    return method.toLowerCase(Locale.ROOT);
+  }
+
+  private static final ScheduledExecutorService LOGGER =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "storage-metrics-log");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Prints a snapshot of these metrics every {@code intervalSeconds}.
+   */
+  public void startLogging(long intervalSeconds) {
+    LOGGER.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        System.out.println(StorageMetrics.this);
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder snapshot = new StringBuilder("Storage metrics:");
+    for (Map.Entry<String, Operation> entry : getOperations().entrySet()) {
+      snapshot.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+    }
+    return snapshot.toString();
+  }
+
+  /**
+   * Registers an MXBean under {@link #JMX_DOMAIN}. Failures are reported but never fatal, since
+   * metrics are not worth failing a job over.
+   *
+   * @param keyProperties the rest of the object name, e.g. {@code type=Foo,name=bar}.
+   */
+  static void register(String keyProperties, Object mxBean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(mxBean, new ObjectName(JMX_DOMAIN + ":" + keyProperties));
+    } catch (InstanceAlreadyExistsException e) {
+      // Another instance already publishes under this name.
+    } catch (JMException e) {
+      System.err.println("Could not publish " + keyProperties + " to JMX: " + e);
+    }
+  }
+
+  static void unregister(String keyProperties) {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+          .unregisterMBean(new ObjectName(JMX_DOMAIN + ":" + keyProperties));
+    } catch (JMException e) {
+      // Never registered, or already gone.
+    }
+  }
+}
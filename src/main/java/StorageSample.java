@@ -13,6 +13,7 @@
  * the License.
  */
 
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Bucket;
@@ -31,7 +32,6 @@ import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
-import com.google.appengine.tools.cloudstorage.RetryParams;
 import com.google.apphosting.api.ApiProxy; 
 import com.google.apphosting.api.ApiProxy.ApiProxyException; 
 import com.google.apphosting.api.ApiProxy.Delegate; 
@@ -44,21 +44,23 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URISyntaxException;
-import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.CheckedInputStream;
 
-import javax.imageio.ImageIO;
 import javax.servlet.ServletContext;
 
 import org.apache.commons.lang.SerializationUtils;
@@ -74,6 +76,15 @@ public class StorageSample {
   /** Global instance of the JSON factory. */
   private static final String TEST_FILENAME = "json-test.txt";
 
+  private static volatile MetadataCache metadataCache;
+  private static volatile DiskObjectCache sourceCache;
+
+  /** The renditions main builds for each image, unless overridden with -Drenditions=... */
+  private static final String DEFAULT_RENDITIONS =
+      "100x50:jpeg:85:1xConvert/{base}.jpeg,"
+      + "200x100:jpeg:85:2xConvert/{base}.jpeg,"
+      + "300x150:jpeg:85:3xConvert/{base}.jpeg";
+
   // [START list_bucket]
   /**
    * Fetch a list of the objects within the given bucket.
@@ -103,6 +114,46 @@ public class StorageSample {
   }
   // [END list_bucket]
 
+  // [START list_bucket_lazily]
+  /**
+   * Lists the objects within the given bucket one page at a time, prefetching the next page
+   * while the caller consumes the current one. Unlike {@link #listBucket(String)}, this never
+   * holds more than a couple of pages in memory.
+   *
+   * @param bucketName the name of the bucket to list.
+   * @param prefix only list objects whose names begin with this prefix, or null for all objects.
+   * @return a lazy listing of the contents of the specified bucket, carrying only the fields
+   *     needed for conversion.
+   */
+  public static BucketListing listBucketLazily(String bucketName, String prefix)
+      throws IOException, GeneralSecurityException {
+    Storage client = StorageFactory.getService();
+    return new BucketListing(
+        client, bucketName, prefix, BucketListing.CONVERSION_FIELDS, null);
+  }
+  // [END list_bucket_lazily]
+
+  // [START list_bucket_sharded]
+  /**
+   * Lists the objects within the given bucket like {@link #listBucketLazily}, but lists the
+   * bucket's folders in parallel. Suited to full scans of very large buckets, where a single
+   * chain of page requests takes too long.
+   *
+   * @param bucketName the name of the bucket to list.
+   * @param prefix only list objects whose names begin with this prefix, or null for all objects.
+   * @return a lazy listing of the contents of the specified bucket, in no particular order,
+   *     carrying only the fields needed for conversion.
+   */
+  public static BucketListing listBucketSharded(String bucketName, String prefix)
+      throws IOException, GeneralSecurityException {
+    Storage client = StorageFactory.getService();
+    return new ShardedBucketListing.Builder(client, bucketName)
+        .prefix(prefix)
+        .objectFields(BucketListing.CONVERSION_FIELDS)
+        .build();
+  }
+  // [END list_bucket_sharded]
+
   // [START get_bucket]
   /**
    * Fetches the metadata for the given bucket.
@@ -111,18 +162,56 @@ public class StorageSample {
    * @return a Bucket containing the bucket's metadata.
    */
   public static Bucket getBucket(String bucketName) throws IOException, GeneralSecurityException {
-    Storage client = StorageFactory.getService();
-
-    Storage.Buckets.Get bucketRequest = client.buckets().get(bucketName);
-    // Fetch the full set of the bucket's properties (e.g. include the ACLs in the response)
-    bucketRequest.setProjection("full");
-    return bucketRequest.execute();
+    // Fetches the full set of the bucket's properties (e.g. include the ACLs in the response),
+    // reusing a recent answer when there is one.
+    return getMetadataCache().getBucket(bucketName);
   }
   // [END get_bucket]
 
+  /**
+   * Returns the metadata cache shared by this sample's helpers.
+   */
+  static MetadataCache getMetadataCache() throws IOException, GeneralSecurityException {
+    MetadataCache cache = metadataCache;
+    if (cache == null) {
+      synchronized (StorageSample.class) {
+        cache = metadataCache;
+        if (cache == null) {
+          cache = new MetadataCache.Builder(StorageFactory.getService()).build();
+          metadataCache = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Returns the local disk cache of downloaded objects shared by this sample's helpers. It lives
+   * in the directory named by -DsourceCache (by default under the temp directory) and holds up
+   * to -DsourceCacheMB megabytes (by default 1024).
+   */
+  static DiskObjectCache getSourceCache() throws IOException {
+    DiskObjectCache cache = sourceCache;
+    if (cache == null) {
+      synchronized (StorageSample.class) {
+        cache = sourceCache;
+        if (cache == null) {
+          Path directory = Paths.get(System.getProperty("sourceCache",
+              Paths.get(System.getProperty("java.io.tmpdir"), "storage-sample-cache").toString()));
+          cache = new DiskObjectCache.Builder(directory)
+              .maxBytes(Long.getLong("sourceCacheMB", 1024) * 1024 * 1024)
+              .build();
+          sourceCache = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
   // [START upload_stream]
   /**
-   * Uploads data to an object in a bucket.
+   * Uploads data to an object in a bucket. Files above the default composite upload threshold
+   * are uploaded as parallel components and composed.
    *
    * @param name the name of the destination object.
    * @param contentType the MIME type of the data.
@@ -132,23 +221,58 @@ public class StorageSample {
   public static void uploadFile(
       String name, String contentType, File file, String bucketName)
       throws IOException, GeneralSecurityException {
-    InputStreamContent contentStream = new InputStreamContent(
-        contentType, new FileInputStream(file));
-    // Setting the length improves upload performance
-    contentStream.setLength(file.length());
+    uploadFile(name, contentType, file, bucketName,
+        new ParallelCompositeUpload.Builder(StorageFactory.getService()).build());
+  }
+
+  /**
+   * Uploads data to an object in a bucket, using a parallel composite upload when the file is
+   * above the upload's threshold.
+   *
+   * @param name the name of the destination object.
+   * @param contentType the MIME type of the data.
+   * @param file the file to upload.
+   * @param bucketName the name of the bucket to create the object in.
+   * @param compositeUpload the composite upload settings for large files.
+   */
+  public static void uploadFile(
+      String name, String contentType, File file, String bucketName,
+      ParallelCompositeUpload compositeUpload)
+      throws IOException, GeneralSecurityException {
     StorageObject objectMetadata = new StorageObject()
         // Set the destination object name
         .setName(name)
+        .setContentType(contentType)
         // Set the access control list to publicly read-only
         .setAcl(Arrays.asList(
             new ObjectAccessControl().setEntity("allUsers").setRole("READER")));
 
+    if (compositeUpload.shouldUse(file)) {
+      // Large files upload faster as several parallel streams.
+      compositeUpload.upload(file, bucketName, objectMetadata);
+      return;
+    }
+
+    // The CRC32C is computed as the upload reads the file, and checked against GCS's.
+    CheckedInputStream checkedStream =
+        new CheckedInputStream(new FileInputStream(file), Checksums.newCrc32c());
+    InputStreamContent contentStream = new InputStreamContent(contentType, checkedStream);
+    // Setting the length improves upload performance
+    contentStream.setLength(file.length());
+
     // Do the insert
     Storage client = StorageFactory.getService();
     Storage.Objects.Insert insertRequest = client.objects().insert(
         bucketName, objectMetadata, contentStream);
 
-    insertRequest.execute();
+    StorageObject written = insertRequest.execute();
+    try {
+      Checksums.verifyCrc32c(name, written.getCrc32c(), checkedStream.getChecksum().getValue());
+    } catch (IOException e) {
+      // Don't leave corrupt data in place of the file.
+      client.objects().delete(bucketName, name).setGeneration(written.getGeneration()).execute();
+      throw e;
+    }
   }
   // [END upload_stream]
 
@@ -165,113 +289,189 @@ public class StorageSample {
     client.objects().delete(bucketName, path).execute();
   }
   // [END delete_object]
+
+  // [START delete_objects]
+  /**
+   * Deletes many objects in a bucket, up to 100 per batch request.
+   *
+   * @param paths the paths to the objects to delete.
+   * @param bucketName the bucket the objects are contained in.
+   * @return the outcome for each object.
+   */
+  public static List<BatchOperations.Result> deleteObjects(
+      Iterable<String> paths, String bucketName)
+      throws IOException, GeneralSecurityException {
+    Storage client = StorageFactory.getService();
+    return new BatchOperations.Builder(client).build().deleteObjects(bucketName, paths);
+  }
+  // [END delete_objects]
+
+  // [START migrate_objects]
+  /**
+   * Copies the objects under a prefix to another bucket, changing their storage class on the
+   * way. The copies are made by GCS itself, so no object data passes through this process.
+   * Objects already copied by an earlier run are skipped.
+   *
+   * @param sourceBucket the bucket to copy objects from.
+   * @param sourcePrefix only copy objects whose names begin with this prefix, or null for all.
+   * @param destinationBucket the bucket to copy objects to.
+   * @param storageClass the storage class of the copies, or null for the bucket's default.
+   * @return the migration's counters and per-object failures.
+   */
+  public static BucketMigration.MigrationStats migrateObjects(String sourceBucket,
+      String sourcePrefix, String destinationBucket, String storageClass)
+      throws IOException, GeneralSecurityException, InterruptedException {
+    Storage client = StorageFactory.getService();
+    return new BucketMigration.Builder(client, sourceBucket, destinationBucket)
+        .sourcePrefix(sourcePrefix)
+        .destinationPrefix(sourcePrefix)
+        .storageClass(storageClass)
+        .build()
+        .migrate();
+  }
+  // [END migrate_objects]
 	
-public static byte[] extractBytes (String ImageName) throws IOException {
-	  // open image
-	
-	// open image
-	  String imgPath = "https://storage.googleapis.com/laykart-165108.appspot.com/" + ImageName;
-	 System.out.println("Image Path::::::: " + imgPath);
-	  //File imgPath = new File("https://storage.googleapis.com/laykart-165108.appspot.com/" + ImageName);
-	  URL url=new URL(imgPath);
-	  //Image image = ImageIO.read(url);
-		
-	  BufferedImage bufferedImage = ImageIO.read(url);
-
-	  // get DataBufferBytes from Raster
-	  WritableRaster raster = bufferedImage .getRaster();
-	  DataBufferByte data   = (DataBufferByte) raster.getDataBuffer();
-
-	  return ( data.getData() );
-	 }	
-	
+  // [START read_image]
+  /**
+   * Downloads and decodes an image, at no more than the resolution needed to fit it within the
+   * given box. The image is decoded straight from the local disk cache, downloading it there
+   * first if needed, so neither the encoded file nor a full-resolution raster is ever held in
+   * the heap.
+   *
+   * @param bucketName the name of the bucket containing the image.
+   * @param objectName the name of the image object.
+   * @param maxWidth the width of the box the image will be scaled to fit.
+   * @param maxHeight the height of the box the image will be scaled to fit.
+   * @return the decoded image, at least large enough to be scaled to fit the box.
+   */
+  public static BufferedImage readImage(
+      String bucketName, String objectName, int maxWidth, int maxHeight)
+      throws IOException, GeneralSecurityException {
+    ByteBuffer contents;
+    try {
+      contents = readCached(bucketName, objectName);
+    } catch (HttpResponseException e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+      // Overwritten between looking up the generation and downloading it.
+      contents = readCached(bucketName, objectName);
+    }
+    try (InputStream in = StorageUtils.newInputStream(contents)) {
+      return new Java2DImageTransformer().decode(in, maxWidth, maxHeight);
+    }
+  }
+
+  /**
+   * Returns the contents of the object's current generation from the local disk cache,
+   * downloading them there first if needed.
+   */
+  private static ByteBuffer readCached(String bucketName, String objectName)
+      throws IOException, GeneralSecurityException {
+    Storage client = StorageFactory.getService();
+    // The disk cache is keyed by generation, so the current one is looked up every time; a
+    // cached answer could name a generation that has since been overwritten.
+    long generation = client.objects().get(bucketName, objectName)
+        .setFields("generation")
+        .execute()
+        .getGeneration();
+    final Storage.Objects.Get getObject =
+        client.objects().get(bucketName, objectName).setGeneration(generation);
+    return getSourceCache().get(bucketName, objectName, generation,
+        new DiskObjectCache.Loader() {
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = Checksums.openVerified(getObject)) {
+              StorageUtils.copy(in, out);
+            }
+          }
+        });
+  }
+  // [END read_image]
+
+  /**
+   * Returns the raw pixel bytes of an image in the default bucket, decoded at full resolution.
+   */
+  public static byte[] extractBytes(String imageName)
+      throws IOException, GeneralSecurityException {
+    BufferedImage bufferedImage = readImage(
+        "laykart-165108.appspot.com", imageName, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    // get DataBufferBytes from Raster
+    WritableRaster raster = bufferedImage.getRaster();
+    DataBufferByte data = (DataBufferByte) raster.getDataBuffer();
+
+    return data.getData();
+  }
 
   /**
-   * Exercises the class's functions - gets and lists a bucket, uploads and deletes an object.
+   * Exercises the class's functions - gets a bucket, converts the images under a prefix, then
+   * uploads and deletes an object.
    *
-   * @param args the command-line arguments. The first argument should be the bucket name.
+   * @param args the command-line arguments. The first argument should be the bucket name, the
+   *     optional second argument the prefix of the images to convert.
    */
   public static void main(String[] args) {
     if (args.length < 1) {
-      System.out.println("Usage: StorageSample <bucket-name>");
+      System.out.println("Usage: StorageSample <bucket-name> [image-prefix]");
       //System.exit(1);
     }
 
-    //String bucketName = args[0];
-    String bucketName = "laykart-165108.appspot.com";
-   //String destinationFolder = "laykart-165108.appspot.com/1xConvert";
+    String bucketName = args.length > 0 ? args[0] : "laykart-165108.appspot.com";
+    String imagePrefix = args.length > 1 ? args[1] : "leyKart-images/";
+    // Request latency, bytes and retries are also published over JMX.
+    StorageMetrics.getDefault().startLogging(60);
+    // Both clients pace their requests and back off by the same shared policy.
+    TrafficPolicy trafficPolicy = TrafficPolicy.getDefault();
     
- // [START gcs]
-	  
- 	  //Allows creating and accessing files in Google Cloud Storage.
- 	  final GcsService gcsService = GcsServiceFactory.createGcsService(new RetryParams.Builder()
- 	      .initialRetryDelayMillis(10)
- 	      .retryMaxAttempts(10)
- 	      .totalRetryPeriodMillis(15000)
- 	      .build());
- 	  // [END gcs]
+    // Run with -DstorageRootUrl=http://localhost:8080/ to work against a LocalGcsServer, with no
+    // network or credentials.
+    String rootUrl = System.getProperty("storageRootUrl");
+    if (rootUrl != null) {
+      StorageFactory.configure(new StorageFactory.Builder().rootUrl(rootUrl).anonymous(true));
+    }
+
+    try (ConversionManifest manifest = ConversionManifest.open(
+        Paths.get(System.getProperty("manifest", "conversion-manifest.log")))) {
+      // [START gcs]
+      // Allows creating and accessing files in Google Cloud Storage. The App Engine client only
+      // talks to GCS itself, so against a stand-in server the writes go through the JSON client.
+      GcsService gcsService = rootUrl != null
+          ? new JsonApiGcsService(StorageFactory.getService())
+          : GcsServiceFactory.createGcsService(trafficPolicy.toRetryParams());
+      // [END gcs]
 
-    try {
       // Get metadata about the specified bucket.
       Bucket bucket = getBucket(bucketName);
       System.out.println("name: " + bucketName);
       System.out.println("location: " + bucket.getLocation());
       System.out.println("timeCreated: " + bucket.getTimeCreated());
       System.out.println("owner: " + bucket.getOwner());
-      
-      
-	    
 
-
-      // List the contents of the bucket.
-      List<StorageObject> bucketContents = listBucket(bucketName);
-      if (null == bucketContents) {
+      // Convert every PNG under the prefix that the manifest doesn't already show as converted,
+      // streaming the listing (its folders listed in parallel) into the pipeline. Run with
+      // -Dtransformer=java2d to resize in-process instead of calling the ImagesService.
+      ConversionPipeline pipeline =
+          new ConversionPipeline.Builder(StorageFactory.getService(), gcsService)
+              .contentTypes("image/png")
+              .transformer(ImageTransformer.forName(System.getProperty("transformer")))
+              .renditions(RenditionSpec.parse(
+                  System.getProperty("renditions", DEFAULT_RENDITIONS)))
+              .manifest(manifest)
+              .trafficPolicy(trafficPolicy)
+              .sourceCache(getSourceCache())
+              .build();
+      ConversionPipeline.ConversionStats stats =
+          pipeline.run(listBucketSharded(bucketName, imagePrefix));
+      System.out.println("Conversion finished: " + stats);
+      System.out.println("Source cache: " + getSourceCache());
+      // Keeps the recency order for the next run.
+      getSourceCache().close();
+      if (stats.getConverted() == 0 && stats.getFailed() == 0) {
         System.out.println(
-            "There were no objects in the given bucket; try adding some and re-running.");
+            "There were no images under the given prefix; try adding some and re-running.");
       }
-      for (StorageObject object : bucketContents) {
-    	  //get image Object
-    	  System.out.println(object.getName() + " (" + object.getSize() + " bytes)"+"-- Kind"+object.getKind());
-    	  System.out.println("iMAGE dATA:::::::"+object.get(object.getName()));
-    	  System.out.println("contain type::::::::::::::" + object.getContentType());
-    	  
-    	  byte[] imageBytes = null;
-    	  if("leyKart-images/B1/G1.png".equals(object.getName())){
-    		  System.out.println("***************************");
-    		  if ("image/png".equals(object.getContentType())){
-    			  
-    			  imageBytes = extractBytes( object.getName());
-			  System.out.println(imageBytes);
-    			// Get an instance of the imagesService we can use to transform images.
-      	  	    ImagesService imagesService = ImagesServiceFactory.getImagesService();
-      		  
-		Image image = ImagesServiceFactory.makeImage(imageBytes);
-      		    Transform resize = ImagesServiceFactory.makeResize(100, 50);
-      		  System.out.println("$$$$$$$$$$$$$$$$$$$");
-			  System.out.println(image);
-			  
-			  //Image resizedImage = (Image) imagesService.applyTransformAsync(resize, image);
-      		    Image resizedImage = imagesService.applyTransform(resize, image);
-			  
-			 /* com.google.appengine.api.blobstore.BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-      		  BlobKey blobKey = blobstoreService.createGsBlobKey("/gs/" + bucketName + object.getName());
-      		  Image blobImage = ImagesServiceFactory.makeImageFromBlob(blobKey);
-      		System.out.println("$$$$$$$$$$$$$$$$$$$");
-      		  Transform rotate = ImagesServiceFactory.makeResize(100, 50);
-      		  Image resizedImage = imagesService.applyTransform(rotate, blobImage); */
-      		  
-      		// Write the transformed image back to a Cloud Storage object.
-        	    gcsService.createOrReplace(
-        	        new GcsFilename(bucketName, "resizedImage_125X75" + object.getName() + ".jpeg"),
-        	        new GcsFileOptions.Builder().mimeType("image/jpeg").build(),
-        	        ByteBuffer.wrap(resizedImage.getImageData()));
-    			  
-    		  }
-    		 
-    	  
-    	  } 
-      	}
-      
+
 
       // Create a temp file to upload
       Path tempPath = Files.createTempFile("StorageSample", "txt");
@@ -284,6 +484,8 @@ public static byte[] extractBytes (String ImageName) throws IOException {
       // Now delete the file
       //deleteObject(TEST_FILENAME, bucketName);
 
+      System.out.println(StorageMetrics.getDefault());
+
     
 
     } catch (IOException e) {
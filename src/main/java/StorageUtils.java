@@ -16,17 +16,193 @@
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 public class StorageUtils {
 
+  /** The size of the per-thread buffers used to move stream data. */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  // Each thread reuses one buffer of each kind, so draining or copying many streams doesn't
+  // allocate (and later collect) a new buffer per stream.
+  private static final ThreadLocal<byte[]> HEAP_BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[BUFFER_SIZE];
+    }
+  };
+
+  private static final ThreadLocal<ByteBuffer> DIRECT_BUFFER = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+  };
+
   /**
    * Reads the contents of an InputStream and does nothing with it.
+   *
+   * @return the number of bytes read.
    */
-  public static void readStream(InputStream is) throws IOException {
-    byte[] inputBuffer = new byte[256];
-    while (is.read(inputBuffer) != -1) {}
+  public static long readStream(InputStream is) throws IOException {
+    byte[] inputBuffer = HEAP_BUFFER.get();
+    long total = 0;
+    for (int n; (n = is.read(inputBuffer)) != -1; ) {
+      total += n;
+    }
     // The caller is responsible for closing this InputStream.
     is.close();
+    return total;
+  }
+
+  /**
+   * Reads a channel to its end and does nothing with the contents. A direct buffer lets
+   * channels backed by native I/O skip the copy into the Java heap.
+   *
+   * @return the number of bytes read.
+   */
+  public static long drain(ReadableByteChannel channel) throws IOException {
+    ByteBuffer buffer = DIRECT_BUFFER.get();
+    long total = 0;
+    while (true) {
+      buffer.clear();
+      int n = channel.read(buffer);
+      if (n < 0) {
+        return total;
+      }
+      total += n;
+    }
+  }
+
+  /**
+   * Copies an InputStream to an OutputStream. Neither stream is closed.
+   *
+   * @return the number of bytes copied.
+   */
+  public static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = HEAP_BUFFER.get();
+    long total = 0;
+    for (int n; (n = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, n);
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Copies {@code count} bytes of a file, starting at {@code position}, to a channel (e.g. a
+   * socket or an HTTP request body). The kernel moves the bytes directly where the platform
+   * supports it, i.e. to another file or a socket; other channels are fed through a buffer.
+   *
+   * @param target a blocking channel; a non-blocking one could accept nothing and stall the copy.
+   * @return the number of bytes copied, less than {@code count} only if the file is shorter.
+   */
+  public static long transferTo(FileChannel source, long position, long count,
+      WritableByteChannel target) throws IOException {
+    checkBlocking(target);
+    long done = 0;
+    while (done < count) {
+      // transferTo may move fewer bytes than asked for, e.g. when the platform caps one transfer.
+      long n = source.transferTo(position + done, count - done, target);
+      if (n <= 0) {
+        // A blocking target always takes something, so this is the end of the file.
+        break;
+      }
+      done += n;
+    }
+    return done;
+  }
+
+  /**
+   * Copies a channel (e.g. an HTTP response body) to its end into a file, starting at
+   * {@code position}.
+   *
+   * @param source a blocking channel; a non-blocking one could have nothing to read and stall the
+   *     copy.
+   * @return the number of bytes copied.
+   */
+  public static long transferFrom(ReadableByteChannel source, FileChannel target, long position)
+      throws IOException {
+    checkBlocking(source);
+    long done = 0;
+    while (true) {
+      long n = target.transferFrom(source, position + done, BUFFER_SIZE * 16L);
+      if (n == 0) {
+        // transferFrom can't tell end of stream from a short read; check with one read, which
+        // blocks until there is data or the stream ends.
+        ByteBuffer probe = DIRECT_BUFFER.get();
+        probe.clear();
+        int read = source.read(probe);
+        if (read < 0) {
+          return done;
+        }
+        probe.flip();
+        while (probe.hasRemaining()) {
+          done += target.write(probe, position + done);
+        }
+        continue;
+      }
+      done += n;
+    }
+  }
+
+  private static void checkBlocking(Channel channel) {
+    if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+      throw new IllegalArgumentException("The channel must be in blocking mode");
+    }
+  }
+
+  /**
+   * Returns a stream over the remaining bytes of a buffer (e.g. a memory-mapped file), read
+   * without copying them into the heap first. Reading advances a duplicate, not the buffer.
+   */
+  public static InputStream newInputStream(ByteBuffer buffer) {
+    return new ByteBufferInputStream(buffer.duplicate());
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
   }
 
   /**
@@ -51,6 +227,35 @@ public class StorageUtils {
       bytesRead++;
       return 0;
     }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (bytesRead >= streamSize) {
+        return -1;
+      }
+      int n = (int) Math.min(len, streamSize - bytesRead);
+      // The caller's buffer may hold earlier data, so the zeros have to be written.
+      Arrays.fill(b, off, off + n, (byte) 0);
+      bytesRead += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, streamSize - bytesRead));
+      bytesRead += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, streamSize - bytesRead);
+    }
   }
 }
-
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.appengine.tools.cloudstorage.RetryParams;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How hard to push GCS: a request rate limit, an adaptive limit on requests in flight, and the
+ * retry backoff, shared by every client in the process.
+ *
+ * <p>Requests first take a token from a token bucket, then wait for one of the in-flight slots.
+ * The number of slots follows an AIMD rule: each success adds about one slot per round trip,
+ * while a 429, a 5xx, a network error or latency well above the best seen recently halves it
+ * (at most once per round trip, so one burst of errors counts once). Throughput therefore
+ * settles just below what GCS accepts instead of alternating between overload and idle.
+ * Failed attempts are retried after a fully jittered exponential backoff, so clients that failed
+ * together don't retry together.</p>
+ *
+ * <p>{@link StorageFactory} attaches the policy to each JSON API request; see
+ * {@link #attach(HttpRequest)}. {@code GcsService} calls go through {@link #acquire} and
+ * {@link #release}, and its own retries use {@link #toRetryParams()}.</p>
+ */
+public class TrafficPolicy {
+
+  /**
+   * Builds a {@link TrafficPolicy}.
+   */
+  public static class Builder {
+    private double requestsPerSecond = 1000;
+    private int initialInFlight = 32;
+    private int minInFlight = 1;
+    private int maxInFlight = 512;
+    private double latencyTolerance = 3;
+    private int maxAttempts = 10;
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 32000;
+    private long totalRetryMillis = 120000;
+
+    /**
+     * Sets the sustained request rate; up to one second's worth may be sent in a burst. Zero
+     * removes the rate limit.
+     */
+    public Builder requestsPerSecond(double requestsPerSecond) {
+      this.requestsPerSecond = requestsPerSecond;
+      return this;
+    }
+
+    /**
+     * Sets the bounds of the adaptive in-flight limit and where it starts.
+     */
+    public Builder inFlight(int initial, int min, int max) {
+      this.initialInFlight = initial;
+      this.minInFlight = min;
+      this.maxInFlight = max;
+      return this;
+    }
+
+    /**
+     * Sets how many times slower than the best recent latency a response may be before it is
+     * taken as a sign of overload.
+     */
+    public Builder latencyTolerance(double latencyTolerance) {
+      this.latencyTolerance = latencyTolerance;
+      return this;
+    }
+
+    /**
+     * Sets how many times a request is attempted in total.
+     */
+    public Builder maxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the backoff before the first retry, and the cap it doubles up to.
+     */
+    public Builder backoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+      this.initialBackoffMillis = initialBackoffMillis;
+      this.maxBackoffMillis = maxBackoffMillis;
+      return this;
+    }
+
+    /**
+     * Sets how long {@code GcsService} keeps retrying one call.
+     */
+    public Builder totalRetryMillis(long totalRetryMillis) {
+      this.totalRetryMillis = totalRetryMillis;
+      return this;
+    }
+
+    public TrafficPolicy build() {
+      return new TrafficPolicy(this);
+    }
+  }
+
+  // Requests with larger bodies take as long as their upload does, which says nothing about
+  // whether GCS is overloaded, so their latency isn't used.
+  private static final long MAX_LATENCY_SAMPLE_BODY = 64 * 1024;
+
+  // The attempts of the batch this thread is sending. BatchRequest runs the execute interceptor
+  // of every request in the batch, but hands their responses to callbacks without the response
+  // interceptors, so those requests would take slots that are never returned.
+  private static final ThreadLocal<Attempts> SENDING_BATCH = new ThreadLocal<Attempts>();
+
+  private static volatile TrafficPolicy defaultInstance;
+
+  /**
+   * Returns the policy shared by the clients built with default settings.
+   */
+  public static TrafficPolicy getDefault() {
+    TrafficPolicy policy = defaultInstance;
+    if (policy == null) {
+      synchronized (TrafficPolicy.class) {
+        policy = defaultInstance;
+        if (policy == null) {
+          policy = new Builder().build();
+          defaultInstance = policy;
+        }
+      }
+    }
+    return policy;
+  }
+
+  private final Builder config;
+  private final RateLimiter rateLimiter;
+  private final Object lock = new Object();
+  private double limit;
+  private int inFlight;
+  private long lastDecreaseNanos;
+  // The lowest latency seen recently; drifts upward slowly so it can follow a changing network.
+  private double baselineLatencyNanos = Double.MAX_VALUE;
+
+  private TrafficPolicy(Builder builder) {
+    this.config = builder;
+    this.rateLimiter = builder.requestsPerSecond > 0
+        ? RateLimiter.create(builder.requestsPerSecond) : null;
+    this.limit = builder.initialInFlight;
+  }
+
+  /**
+   * Waits for a token and an in-flight slot.
+   *
+   * @return the start time of the request, to be passed to {@link #release}.
+   */
+  public long acquire() throws InterruptedIOException {
+    if (rateLimiter != null) {
+      rateLimiter.acquire();
+    }
+    synchronized (lock) {
+      try {
+        while (inFlight >= (int) limit) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting to send a request");
+      }
+      inFlight++;
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Returns an in-flight slot and adjusts the limit to the outcome.
+   *
+   * @param startNanos the value returned by {@link #acquire}.
+   * @param statusCode the response status, or 0 if no response arrived.
+   * @param latencySample whether the request's latency reflects the service's load.
+   */
+  public void release(long startNanos, int statusCode, boolean latencySample) {
+    long now = System.nanoTime();
+    long latency = now - startNanos;
+    synchronized (lock) {
+      inFlight--;
+      boolean overloaded = isRetryable(statusCode);
+      if (!overloaded && latencySample && statusCode < 400) {
+        baselineLatencyNanos = Math.min(baselineLatencyNanos * 1.01, latency);
+        overloaded = latency > config.latencyTolerance * baselineLatencyNanos;
+      }
+      if (overloaded) {
+        // Back off once per round trip, however many requests of that round trip fail.
+        long window = (long) Math.min(baselineLatencyNanos, TimeUnit.SECONDS.toNanos(1));
+        if (now - lastDecreaseNanos > window) {
+          limit = Math.max(config.minInFlight, limit / 2);
+          lastDecreaseNanos = now;
+        }
+      } else if (statusCode < 400) {
+        limit = Math.min(config.maxInFlight, limit + 1 / limit);
+      }
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Returns the current in-flight limit.
+   */
+  public int getLimit() {
+    synchronized (lock) {
+      return (int) limit;
+    }
+  }
+
+  public int getInFlight() {
+    synchronized (lock) {
+      return inFlight;
+    }
+  }
+
+  /**
+   * Returns how long to wait before the given retry (1 for the first), drawn uniformly from zero
+   * to the exponential backoff for that attempt.
+   */
+  public long backoffMillis(int retry) {
+    long ceiling = Math.min(config.maxBackoffMillis,
+        config.initialBackoffMillis << Math.min(retry - 1, 30));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  /**
+   * Returns retry settings for {@code GcsService} that match this policy.
+   */
+  public RetryParams toRetryParams() {
+    return new RetryParams.Builder()
+        .initialRetryDelayMillis(config.initialBackoffMillis)
+        .maxRetryDelayMillis(config.maxBackoffMillis)
+        .retryDelayBackoffFactor(2)
+        .retryMaxAttempts(config.maxAttempts)
+        .totalRetryPeriodMillis(config.totalRetryMillis)
+        .build();
+  }
+
+  /**
+   * Applies this policy to a JSON API request: each attempt waits for a token and a slot, and
+   * retryable failures (429, 408, 5xx and network errors) are retried with backoff. Must be
+   * called after the credential has initialized the request.
+   */
+  public void attach(HttpRequest request) {
+    final HttpExecuteInterceptor interceptor = request.getInterceptor();
+    final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+    final HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler =
+        request.getUnsuccessfulResponseHandler();
+    final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+    // One HttpRequest is executed again for every retry; this carries state between attempts.
+    final Attempts attempts = new Attempts();
+
+    request.setNumberOfRetries(config.maxAttempts - 1);
+    request.setInterceptor(new HttpExecuteInterceptor() {
+      @Override
+      public void intercept(HttpRequest request) throws IOException {
+        // Take the slot before the wrapped interceptors run, so that time spent waiting for it
+        // isn't counted as the request's latency.
+        attempts.batch = SENDING_BATCH.get();
+        if (attempts.batch == null) {
+          HttpContent content = request.getContent();
+          boolean batch = content != null && content.getType() != null
+              && content.getType().startsWith("multipart/mixed");
+          if (batch && attempts.partsFailed) {
+            // The parts that failed last round are sent again; back off once for all of them.
+            attempts.partsFailed = false;
+            attempts.sleepBeforeRetry();
+          }
+          attempts.start(content == null || content.getLength() <= MAX_LATENCY_SAMPLE_BODY);
+          if (batch) {
+            attempts.sendingBatch = true;
+            SENDING_BATCH.set(attempts);
+          }
+        }
+        if (interceptor != null) {
+          try {
+            interceptor.intercept(request);
+          } catch (IOException | RuntimeException e) {
+            // Nothing was sent; give back the slot (a part gives back its batch's).
+            (attempts.batch != null ? attempts.batch : attempts).abandon();
+            throw e;
+          }
+        }
+      }
+    });
+    request.setResponseInterceptor(new HttpResponseInterceptor() {
+      @Override
+      public void interceptResponse(HttpResponse response) throws IOException {
+        attempts.finish(response.getStatusCode());
+        if (responseInterceptor != null) {
+          responseInterceptor.interceptResponse(response);
+        }
+      }
+    });
+    request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+      @Override
+      public boolean handleResponse(HttpRequest request, HttpResponse response,
+          boolean supportsRetry) throws IOException {
+        attempts.finish(response.getStatusCode());
+        if (unsuccessfulResponseHandler != null
+            && unsuccessfulResponseHandler.handleResponse(request, response, supportsRetry)) {
+          return true;
+        }
+        return supportsRetry && isRetryable(response.getStatusCode()) && attempts.retry();
+      }
+    });
+    request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+      @Override
+      public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+          throws IOException {
+        attempts.finish(0);
+        if (ioExceptionHandler != null
+            && ioExceptionHandler.handleIOException(request, supportsRetry)) {
+          return true;
+        }
+        return supportsRetry && attempts.retry();
+      }
+    });
+  }
+
+  /**
+   * The attempts of one request.
+   */
+  private class Attempts {
+    private long startNanos;
+    private boolean holdsSlot;
+    private boolean latencySample;
+    private int retries;
+    // Set on a batch while it sends; the batch carrying this request, if it is a part of one.
+    private boolean sendingBatch;
+    private Attempts batch;
+    // Set on a batch when some of its parts are to be sent again in its next round.
+    private boolean partsFailed;
+
+    void start(boolean latencySample) throws InterruptedIOException {
+      this.latencySample = latencySample;
+      startNanos = acquire();
+      holdsSlot = true;
+    }
+
+    /** Returns the slot; the final response reaches this twice, failed ones once. */
+    void finish(int statusCode) {
+      endBatch();
+      if (holdsSlot) {
+        holdsSlot = false;
+        release(startNanos, statusCode, latencySample);
+      }
+    }
+
+    /** Returns the slot of an attempt that was never sent, without judging the outcome. */
+    void abandon() {
+      endBatch();
+      if (holdsSlot) {
+        holdsSlot = false;
+        synchronized (lock) {
+          inFlight--;
+          lock.notifyAll();
+        }
+      }
+    }
+
+    private void endBatch() {
+      if (sendingBatch) {
+        sendingBatch = false;
+        SENDING_BATCH.remove();
+      }
+    }
+
+    /** Prepares a retry of a failed attempt and returns true. */
+    boolean retry() throws InterruptedIOException {
+      if (batch != null) {
+        // The part goes out again in the batch's next round, which backs off once for all its
+        // parts. Sleeping here would stall the remaining parts' callbacks for every failure.
+        batch.partsFailed = true;
+        return true;
+      }
+      return sleepBeforeRetry();
+    }
+
+    boolean sleepBeforeRetry() throws InterruptedIOException {
+      try {
+        Thread.sleep(backoffMillis(++retries));
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while backing off");
+      }
+    }
+  }
+
+  static boolean isRetryable(int statusCode) {
+    return statusCode == 0 || statusCode == 408 || statusCode == 429 || statusCode >= 500;
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return String.format(Locale.ROOT, "inFlight=%d limit=%.1f baseline=%.1fms", inFlight,
+          limit, baselineLatencyNanos == Double.MAX_VALUE ? 0 : baselineLatencyNanos / 1e6);
+    }
+  }
+}
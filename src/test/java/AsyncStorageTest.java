@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs operations in the background with {@link AsyncStorage}.
+ */
+public class AsyncStorageTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private AsyncStorage async;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    async = new AsyncStorage.Builder(storage).maxInFlight(3).build();
+  }
+
+  @After
+  public void tearDown() {
+    async.close();
+    server.close();
+  }
+
+  @Test
+  public void runsAtMostMaxInFlightAtOnce() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger peak = new AtomicInteger();
+    List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      final int value = i;
+      futures.add(async.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          int now = running.incrementAndGet();
+          synchronized (peak) {
+            peak.set(Math.max(peak.get(), now));
+          }
+          release.await();
+          running.decrementAndGet();
+          return value;
+        }
+      }));
+    }
+    waitFor(3, running);
+    Thread.sleep(100);
+    assertThat(running.get()).isEqualTo(3);
+    assertThat(async.getInFlight()).isEqualTo(3);
+
+    release.countDown();
+    for (int i = 0; i < futures.size(); i++) {
+      assertThat(futures.get(i).get(10, TimeUnit.SECONDS)).isEqualTo(i);
+    }
+    assertThat(peak.get()).isEqualTo(3);
+    assertThat(async.getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void cancellingARunningOperationInterruptsIt() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    CompletableFuture<Void> future = async.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        started.countDown();
+        try {
+          Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+          throw e;
+        }
+        return null;
+      }
+    });
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(future.cancel(true)).isTrue();
+    assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(future.isCancelled()).isTrue();
+    waitFor(0, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return async.getInFlight();
+      }
+    });
+  }
+
+  @Test
+  public void aCancelledQueuedOperationNeverRuns() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    List<CompletableFuture<Void>> blockers = new ArrayList<CompletableFuture<Void>>();
+    for (int i = 0; i < 3; i++) {
+      blockers.add(async.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          release.await();
+          return null;
+        }
+      }));
+    }
+    final AtomicBoolean ran = new AtomicBoolean();
+    CompletableFuture<Void> queued = async.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        ran.set(true);
+        return null;
+      }
+    });
+    assertThat(queued.cancel(true)).isTrue();
+
+    release.countDown();
+    for (CompletableFuture<Void> blocker : blockers) {
+      blocker.get(10, TimeUnit.SECONDS);
+    }
+    // The queued task has its turn once the blockers finish; give it time to (not) run.
+    async.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        return null;
+      }
+    }).get(10, TimeUnit.SECONDS);
+    Thread.sleep(100);
+    assertThat(ran.get()).isFalse();
+  }
+
+  @Test
+  public void executeCompletesWithTheResponse() throws Exception {
+    server.putObject("bucket", "object", "text/plain", new byte[7]);
+
+    StorageObject object =
+        async.execute(storage.objects().get("bucket", "object")).get(10, TimeUnit.SECONDS);
+    assertThat(object.getSize().longValue()).isEqualTo(7L);
+
+    try {
+      async.execute(storage.objects().get("bucket", "missing")).get(10, TimeUnit.SECONDS);
+      throw new AssertionError("Expected a 404");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(HttpResponseException.class);
+      assertThat(((HttpResponseException) e.getCause()).getStatusCode()).isEqualTo(404);
+    }
+  }
+
+  private static void waitFor(int expected, final AtomicInteger value) throws Exception {
+    waitFor(expected, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return value.get();
+      }
+    });
+  }
+
+  private static void waitFor(int expected, Callable<Integer> value) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (value.call() != expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(value.call()).isEqualTo(expected);
+  }
+}
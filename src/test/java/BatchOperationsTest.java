@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Sends bulk operations to a {@link LocalGcsServer} through {@link BatchOperations}.
+ */
+public class BatchOperationsTest {
+
+  private LocalGcsServer server;
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void eachOperationGetsItsOwnResult() throws Exception {
+    Storage storage = start(new LocalGcsServer.Builder());
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < 12; i++) {
+      names.add("obj" + i);
+      if (i % 3 != 0) {
+        server.putObject("bucket", "obj" + i, "text/plain", new byte[1]);
+      }
+    }
+
+    List<BatchOperations.Result> results = new BatchOperations.Builder(storage)
+        .batchSize(5)
+        .build()
+        .deleteObjects("bucket", names);
+
+    assertThat(results).hasSize(12);
+    for (int i = 0; i < 12; i++) {
+      BatchOperations.Result result = results.get(i);
+      assertThat(result.getObjectName()).isEqualTo("obj" + i);
+      assertThat(result.isSuccess()).isEqualTo(i % 3 != 0);
+      assertThat(result.getStatusCode()).isEqualTo(i % 3 != 0 ? 200 : 404);
+      assertThat(server.getObjectContent("bucket", "obj" + i)).isNull();
+    }
+  }
+
+  @Test
+  public void retryableFailuresAreRetried() throws Exception {
+    Storage storage = start(new LocalGcsServer.Builder().errorRate(503, 0.2));
+    Map<String, StorageObject> patches = new HashMap<String, StorageObject>();
+    for (int i = 0; i < 20; i++) {
+      server.putObject("bucket", "obj" + i, "text/plain", new byte[1]);
+      patches.put("obj" + i, new StorageObject().setContentType("image/png"));
+    }
+
+    List<BatchOperations.Result> results = new BatchOperations.Builder(storage)
+        .batchSize(10)
+        .maxAttempts(20)
+        .build()
+        .patchMetadata("bucket", patches);
+
+    assertThat(results).hasSize(20);
+    for (BatchOperations.Result result : results) {
+      assertThat(result.isSuccess()).isTrue();
+    }
+  }
+
+  @Test
+  public void aBatchThatCannotBeSentFailsEveryOperation() throws Exception {
+    Storage storage = start(new LocalGcsServer.Builder());
+    server.close();
+
+    List<BatchOperations.Result> results = new BatchOperations.Builder(storage)
+        .maxAttempts(1)
+        .build()
+        .deleteObjects("bucket", Arrays.asList("a", "b"));
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).getObjectName()).isEqualTo("a");
+    assertThat(results.get(0).getStatusCode()).isEqualTo(503);
+    assertThat(results.get(1).isSuccess()).isFalse();
+  }
+
+  @Test
+  public void theClientsPolicyDoesNotRetryBatches() throws Exception {
+    server = new LocalGcsServer.Builder().errorRate(503, 1).build();
+    Storage storage = new StorageFactory.Builder()
+        .rootUrl(server.getRootUrl())
+        .anonymous(true)
+        .trafficPolicy(new TrafficPolicy.Builder().maxAttempts(3).backoffMillis(1, 10).build())
+        .build();
+
+    List<BatchOperations.Result> results = new BatchOperations.Builder(storage)
+        .maxAttempts(3)
+        .build()
+        .deleteObjects("bucket", Arrays.asList("a", "b"));
+
+    assertThat(results.get(0).getStatusCode()).isEqualTo(503);
+    assertThat(results.get(1).getStatusCode()).isEqualTo(503);
+    // One batch request per round, not three.
+    assertThat(server.getRequestCount()).isEqualTo(3L);
+  }
+
+  private Storage start(LocalGcsServer.Builder builder) throws Exception {
+    server = builder.build();
+    return server.newClient();
+  }
+}
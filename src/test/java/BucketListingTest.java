@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lists buckets held by a {@link LocalGcsServer}.
+ */
+public class BucketListingTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    for (int i = 0; i < 25; i++) {
+      server.putObject("bucket", String.format("a/%02d", i), "text/plain", new byte[i]);
+    }
+    server.putObject("bucket", "b/other", "text/plain", new byte[0]);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void walksEveryPageInOrder() {
+    List<String> names = names(new BucketListing(storage, "bucket", null, null, 10L));
+    assertThat(names).hasSize(26);
+    assertThat(names.get(0)).isEqualTo("a/00");
+    assertThat(names.get(24)).isEqualTo("a/24");
+    assertThat(names.get(25)).isEqualTo("b/other");
+  }
+
+  @Test
+  public void listsOnlyThePrefix() {
+    assertThat(names(new BucketListing(storage, "bucket", "b/", null, 10L)))
+        .containsExactly("b/other");
+  }
+
+  @Test
+  public void returnsTheRequestedFields() {
+    StorageObject first = new BucketListing(
+        storage, "bucket", "a/", BucketListing.CONVERSION_FIELDS, null).iterator().next();
+    assertThat(first.getName()).isEqualTo("a/00");
+    assertThat(first.getGeneration()).isNotNull();
+    assertThat(first.getMd5Hash()).isNotNull();
+  }
+
+  @Test
+  public void eachIteratorStartsOver() {
+    BucketListing listing = new BucketListing(storage, "bucket", "a/", null, 7L);
+    assertThat(names(listing)).hasSize(25);
+    assertThat(names(listing)).hasSize(25);
+    assertThat(listing.stream().count()).isEqualTo(25L);
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void emptyListingHasNoNext() {
+    Iterator<StorageObject> objects =
+        new BucketListing(storage, "bucket", "missing/", null, null).iterator();
+    assertThat(objects.hasNext()).isFalse();
+    objects.next();
+  }
+
+  static List<String> names(Iterable<StorageObject> objects) {
+    List<String> names = new ArrayList<String>();
+    for (StorageObject object : objects) {
+      names.add(object.getName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.RewriteResponse;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Migrates objects between buckets held by a {@link LocalGcsServer}.
+ */
+public class BucketMigrationTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private byte[] big;
+  private Path stateFile;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().rewriteBytesPerCall(1000).build();
+    storage = server.newClient();
+    big = new byte[2500];
+    new Random(1).nextBytes(big);
+    server.putObject("src", "in/a", "text/plain", "a".getBytes("UTF-8"));
+    server.putObject("src", "in/big", "application/octet-stream", big);
+    server.putObject("src", "in/sub/c", "text/plain", "c".getBytes("UTF-8"));
+    server.putObject("src", "other", "text/plain", new byte[1]);
+    stateFile = Files.createTempFile("migration", ".properties");
+    Files.delete(stateFile);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    Files.deleteIfExists(stateFile);
+  }
+
+  @Test
+  public void rewritesTheListedObjectsUnderTheNewPrefix() throws Exception {
+    BucketMigration.MigrationStats stats = newMigration().build().migrate();
+
+    assertThat(stats.getFailures()).isEmpty();
+    assertThat(stats.getMigrated()).isEqualTo(3L);
+    assertThat(stats.listed.get()).isEqualTo(3L);
+    // One call each for the small objects, three for 2500 bytes at 1000 per call.
+    assertThat(stats.rewriteCalls.get()).isEqualTo(5L);
+    assertThat(stats.bytesRewritten.get()).isEqualTo(2502L);
+    assertThat(Arrays.equals(server.getObjectContent("dst", "out/big"), big)).isTrue();
+    assertThat(new String(server.getObjectContent("dst", "out/sub/c"), "UTF-8")).isEqualTo("c");
+    assertThat(server.getObjectContent("dst", "other")).isNull();
+  }
+
+  @Test
+  public void aSecondRunSkipsMigratedObjects() throws Exception {
+    newMigration().build().migrate();
+    server.putObject("src", "in/a", "text/plain", "changed".getBytes("UTF-8"));
+
+    BucketMigration.MigrationStats stats = newMigration().build().migrate();
+
+    assertThat(stats.skipped.get()).isEqualTo(2L);
+    assertThat(stats.getMigrated()).isEqualTo(1L);
+    assertThat(new String(server.getObjectContent("dst", "out/a"), "UTF-8"))
+        .isEqualTo("changed");
+  }
+
+  @Test
+  public void changesTheStorageClassAndKeepsTheMetadata() throws Exception {
+    BucketMigration.MigrationStats stats =
+        newMigration().storageClass("NEARLINE").build().migrate();
+
+    assertThat(stats.getFailures()).isEmpty();
+    StorageObject copy = storage.objects().get("dst", "out/big").execute();
+    assertThat(copy.getStorageClass()).isEqualTo("NEARLINE");
+    assertThat(copy.getContentType()).isEqualTo("application/octet-stream");
+  }
+
+  @Test
+  public void resumesARewriteFromTheSavedToken() throws Exception {
+    // An earlier run copied the first 1000 bytes and saved its token before stopping.
+    Long generation = storage.objects().get("src", "in/big").execute().getGeneration();
+    RewriteResponse first = storage.objects()
+        .rewrite("src", "in/big", "dst", "out/big", null)
+        .setSourceGeneration(generation)
+        .execute();
+    assertThat(first.getDone()).isFalse();
+    new RewriteTokens(stateFile, "test").put("in/big", generation, first.getRewriteToken());
+
+    BucketMigration.MigrationStats stats = newMigration().stateFile(stateFile).build().migrate();
+
+    assertThat(stats.getFailures()).isEmpty();
+    assertThat(stats.resumed.get()).isEqualTo(1L);
+    // Two calls for the remaining 1500 bytes, one each for the small objects.
+    assertThat(stats.rewriteCalls.get()).isEqualTo(4L);
+    assertThat(Arrays.equals(server.getObjectContent("dst", "out/big"), big)).isTrue();
+    // Finished rewrites forget their tokens.
+    RewriteTokens saved = new RewriteTokens(stateFile, "test");
+    saved.load();
+    assertThat(saved.get("in/big", generation)).isNull();
+  }
+
+  @Test
+  public void savedTokensAreTiedToTheirGeneration() throws Exception {
+    RewriteTokens tokens = new RewriteTokens(stateFile, "test");
+    tokens.put("a", 1L, "token-1");
+    tokens.put("b", 2L, "token-2");
+    tokens.put("b", 2L, null);
+
+    RewriteTokens reloaded = new RewriteTokens(stateFile, "test");
+    reloaded.load();
+    assertThat(reloaded.get("a", 1L)).isEqualTo("token-1");
+    assertThat(reloaded.get("a", 2L)).isNull();
+    assertThat(reloaded.get("b", 2L)).isNull();
+  }
+
+  @Test
+  public void failuresAreRecordedPerObject() throws Exception {
+    // The rewrites need a source key that none of the objects were written with.
+    String[] key = KeyRotationTest.newKey(1);
+    BucketMigration.MigrationStats stats =
+        newMigration().sourceKey(key[0], key[1]).build().migrate();
+
+    assertThat(stats.getMigrated()).isEqualTo(0L);
+    assertThat(stats.getFailures()).hasSize(3);
+    assertThat(stats.getFailures()).containsKey("in/big");
+  }
+
+  private BucketMigration.Builder newMigration() {
+    return new BucketMigration.Builder(storage, "src", "dst")
+        .sourcePrefix("in/")
+        .destinationPrefix("out/")
+        .concurrency(2)
+        .maxAttempts(1)
+        .reportIntervalSeconds(0);
+  }
+}
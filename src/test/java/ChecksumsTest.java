@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Checksum;
+import org.junit.Test;
+
+/**
+ * Computes, combines and verifies CRC32Cs with {@link Checksums}.
+ */
+public class ChecksumsTest {
+
+  // The CRC32C check value, from RFC 3720 and the Castagnoli paper.
+  private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+  private static final long CHECK_VALUE = 0xE3069283L;
+
+  @Test
+  public void computesTheCheckValue() {
+    assertThat(Checksums.crc32c(CHECK_INPUT)).isEqualTo(CHECK_VALUE);
+    assertThat(Checksums.crc32c(new byte[32])).isEqualTo(0x8A9136AAL);
+  }
+
+  @Test
+  public void thePortableImplementationMatches() {
+    byte[] data = random(1000, 1);
+    Checksum expected = Checksums.newCrc32c();
+    expected.update(data, 0, data.length);
+    // Odd offsets and lengths exercise both the eight-byte and the single-byte loops.
+    Checksum portable = new Checksums.Crc32c();
+    portable.update(data, 0, 3);
+    portable.update(data[3]);
+    portable.update(data, 4, 517);
+    portable.update(data, 521, data.length - 521);
+    assertThat(portable.getValue()).isEqualTo(expected.getValue());
+
+    portable.reset();
+    portable.update(CHECK_INPUT, 0, CHECK_INPUT.length);
+    assertThat(portable.getValue()).isEqualTo(CHECK_VALUE);
+  }
+
+  @Test
+  public void combineJoinsConsecutiveRanges() {
+    byte[] data = random(100000, 2);
+    long whole = Checksums.crc32c(data);
+    for (int split : new int[] {0, 1, 7, 8, 4096, 65537, data.length - 1, data.length}) {
+      long first = Checksums.crc32c(Arrays.copyOfRange(data, 0, split));
+      long second = Checksums.crc32c(Arrays.copyOfRange(data, split, data.length));
+      assertThat(Checksums.combineCrc32c(first, second, data.length - split))
+          .isEqualTo(whole);
+    }
+  }
+
+  @Test
+  public void combineFoldsManyRanges() {
+    byte[] data = random(30000, 3);
+    long combined = 0;
+    int offset = 0;
+    for (int length : new int[] {1, 999, 5000, 12345, 0, 11655}) {
+      long part = Checksums.crc32c(Arrays.copyOfRange(data, offset, offset + length));
+      combined = offset == 0 ? part : Checksums.combineCrc32c(combined, part, length);
+      offset += length;
+    }
+    assertThat(offset).isEqualTo(data.length);
+    assertThat(combined).isEqualTo(Checksums.crc32c(data));
+  }
+
+  @Test
+  public void encodesBigEndianBase64() {
+    assertThat(Checksums.encodeCrc32c(CHECK_VALUE)).isEqualTo("4waSgw==");
+    assertThat(Checksums.decodeCrc32c("4waSgw==")).isEqualTo(CHECK_VALUE);
+    assertThat(Checksums.decodeCrc32c(Checksums.encodeCrc32c(0xFFFFFFFFL)))
+        .isEqualTo(0xFFFFFFFFL);
+    assertThat(Checksums.decodeCrc32c(Checksums.encodeCrc32c(0L))).isEqualTo(0L);
+  }
+
+  @Test
+  public void verifyRejectsOnlyAMismatch() throws Exception {
+    Checksums.verifyCrc32c("a", "4waSgw==", CHECK_VALUE);
+    Checksums.verifyCrc32c("a", null, CHECK_VALUE);
+    try {
+      Checksums.verifyCrc32c("gs://b/a", "AAAAAA==", CHECK_VALUE);
+      throw new AssertionError("Expected a mismatch");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("gs://b/a");
+    }
+  }
+
+  @Test
+  public void openVerifiedReadsAStoredObject() throws Exception {
+    LocalGcsServer server = new LocalGcsServer.Builder().build();
+    try {
+      Storage storage = server.newClient();
+      byte[] data = random(70000, 4);
+      server.putObject("bucket", "object", "application/octet-stream", data);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream in = Checksums.openVerified(storage.objects().get("bucket", "object"))) {
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          out.write(buffer, 0, n);
+        }
+      }
+      assertThat(Arrays.equals(out.toByteArray(), data)).isTrue();
+    } finally {
+      server.close();
+    }
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.model.StorageObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records conversions in a {@link ConversionManifest} and reopens it.
+ */
+public class ConversionManifestTest {
+
+  private static final RenditionSpec SPEC = RenditionSpec.parse("10x10:png:0:small/{name}");
+
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("manifest", ".log");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void recordsSurviveReopening() throws Exception {
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      manifest.record(
+          object("dir/a b.png", 1L, "md5a"), SPEC, Arrays.asList("small/dir/a b.png"));
+    }
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      assertThat(manifest.size()).isEqualTo(1);
+      assertThat(manifest.isUpToDate(object("dir/a b.png", 1L, "md5a"), SPEC)).isTrue();
+      assertThat(manifest.get("dir/a b.png").getRenditions())
+          .containsExactly("small/dir/a b.png");
+    }
+  }
+
+  @Test
+  public void changedObjectsAndSpecsAreNotUpToDate() throws Exception {
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      manifest.record(object("a.png", 1L, "md5a"), SPEC, Arrays.asList("small/a.png"));
+      assertThat(manifest.isUpToDate(object("a.png", 2L, "md5a"), SPEC)).isFalse();
+      assertThat(manifest.isUpToDate(object("a.png", 1L, "md5b"), SPEC)).isFalse();
+      assertThat(manifest.isUpToDate(
+          object("a.png", 1L, "md5a"), RenditionSpec.parse("20x20:png:0:small/{name}")))
+          .isFalse();
+      assertThat(manifest.isUpToDate(object("b.png", 1L, "md5a"), SPEC)).isFalse();
+    }
+  }
+
+  @Test
+  public void theLastRecordForANameWins() throws Exception {
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      manifest.record(object("a.png", 1L, "md5a"), SPEC, Arrays.asList("small/a.png"));
+      manifest.record(object("a.png", 2L, "md5b"), SPEC, Arrays.asList("small/a.png"));
+    }
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      assertThat(manifest.get("a.png").getGeneration()).isEqualTo(2L);
+      assertThat(manifest.isUpToDate(object("a.png", 2L, "md5b"), SPEC)).isTrue();
+    }
+  }
+
+  @Test
+  public void aTornLastLineIsIgnoredAndTerminated() throws Exception {
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      manifest.record(object("a.png", 1L, "md5a"), SPEC, Arrays.asList("small/a.png"));
+    }
+    // A crash part-way through writing the next record.
+    Files.write(file, "b.png\t7\tmd".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      assertThat(manifest.size()).isEqualTo(1);
+      manifest.record(object("c.png", 3L, "md5c"), SPEC, Arrays.asList("small/c.png"));
+    }
+    try (ConversionManifest manifest = ConversionManifest.open(file)) {
+      assertThat(manifest.isUpToDate(object("a.png", 1L, "md5a"), SPEC)).isTrue();
+      assertThat(manifest.isUpToDate(object("c.png", 3L, "md5c"), SPEC)).isTrue();
+      assertThat(manifest.get("b.png")).isNull();
+    }
+  }
+
+  static StorageObject object(String name, Long generation, String md5Hash) {
+    return new StorageObject().setName(name).setGeneration(generation).setMd5Hash(md5Hash);
+  }
+}
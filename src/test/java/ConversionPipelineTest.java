@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the conversion pipeline against a {@link LocalGcsServer}.
+ */
+public class ConversionPipelineTest {
+
+  private static final String RENDITIONS =
+      "40x20:png:0:small/{base}.png,80x40:png:0:big/{base}.png";
+
+  private LocalGcsServer server;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void convertsEveryImageUnderThePrefix() throws Exception {
+    server.putObject("src", "img/a.png", "image/png", png(400, 200, Color.RED));
+    server.putObject("src", "img/b.png", "image/png", png(200, 400, Color.BLUE));
+    server.putObject("src", "img/notes.txt", "text/plain", "not an image".getBytes());
+    server.putObject("src", "other/c.png", "image/png", png(100, 100, Color.GREEN));
+
+    ConversionPipeline.ConversionStats stats = newPipeline().build().run(listing("img/"));
+
+    assertThat(stats.getConverted()).isEqualTo(2L);
+    assertThat(stats.getFailed()).isEqualTo(0L);
+    assertThat(stats.skipped.get()).isEqualTo(1L);
+    BufferedImage small = ImageIO.read(
+        new ByteArrayInputStream(server.getObjectContent("out", "small/img/a.png")));
+    assertThat(small.getWidth()).isEqualTo(40);
+    assertThat(small.getHeight()).isEqualTo(20);
+    assertThat(server.getObjectContent("out", "big/img/b.png")).isNotNull();
+    assertThat(server.getObjectContent("out", "small/other/c.png")).isNull();
+  }
+
+  @Test
+  public void aSecondRunSkipsConvertedSources() throws Exception {
+    server.putObject("src", "img/a.png", "image/png", png(400, 200, Color.RED));
+    server.putObject("src", "img/b.png", "image/png", png(200, 400, Color.BLUE));
+    Path file = Files.createTempFile("manifest", ".log");
+    try {
+      try (ConversionManifest manifest = ConversionManifest.open(file)) {
+        assertThat(newPipeline().manifest(manifest).build().run(listing("img/")).getConverted())
+            .isEqualTo(2L);
+      }
+      server.putObject("src", "img/b.png", "image/png", png(200, 400, Color.GREEN));
+      try (ConversionManifest manifest = ConversionManifest.open(file)) {
+        ConversionPipeline.ConversionStats stats =
+            newPipeline().manifest(manifest).build().run(listing("img/"));
+        assertThat(stats.upToDate.get()).isEqualTo(1L);
+        assertThat(stats.getConverted()).isEqualTo(1L);
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void identicalSourcesAreConvertedOnce() throws Exception {
+    byte[] image = png(400, 200, Color.RED);
+    server.putObject("src", "img/a.png", "image/png", image);
+    server.putObject("src", "img/b.png", "image/png", image);
+
+    ConversionPipeline.ConversionStats stats = newPipeline().build().run(listing("img/"));
+
+    assertThat(stats.getConverted()).isEqualTo(2L);
+    assertThat(stats.renditionsUploaded.get()).isEqualTo(2L);
+    assertThat(stats.renditionsCopied.get()).isEqualTo(2L);
+    assertThat(server.getObjectContent("out", "small/img/b.png"))
+        .isEqualTo(server.getObjectContent("out", "small/img/a.png"));
+    assertThat(server.getObjectContent("out", "big/img/b.png"))
+        .isEqualTo(server.getObjectContent("out", "big/img/a.png"));
+  }
+
+  @Test
+  public void deduplicationCanBeTurnedOff() throws Exception {
+    byte[] image = png(400, 200, Color.RED);
+    server.putObject("src", "img/a.png", "image/png", image);
+    server.putObject("src", "img/b.png", "image/png", image);
+
+    ConversionPipeline.ConversionStats stats =
+        newPipeline().deduplicate(false).build().run(listing("img/"));
+
+    assertThat(stats.renditionsUploaded.get()).isEqualTo(4L);
+    assertThat(stats.renditionsCopied.get()).isEqualTo(0L);
+  }
+
+  @Test
+  public void aFailedObjectIsCountedAndTheRunStillFinishes() throws Exception {
+    server.putObject("src", "img/broken.png", "image/png", "not a png".getBytes());
+    server.putObject("src", "img/notes.txt", "text/plain", "not an image".getBytes());
+
+    ConversionPipeline.ConversionStats stats = newPipeline().build().run(listing("img/"));
+
+    assertThat(stats.getFailed()).isEqualTo(1L);
+    assertThat(stats.getConverted()).isEqualTo(0L);
+    assertThat(stats.skipped.get()).isEqualTo(1L);
+    assertThat(server.getObjectContent("out", "small/img/broken.png")).isNull();
+  }
+
+  @Test(timeout = 60000)
+  public void aJsonApiGcsServiceDoesNotTakeASecondSlot() throws Exception {
+    for (int i = 0; i < 8; i++) {
+      server.putObject("src", "img/" + i + ".png", "image/png", png(40, 20, Color.RED));
+    }
+    // The client and the pipeline share a policy with room for only two requests at once.
+    TrafficPolicy policy = new TrafficPolicy.Builder().inFlight(2, 1, 2).build();
+    Storage pacedStorage = new StorageFactory.Builder()
+        .rootUrl(server.getRootUrl())
+        .anonymous(true)
+        .trafficPolicy(policy)
+        .build();
+
+    ConversionPipeline.ConversionStats stats =
+        new ConversionPipeline.Builder(pacedStorage, new JsonApiGcsService(pacedStorage))
+            .destinationBucket("out")
+            .transformer(new Java2DImageTransformer())
+            .renditions(RenditionSpec.parse(RENDITIONS))
+            .trafficPolicy(policy)
+            .deduplicate(false)
+            .reportIntervalSeconds(0)
+            .build()
+            .run(new BucketListing(
+                pacedStorage, "src", "img/", BucketListing.CONVERSION_FIELDS, null));
+
+    assertThat(stats.getConverted()).isEqualTo(8L);
+    assertThat(stats.renditionsUploaded.get()).isEqualTo(16L);
+  }
+
+  @Test
+  public void failureStatusReportsTheHttpStatus() {
+    HttpResponseException forbidden = new GoogleJsonResponseException(
+        new HttpResponseException.Builder(403, "Forbidden", new HttpHeaders()),
+        new GoogleJsonError());
+    assertThat(ConversionPipeline.failureStatus(new IOException(forbidden))).isEqualTo(403);
+    assertThat(ConversionPipeline.failureStatus(new SocketTimeoutException())).isEqualTo(0);
+  }
+
+  ConversionPipeline.Builder newPipeline() {
+    return new ConversionPipeline.Builder(storage, new JsonApiGcsService(storage))
+        .destinationBucket("out")
+        .contentTypes("image/png")
+        .transformer(new Java2DImageTransformer())
+        .renditions(RenditionSpec.parse(RENDITIONS))
+        .reportIntervalSeconds(0);
+  }
+
+  BucketListing listing(String prefix) {
+    return new BucketListing(storage, "src", prefix, BucketListing.CONVERSION_FIELDS, null);
+  }
+
+  static byte[] png(int width, int height, Color color) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(color);
+    graphics.fillRect(0, 0, width, height);
+    graphics.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "png", out);
+    return out.toByteArray();
+  }
+}
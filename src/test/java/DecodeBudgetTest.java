@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * Admits images against a {@link DecodeBudget}.
+ */
+public class DecodeBudgetTest {
+
+  private static final long MIB = 1024 * 1024;
+
+  @Test
+  public void admitsUpToTheBudget() throws Exception {
+    DecodeBudget budget = new DecodeBudget(10 * MIB);
+    int first = budget.acquire(4 * MIB);
+    int second = budget.acquire(6 * MIB);
+    assertThat(budget.getAdmittedBytes()).isEqualTo(10 * MIB);
+    budget.release(first);
+    budget.release(second);
+    assertThat(budget.getAdmittedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void anImageLargerThanTheBudgetIsAdmittedAlone() throws Exception {
+    DecodeBudget budget = new DecodeBudget(10 * MIB);
+    int share = budget.acquire(50 * MIB);
+    assertThat(budget.getAdmittedBytes()).isEqualTo(10 * MIB);
+    budget.release(share);
+    // Tiny images still take some of the budget.
+    share = budget.acquire(1);
+    assertThat(budget.getAdmittedBytes()).isEqualTo(1024L);
+    budget.release(share);
+  }
+
+  @Test
+  public void smallImagesQueueBehindAWaitingLargeOne() throws Exception {
+    final DecodeBudget budget = new DecodeBudget(10 * MIB);
+    int held = budget.acquire(6 * MIB);
+    final AtomicInteger order = new AtomicInteger();
+    final int[] admitted = new int[2];
+    // Once admitted, the large image leaves too little for the small one until it is released.
+    Thread large = admit(budget, 9 * MIB, order, admitted, 0);
+    awaitWaiting(budget, 1);
+    // 4 MiB is free, enough for the small image, but the large one came first.
+    Thread small = admit(budget, 2 * MIB, order, admitted, 1);
+    awaitWaiting(budget, 2);
+
+    budget.release(held);
+    large.join(10000);
+    small.join(10000);
+    assertThat(admitted[0]).isEqualTo(1);
+    assertThat(admitted[1]).isEqualTo(2);
+    assertThat(budget.getAdmittedBytes()).isEqualTo(0L);
+  }
+
+  private static Thread admit(final DecodeBudget budget, final long cost,
+      final AtomicInteger order, final int[] admitted, final int slot) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int share = budget.acquire(cost);
+          admitted[slot] = order.incrementAndGet();
+          budget.release(share);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+  private static void awaitWaiting(DecodeBudget budget, int waiting) throws Exception {
+    for (int i = 0; i < 1000 && budget.getWaiting() < waiting; i++) {
+      Thread.sleep(5);
+    }
+    assertThat(budget.getWaiting()).isEqualTo(waiting);
+  }
+}
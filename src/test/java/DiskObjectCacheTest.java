@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Caches object contents in a {@link DiskObjectCache} and reopens it.
+ */
+public class DiskObjectCacheTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("disk-cache");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (File file : directory.toFile().listFiles()) {
+      Files.delete(file.toPath());
+    }
+    Files.delete(directory);
+  }
+
+  @Test
+  public void loadsOnceAndThenHits() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    try (DiskObjectCache cache = newCache(1000)) {
+      assertThat(cache.get("bucket", "obj", 1L)).isNull();
+      assertThat(cache.get("bucket", "obj", 1L, loader(10, loads)).remaining()).isEqualTo(10);
+      assertThat(cache.get("bucket", "obj", 1L, loader(10, loads)).remaining()).isEqualTo(10);
+      // Another generation is another entry.
+      assertThat(cache.get("bucket", "obj", 2L, loader(20, loads)).remaining()).isEqualTo(20);
+      assertThat(loads.get()).isEqualTo(2);
+      assertThat(cache.getBytes()).isEqualTo(30L);
+    }
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsed() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    try (DiskObjectCache cache = newCache(250)) {
+      cache.get("bucket", "a", 1L, loader(100, loads));
+      cache.get("bucket", "b", 1L, loader(100, loads));
+      cache.get("bucket", "a", 1L);
+      cache.get("bucket", "c", 1L, loader(100, loads));
+      assertThat(cache.getEntries()).isEqualTo(2);
+      assertThat(cache.get("bucket", "b", 1L)).isNull();
+      assertThat(cache.get("bucket", "a", 1L)).isNotNull();
+    }
+  }
+
+  @Test
+  public void entriesAndTheirOrderSurviveReopening() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    try (DiskObjectCache cache = newCache(250)) {
+      cache.get("bucket", "a", 1L, loader(100, loads));
+      cache.get("bucket", "b", 1L, loader(100, loads));
+      cache.get("bucket", "a", 1L);
+    }
+    try (DiskObjectCache cache = newCache(250)) {
+      assertThat(cache.getEntries()).isEqualTo(2);
+      cache.get("bucket", "c", 1L, loader(100, loads));
+      assertThat(cache.get("bucket", "a", 1L)).isNotNull();
+      assertThat(cache.get("bucket", "b", 1L)).isNull();
+    }
+  }
+
+  @Test
+  public void onlyStaleTemporaryFilesAreDeleted() throws Exception {
+    Path stale = Files.createTempFile(directory, "stale", ".tmp");
+    Files.setLastModifiedTime(stale, FileTime.fromMillis(
+        System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+    // Possibly still being written by another process sharing the directory.
+    Path fresh = Files.createTempFile(directory, "fresh", ".tmp");
+
+    newCache(1000).close();
+
+    assertThat(Files.exists(stale)).isFalse();
+    assertThat(Files.exists(fresh)).isTrue();
+  }
+
+  @Test
+  public void aFailedLoadLeavesNothingBehind() throws Exception {
+    try (DiskObjectCache cache = newCache(1000)) {
+      try {
+        cache.get("bucket", "obj", 1L, new DiskObjectCache.Loader() {
+          @Override
+          public void writeTo(OutputStream out) throws IOException {
+            out.write(new byte[5]);
+            throw new IOException("connection reset");
+          }
+        });
+        throw new AssertionError("The load should have failed");
+      } catch (IOException expected) {
+        assertThat(expected.getMessage()).isEqualTo("connection reset");
+      }
+      assertThat(cache.getEntries()).isEqualTo(0);
+    }
+    assertThat(Arrays.asList(directory.toFile().list())).containsExactly("index");
+  }
+
+  private DiskObjectCache newCache(long maxBytes) throws IOException {
+    return new DiskObjectCache.Builder(directory).maxBytes(maxBytes).build();
+  }
+
+  private static DiskObjectCache.Loader loader(final int length, final AtomicInteger loads) {
+    return new DiskObjectCache.Loader() {
+      @Override
+      public void writeTo(OutputStream out) throws IOException {
+        loads.incrementAndGet();
+        out.write(new byte[length]);
+      }
+    };
+  }
+}
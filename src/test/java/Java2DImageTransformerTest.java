@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import org.junit.Test;
+
+/**
+ * Resizes and re-encodes images with {@link Java2DImageTransformer}.
+ */
+public class Java2DImageTransformerTest {
+
+  private final Java2DImageTransformer transformer = new Java2DImageTransformer();
+
+  @Test
+  public void resizePreservesTheAspectRatio() throws Exception {
+    BufferedImage source = transformer.decode(ConversionPipelineTest.png(640, 480, Color.RED));
+    BufferedImage resized = transformer.resize(source, 100, 100);
+    assertThat(resized.getWidth()).isEqualTo(100);
+    assertThat(resized.getHeight()).isEqualTo(75);
+  }
+
+  @Test
+  public void resizeSurvivesManyHalvings() throws Exception {
+    BufferedImage source = transformer.decode(ConversionPipelineTest.png(1000, 20, Color.RED));
+    BufferedImage resized = transformer.resize(source, 10, 10);
+    assertThat(resized.getWidth()).isEqualTo(10);
+    assertThat(resized.getHeight()).isEqualTo(1);
+  }
+
+  @Test
+  public void scaleToHitsTheExactSize() throws Exception {
+    BufferedImage source = transformer.decode(ConversionPipelineTest.png(1000, 10, Color.RED));
+    BufferedImage scaled = transformer.scaleTo(source, 37, 3);
+    assertThat(scaled.getWidth()).isEqualTo(37);
+    assertThat(scaled.getHeight()).isEqualTo(3);
+  }
+
+  @Test
+  public void encodesJpegFromAnImageWithAlpha() throws Exception {
+    BufferedImage translucent = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+    byte[] jpeg = transformer.encode(translucent, "jpeg", 80);
+    BufferedImage decoded = transformer.decode(jpeg);
+    assertThat(decoded.getWidth()).isEqualTo(20);
+    assertThat(decoded.getColorModel().hasAlpha()).isFalse();
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsDataThatIsNotAnImage() throws Exception {
+    transformer.decode("not an image".getBytes("UTF-8"));
+  }
+
+  @Test
+  public void fitWithinKeepsAtLeastOnePixel() {
+    int[] size = ImageTransformer.fitWithin(10000, 1, 100, 100);
+    assertThat(size[0]).isEqualTo(100);
+    assertThat(size[1]).isEqualTo(1);
+  }
+
+  @Test
+  public void forNameSelectsTheBackend() {
+    assertThat(ImageTransformer.forName("java2d")).isInstanceOf(Java2DImageTransformer.class);
+    assertThat(ImageTransformer.forName(null)).isInstanceOf(ImagesServiceTransformer.class);
+  }
+
+  @Test
+  public void decodeSubsamplesDownToTwiceTheBox() throws Exception {
+    byte[] png = ConversionPipelineTest.png(1600, 800, Color.RED);
+    BufferedImage decoded = transformer.decode(png, 200, 100);
+    assertThat(decoded.getWidth()).isEqualTo(400);
+    assertThat(decoded.getHeight()).isEqualTo(200);
+    // No subsampling when the image is already less than twice the box.
+    assertThat(transformer.decode(png, 1000, 1000).getWidth()).isEqualTo(1600);
+  }
+
+  @Test
+  public void readSizeReturnsTheHeaderDimensions() throws Exception {
+    int[] size = transformer.readSize(ConversionPipelineTest.png(1000, 333, Color.RED));
+    assertThat(size[0]).isEqualTo(1000);
+    assertThat(size[1]).isEqualTo(333);
+  }
+
+  @Test
+  public void subsamplingKeepsTheLimitingDimension() {
+    assertThat(Java2DImageTransformer.subsampling(1000, 1000, 100, 100)).isEqualTo(5);
+    assertThat(Java2DImageTransformer.subsampling(4000, 1000, 100, 500)).isEqualTo(20);
+    assertThat(Java2DImageTransformer.subsampling(150, 150, 100, 100)).isEqualTo(1);
+  }
+
+  @Test
+  public void estimateFollowsTheSubsampledSize() throws Exception {
+    byte[] png = ConversionPipelineTest.png(1600, 800, Color.RED);
+    long full = transformer.estimateDecodedBytes(png, 1600, 800);
+    long reduced = transformer.estimateDecodedBytes(png, 200, 100);
+    assertThat(full).isAtLeast(1600L * 800 * 4);
+    assertThat(reduced).isAtMost(full / 8);
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Rotates customer-supplied keys of objects held by a {@link LocalGcsServer}.
+ */
+public class KeyRotationTest {
+
+  private static final String[] OLD_KEY = newKey(1);
+  private static final String[] NEW_KEY = newKey(2);
+
+  private LocalGcsServer server;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().rewriteBytesPerCall(1000).build();
+    storage = server.newClient();
+    for (int i = 0; i < 3; i++) {
+      CustomerSuppliedEncryptionKeysSamples.insertObject(storage, "bucket", "keys/" + i,
+          new ByteArrayInputStream(new byte[2500]), OLD_KEY[0], OLD_KEY[1]);
+    }
+    server.putObject("bucket", "keys/plain", "text/plain", new byte[10]);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void rewritesEveryEncryptedObjectWithTheNewKey() throws Exception {
+    KeyRotation.RotationStats stats = newRotation(OLD_KEY).rotate("bucket", "keys/");
+
+    assertThat(stats.getFailures()).isEmpty();
+    assertThat(stats.getRotated()).isEqualTo(3L);
+    assertThat(stats.skipped.get()).isEqualTo(1L);
+    // 2500 bytes at 1000 per call.
+    assertThat(stats.rewriteCalls.get()).isEqualTo(9L);
+    try (InputStream in = CustomerSuppliedEncryptionKeysSamples.openObject(
+        storage, "bucket", "keys/1", NEW_KEY[0], NEW_KEY[1])) {
+      assertThat(ByteStreams.toByteArray(in).length).isEqualTo(2500);
+    }
+
+    // Everything is on the new key now, so a second run has nothing to do.
+    stats = newRotation(OLD_KEY).rotate("bucket", "keys/");
+    assertThat(stats.getRotated()).isEqualTo(0L);
+    assertThat(stats.skipped.get()).isEqualTo(4L);
+  }
+
+  @Test
+  public void failuresAreRecordedPerObject() throws Exception {
+    KeyRotation.RotationStats stats = newRotation(newKey(3)).rotate("bucket", "keys/");
+
+    assertThat(stats.getRotated()).isEqualTo(0L);
+    assertThat(stats.getFailures()).hasSize(3);
+    assertThat(stats.getFailures()).containsKey("keys/0");
+  }
+
+  private KeyRotation newRotation(String[] oldKey) {
+    return new KeyRotation.Builder(storage, oldKey[0], oldKey[1], NEW_KEY[0], NEW_KEY[1])
+        .concurrency(2)
+        .maxAttempts(1)
+        .reportIntervalSeconds(0)
+        .build();
+  }
+
+  /**
+   * Returns a base64 AES256 key and its base64 SHA-256 hash.
+   */
+  static String[] newKey(long seed) {
+    byte[] key = new byte[32];
+    new Random(seed).nextBytes(key);
+    return new String[] {
+        BaseEncoding.base64().encode(key),
+        BaseEncoding.base64().encode(Hashing.sha256().hashBytes(key).asBytes())};
+  }
+}
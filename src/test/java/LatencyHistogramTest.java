@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Records values in a {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void emptyHistogramReportsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertThat(histogram.getCount()).isEqualTo(0L);
+    assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0L);
+    assertThat(histogram.getMean()).isEqualTo(0.0);
+  }
+
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 60; value++) {
+      histogram.record(value);
+    }
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(30L);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(60L);
+    assertThat(histogram.getMean()).isEqualTo(30.5);
+  }
+
+  @Test
+  public void largeValuesAreWithinThePrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100000; value++) {
+      histogram.record(value * 10);
+    }
+    assertThat(histogram.getCount()).isEqualTo(100000L);
+    assertThat(histogram.getMax()).isEqualTo(1000000L);
+    long[][] expected = {{50, 500000}, {90, 900000}, {99, 990000}};
+    for (long[] percentile : expected) {
+      long value = histogram.getValueAtPercentile(percentile[0]);
+      assertThat(value).isAtLeast(percentile[1]);
+      assertThat(value).isAtMost(percentile[1] + percentile[1] / 32);
+    }
+    assertThat(histogram.getValueAtPercentile(99.9)).isAtLeast(999000L);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(1000000L);
+  }
+
+  @Test
+  public void theWholeRangeFits() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0L);
+    assertThat(histogram.getValueAtPercentile(100)).isEqualTo(Long.MAX_VALUE);
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.Objects;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.common.io.ByteStreams;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the field selection, seeding and simulated network conditions of a
+ * {@link LocalGcsServer}.
+ */
+public class LocalGcsServerTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    server.putObject("bucket", "dir/a", "text/plain", new byte[3]);
+    server.putObject("bucket", "dir/b", "text/plain", new byte[4]);
+    server.putObject("bucket", "dir/sub/c", "text/plain", new byte[5]);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void withoutFieldsTheFullResourceIsReturned() throws Exception {
+    StorageObject object = storage.objects().get("bucket", "dir/a").execute();
+    assertThat(object.getBucket()).isEqualTo("bucket");
+    assertThat(object.getGeneration()).isNotNull();
+    assertThat(object.getMd5Hash()).isNotNull();
+  }
+
+  @Test
+  public void topLevelFieldsAreSelected() throws Exception {
+    StorageObject object =
+        storage.objects().get("bucket", "dir/a").setFields("name,size").execute();
+    assertThat(object.getName()).isEqualTo("dir/a");
+    assertThat(object.getSize().longValue()).isEqualTo(3L);
+    assertThat(object.getBucket()).isNull();
+    assertThat(object.getGeneration()).isNull();
+    assertThat(object.getContentType()).isNull();
+  }
+
+  @Test
+  public void itemsAreSelectedInsideTheList() throws Exception {
+    Objects page = storage.objects().list("bucket")
+        .setPrefix("dir/")
+        .setDelimiter("/")
+        .setMaxResults(1L)
+        .setFields("nextPageToken,items(name,generation)")
+        .execute();
+    assertThat(page.getNextPageToken()).isNotNull();
+    assertThat(page.getKind()).isNull();
+    StorageObject item = page.getItems().get(0);
+    assertThat(item.getName()).isEqualTo("dir/a");
+    assertThat(item.getGeneration()).isNotNull();
+    assertThat(item.getSize()).isNull();
+    assertThat(item.getBucket()).isNull();
+
+    page = storage.objects().list("bucket")
+        .setPrefix("dir/")
+        .setDelimiter("/")
+        .setFields("prefixes,items/name,items/size")
+        .execute();
+    assertThat(page.getPrefixes()).containsExactly("dir/sub/");
+    assertThat(BucketListingTest.names(page.getItems())).containsExactly("dir/a", "dir/b");
+    assertThat(page.getItems().get(1).getSize().longValue()).isEqualTo(4L);
+    assertThat(page.getItems().get(1).getMd5Hash()).isNull();
+  }
+
+  @Test
+  public void nestedFieldsAreSelected() throws Exception {
+    storage.objects().patch("bucket", "dir/a",
+        new StorageObject().setMetadata(Collections.singletonMap("color", "red"))).execute();
+    StorageObject object = storage.objects().get("bucket", "dir/a")
+        .setFields("metadata(color,missing),name")
+        .execute();
+    assertThat(object.getName()).isEqualTo("dir/a");
+    assertThat(object.getMetadata()).isEqualTo(Collections.singletonMap("color", "red"));
+    assertThat(object.getSize()).isNull();
+  }
+
+  @Test
+  public void aMalformedSelectionIsRejected() throws Exception {
+    try {
+      storage.objects().get("bucket", "dir/a").setFields("items(name").execute();
+      throw new AssertionError("Expected a 400");
+    } catch (HttpResponseException e) {
+      assertThat(e.getStatusCode()).isEqualTo(400);
+    }
+  }
+
+  @Test
+  public void putDirectoryStoresEachFileByItsRelativePath() throws Exception {
+    Path directory = Files.createTempDirectory("seed");
+    try {
+      Files.createDirectories(directory.resolve("sub"));
+      Files.write(directory.resolve("a.txt"), new byte[] {1});
+      Files.write(directory.resolve("sub/b.txt"), new byte[] {2, 3});
+
+      assertThat(server.putDirectory("seeded", directory)).isEqualTo(2);
+      assertThat(server.getObjectContent("seeded", "a.txt")).isEqualTo(new byte[] {1});
+      assertThat(server.getObjectContent("seeded", "sub/b.txt")).isEqualTo(new byte[] {2, 3});
+    } finally {
+      Files.delete(directory.resolve("sub/b.txt"));
+      Files.delete(directory.resolve("sub"));
+      Files.delete(directory.resolve("a.txt"));
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void latencyDelaysEveryExchange() throws Exception {
+    try (LocalGcsServer slow = new LocalGcsServer.Builder().latencyMillis(300, 300).build()) {
+      slow.putObject("bucket", "obj", "text/plain", new byte[1]);
+      long start = System.nanoTime();
+      slow.newClient().objects().get("bucket", "obj").execute();
+      assertThat((System.nanoTime() - start) / 1000000).isAtLeast(300L);
+    }
+  }
+
+  @Test
+  public void bandwidthCapsDownloads() throws Exception {
+    try (LocalGcsServer capped =
+        new LocalGcsServer.Builder().bandwidthBytesPerSecond(256 * 1024).build()) {
+      capped.putObject("bucket", "obj", "application/octet-stream", new byte[512 * 1024]);
+      long start = System.nanoTime();
+      try (InputStream in =
+          capped.newClient().objects().get("bucket", "obj").executeMediaAsInputStream()) {
+        assertThat(ByteStreams.toByteArray(in).length).isEqualTo(512 * 1024);
+      }
+      assertThat((System.nanoTime() - start) / 1000000).isAtLeast(1000L);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.storage.Storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Caches metadata read from a {@link LocalGcsServer}.
+ */
+public class MetadataCacheTest {
+
+  private LocalGcsServer server;
+  private MetadataCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    Storage storage = server.newClient();
+    cache = new MetadataCache.Builder(storage).ttlSeconds(60).build();
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void repeatedReadsHitTheCache() throws Exception {
+    assertThat(cache.getBucket("bucket").getName()).isEqualTo("bucket");
+    assertThat(cache.getBucket("bucket").getName()).isEqualTo("bucket");
+    assertThat(cache.getBucketStats().hitCount()).isEqualTo(1L);
+    assertThat(server.getRequestCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void invalidatedBucketsAreFetchedAgain() throws Exception {
+    cache.getBucket("bucket");
+    cache.invalidateBucket("bucket");
+    cache.getBucket("bucket");
+    assertThat(cache.getBucketStats().missCount()).isEqualTo(2L);
+    assertThat(server.getRequestCount()).isEqualTo(2L);
+  }
+
+  @Test(expected = GoogleJsonResponseException.class)
+  public void failedLoadsKeepTheirException() throws Exception {
+    server.close();
+    server = new LocalGcsServer.Builder().errorRate(503, 1).build();
+    new MetadataCache.Builder(server.newClient()).build().getBucket("bucket");
+  }
+}
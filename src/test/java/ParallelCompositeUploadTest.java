@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uploads files in parts to a {@link LocalGcsServer}.
+ */
+public class ParallelCompositeUploadTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private File file;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    file = File.createTempFile("pcu", ".bin");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    Files.deleteIfExists(file.toPath());
+  }
+
+  @Test
+  public void composesThePartsAndDeletesThem() throws Exception {
+    byte[] data = write(10000);
+    StorageObject result = upload(1000).upload(
+        file, "bucket", new StorageObject().setName("big.bin"));
+
+    assertThat(result.getSize().longValue()).isEqualTo(10000L);
+    assertThat(Arrays.equals(server.getObjectContent("bucket", "big.bin"), data)).isTrue();
+    assertThat(BucketListingTest.names(new BucketListing(storage, "bucket", null, null, null)))
+        .containsExactly("big.bin");
+  }
+
+  @Test
+  public void composesInRoundsAboveThirtyTwoParts() throws Exception {
+    byte[] data = write(70 * 100 + 1);
+    upload(100).upload(file, "bucket", new StorageObject().setName("many.bin"));
+
+    assertThat(Arrays.equals(server.getObjectContent("bucket", "many.bin"), data)).isTrue();
+    assertThat(BucketListingTest.names(new BucketListing(storage, "bucket", null, null, null)))
+        .containsExactly("many.bin");
+  }
+
+  @Test
+  public void shouldUseOnlyAboveTheThresholdAndOnePart() throws Exception {
+    write(5000);
+    ParallelCompositeUpload upload = new ParallelCompositeUpload.Builder(storage)
+        .thresholdBytes(4000)
+        .partSizeBytes(1000)
+        .build();
+    assertThat(upload.shouldUse(file)).isTrue();
+    write(3000);
+    assertThat(upload.shouldUse(file)).isFalse();
+  }
+
+  private ParallelCompositeUpload upload(long partSizeBytes) {
+    return new ParallelCompositeUpload.Builder(storage)
+        .partSizeBytes(partSizeBytes)
+        .parallelism(4)
+        .build();
+  }
+
+  private byte[] write(int length) throws Exception {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    Files.write(file.toPath(), data);
+    return data;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Parses rendition specs and renders them with {@link Java2DImageTransformer}.
+ */
+public class RenditionSpecTest {
+
+  private static final String SPEC =
+      "100x50:jpeg:85:1x/{base}.jpeg, 300x150:png:0:3x/{base}.{format},200x100:jpg:85:{name}";
+
+  @Test
+  public void parseOrdersRenditionsLargestFirst() {
+    List<RenditionSpec.Rendition> renditions = RenditionSpec.parse(SPEC).getRenditions();
+    assertThat(renditions).hasSize(3);
+    assertThat(renditions.get(0).getWidth()).isEqualTo(300);
+    assertThat(renditions.get(1).getWidth()).isEqualTo(200);
+    assertThat(renditions.get(2).getWidth()).isEqualTo(100);
+    assertThat(renditions.get(1).getContentType()).isEqualTo("image/jpeg");
+    assertThat(renditions.get(0).getContentType()).isEqualTo("image/png");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void parseRejectsAMalformedEntry() {
+    RenditionSpec.parse("100x50:jpeg:85");
+  }
+
+  @Test
+  public void objectNameFillsTheTemplate() {
+    List<RenditionSpec.Rendition> renditions = RenditionSpec.parse(SPEC).getRenditions();
+    assertThat(renditions.get(0).objectName("photos/cat.png")).isEqualTo("3x/photos/cat.png");
+    assertThat(renditions.get(2).objectName("photos/cat.png"))
+        .isEqualTo("1x/photos/cat.jpeg");
+    // A dot in a folder name is not an extension.
+    assertThat(renditions.get(2).objectName("v1.2/cat")).isEqualTo("1x/v1.2/cat.jpeg");
+    assertThat(renditions.get(1).objectName("photos/cat.png")).isEqualTo("photos/cat.png");
+  }
+
+  @Test
+  public void maxBoxCoversEveryRendition() {
+    RenditionSpec spec = RenditionSpec.parse("100x300:png:0:a,200x100:png:0:b");
+    assertThat(spec.getMaxWidth()).isEqualTo(200);
+    assertThat(spec.getMaxHeight()).isEqualTo(300);
+  }
+
+  @Test
+  public void renderFitsEachRenditionFromOneDecode() throws Exception {
+    Java2DImageTransformer transformer = new Java2DImageTransformer();
+    BufferedImage source =
+        transformer.decode(ConversionPipelineTest.png(1200, 600, Color.BLUE));
+    List<BufferedImage> rendered = RenditionSpec.parse(SPEC).render(transformer, source);
+    assertThat(rendered).hasSize(3);
+    assertThat(rendered.get(0).getWidth()).isEqualTo(300);
+    assertThat(rendered.get(0).getHeight()).isEqualTo(150);
+    assertThat(rendered.get(2).getWidth()).isEqualTo(100);
+    assertThat(rendered.get(2).getHeight()).isEqualTo(50);
+  }
+
+  @Test
+  public void renderSizesASubsampledSourceFromItsOriginalDimensions() throws Exception {
+    Java2DImageTransformer transformer = new Java2DImageTransformer();
+    byte[] png = ConversionPipelineTest.png(1000, 333, Color.BLUE);
+    RenditionSpec spec = RenditionSpec.parse("100x50:png:0:{base}.png");
+    BufferedImage source = transformer.decode(png, spec.getMaxWidth(), spec.getMaxHeight());
+    // 333 rows subsampled by 5 leave 67, which alone would scale to 34.
+    assertThat(source.getHeight()).isEqualTo(67);
+
+    int[] size = transformer.readSize(png);
+    BufferedImage rendered = spec.render(transformer, source, size[0], size[1]).get(0);
+    assertThat(rendered.getWidth()).isEqualTo(100);
+    assertThat(rendered.getHeight()).isEqualTo(33);
+  }
+}
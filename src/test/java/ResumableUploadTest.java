@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Uploads files to a {@link LocalGcsServer} through {@link ResumableUpload}.
+ */
+public class ResumableUploadTest {
+
+  private static final int CHUNK = ResumableUpload.CHUNK_GRANULARITY;
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private File file;
+  private Path stateFile;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    file = File.createTempFile("resumable", ".bin");
+    data = new byte[2 * CHUNK + 1000];
+    new Random(7).nextBytes(data);
+    Files.write(file.toPath(), data);
+    stateFile = Files.createTempFile("resumable", ".state");
+    Files.delete(stateFile);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    Files.deleteIfExists(file.toPath());
+    Files.deleteIfExists(stateFile);
+  }
+
+  @Test
+  public void uploadsInChunksAndDeletesTheState() throws Exception {
+    StorageObject result = upload().upload(
+        file, "bucket", new StorageObject().setName("obj").setContentType("text/plain"));
+
+    assertThat(result.getSize().longValue()).isEqualTo((long) data.length);
+    assertThat(result.getContentType()).isEqualTo("text/plain");
+    assertThat(Arrays.equals(server.getObjectContent("bucket", "obj"), data)).isTrue();
+    assertThat(Files.exists(stateFile)).isFalse();
+  }
+
+  @Test
+  public void resumesTheSavedSession() throws Exception {
+    // A previous run that stopped after its first chunk.
+    String sessionUri = startSession("obj");
+    HttpRequest chunk = storage.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri),
+        new ByteArrayContent(null, Arrays.copyOf(data, CHUNK)));
+    chunk.setHeaders(new HttpHeaders().setContentRange(
+        "bytes 0-" + (CHUNK - 1) + "/" + data.length));
+    chunk.setThrowExceptionOnExecuteError(false);
+    assertThat(chunk.execute().getStatusCode()).isEqualTo(308);
+    saveState(sessionUri, "obj");
+
+    upload().upload(file, "bucket", new StorageObject().setName("obj"));
+
+    assertThat(Arrays.equals(server.getObjectContent("bucket", "obj"), data)).isTrue();
+    // The saved session, not a new one, received the rest.
+    assertThat(queryStatus(sessionUri)).isEqualTo(200);
+    assertThat(Files.exists(stateFile)).isFalse();
+  }
+
+  @Test
+  public void startsOverWhenTheStateIsForAnotherObject() throws Exception {
+    String sessionUri = startSession("other");
+    saveState(sessionUri, "other");
+
+    upload().upload(file, "bucket", new StorageObject().setName("obj"));
+
+    assertThat(Arrays.equals(server.getObjectContent("bucket", "obj"), data)).isTrue();
+    assertThat(server.getObjectContent("bucket", "other")).isNull();
+    assertThat(queryStatus(sessionUri)).isEqualTo(308);
+  }
+
+  @Test
+  public void uploadsAnEmptyFile() throws Exception {
+    Files.write(file.toPath(), new byte[0]);
+    StorageObject result = upload().upload(file, "bucket", new StorageObject().setName("empty"));
+    assertThat(result.getSize().longValue()).isEqualTo(0L);
+    assertThat(server.getObjectContent("bucket", "empty").length).isEqualTo(0);
+  }
+
+  private ResumableUpload upload() {
+    return new ResumableUpload.Builder(storage)
+        .chunkSizeBytes(CHUNK)
+        .stateFile(stateFile)
+        .build();
+  }
+
+  private String startSession(String objectName) throws Exception {
+    GenericUrl url = new GenericUrl(server.getRootUrl() + "upload/storage/v1/b/bucket/o");
+    url.put("uploadType", "resumable");
+    url.put("name", objectName);
+    HttpRequest request = storage.getRequestFactory().buildPostRequest(url, new EmptyContent());
+    request.setHeaders(new HttpHeaders().set("X-Upload-Content-Length", data.length));
+    return request.execute().getHeaders().getLocation();
+  }
+
+  private int queryStatus(String sessionUri) throws Exception {
+    HttpRequest request = storage.getRequestFactory().buildPutRequest(
+        new GenericUrl(sessionUri), new EmptyContent());
+    request.setHeaders(new HttpHeaders().setContentRange("bytes */" + data.length));
+    request.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = request.execute();
+    try {
+      return response.getStatusCode();
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private void saveState(String sessionUri, String objectName) throws Exception {
+    Properties state = new Properties();
+    state.setProperty("sessionUri", sessionUri);
+    state.setProperty("bucket", "bucket");
+    state.setProperty("object", objectName);
+    state.setProperty("file", file.getAbsolutePath());
+    state.setProperty("fileLength", Long.toString(file.length()));
+    state.setProperty("fileLastModified", Long.toString(file.lastModified()));
+    try (OutputStream out = Files.newOutputStream(stateFile)) {
+      state.store(out, null);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Lists buckets held by a {@link LocalGcsServer} shard by shard.
+ */
+public class ShardedBucketListingTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private List<String> expected;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    expected = new ArrayList<String>();
+    for (String name : new String[] {"top", "a/1", "a/x/1", "a/x/2", "a/y/1", "b/1", "b/2",
+        "c/z/1", "d"}) {
+      server.putObject("bucket", name, "text/plain", new byte[0]);
+      expected.add(name);
+    }
+    for (int i = 0; i < 12; i++) {
+      String name = String.format("e/%02d", i);
+      server.putObject("bucket", name, "text/plain", new byte[0]);
+      expected.add(name);
+    }
+    Collections.sort(expected);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void orderedListingMatchesAPlainListing() {
+    ShardedBucketListing listing = newListing().ordered(true).build();
+    assertThat(BucketListingTest.names(listing)).containsExactlyElementsIn(expected).inOrder();
+    assertThat(BucketListingTest.names(new BucketListing(storage, "bucket", null, null, 5L)))
+        .containsExactlyElementsIn(expected).inOrder();
+  }
+
+  @Test
+  public void unorderedListingReturnsEveryObjectOnce() {
+    ShardedBucketListing listing = newListing().build();
+    assertThat(BucketListingTest.names(listing)).containsExactlyElementsIn(expected);
+    assertThat(listing.stream().count()).isEqualTo((long) expected.size());
+  }
+
+  @Test
+  public void onlyTheOrderedSpliteratorReportsOrder() {
+    Spliterator<?> unordered = newListing().build().spliterator();
+    assertThat(unordered.hasCharacteristics(Spliterator.ORDERED)).isFalse();
+    Spliterator<?> ordered = newListing().ordered(true).build().spliterator();
+    assertThat(ordered.hasCharacteristics(Spliterator.ORDERED)).isTrue();
+    // Drain both, so their shard workers finish.
+    unordered.forEachRemaining(new Consumer<Object>() {
+      @Override
+      public void accept(Object object) {}
+    });
+    ordered.forEachRemaining(new Consumer<Object>() {
+      @Override
+      public void accept(Object object) {}
+    });
+  }
+
+  @Test
+  public void listsOnlyThePrefix() {
+    assertThat(BucketListingTest.names(newListing().prefix("a/").ordered(true).build()))
+        .containsExactly("a/1", "a/x/1", "a/x/2", "a/y/1").inOrder();
+  }
+
+  private ShardedBucketListing.Builder newListing() {
+    return new ShardedBucketListing.Builder(storage, "bucket")
+        .pageSize(2L)
+        .concurrency(3)
+        .bufferedObjects(2);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Downloads objects from a {@link LocalGcsServer} in slices.
+ */
+public class SlicedDownloadTest {
+
+  private LocalGcsServer server;
+  private Storage storage;
+  private Path destination;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    storage = server.newClient();
+    destination = Files.createTempFile("sliced", ".bin");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    server.close();
+    Files.deleteIfExists(destination);
+  }
+
+  @Test
+  public void reassemblesTheSlices() throws Exception {
+    byte[] data = new byte[10 * 1000 + 7];
+    new Random(3).nextBytes(data);
+    StorageObject stored = server.putObject("bucket", "obj", "application/octet-stream", data);
+    // Longer than the object, so the download must truncate it.
+    Files.write(destination, new byte[20000]);
+
+    StorageObject metadata = download().download("bucket", "obj", destination);
+
+    assertThat(metadata.getGeneration()).isEqualTo(stored.getGeneration());
+    assertThat(Arrays.equals(Files.readAllBytes(destination), data)).isTrue();
+  }
+
+  @Test
+  public void downloadsAnEmptyObject() throws Exception {
+    server.putObject("bucket", "empty", "text/plain", new byte[0]);
+    download().download("bucket", "empty", destination);
+    assertThat(Files.size(destination)).isEqualTo(0L);
+  }
+
+  @Test(expected = GoogleJsonResponseException.class)
+  public void failsForAMissingObject() throws Exception {
+    download().download("bucket", "missing", destination);
+  }
+
+  private SlicedDownload download() {
+    return new SlicedDownload.Builder(storage)
+        .sliceSizeBytes(1000)
+        .parallelism(4)
+        .build();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.services.storage.Storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Builds Storage clients for a {@link LocalGcsServer}.
+ */
+public class StorageFactoryTest {
+
+  private LocalGcsServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    server.putObject("bucket", "obj", "text/plain", "hello".getBytes("UTF-8"));
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void requestsGetTheConfiguredTimeouts() throws Exception {
+    Storage storage = newBuilder()
+        .connectTimeoutMillis(1234)
+        .readTimeoutMillis(5678)
+        .build();
+    HttpRequest request =
+        storage.getRequestFactory().buildGetRequest(new GenericUrl(server.getRootUrl()));
+    assertThat(request.getConnectTimeout()).isEqualTo(1234);
+    assertThat(request.getReadTimeout()).isEqualTo(5678);
+  }
+
+  @Test
+  public void apacheTransportWithoutKeepAliveReachesTheServer() throws Exception {
+    Storage storage = newBuilder()
+        .useApacheTransport(true)
+        .maxConnectionsPerRoute(2)
+        .maxConnectionsTotal(4)
+        .keepAlive(false)
+        .build();
+    assertThat(storage.getRequestFactory().getTransport()).isInstanceOf(ApacheHttpTransport.class);
+    for (int i = 0; i < 5; i++) {
+      assertThat(storage.objects().get("bucket", "obj").execute().getSize().longValue())
+          .isEqualTo(5L);
+    }
+  }
+
+  @Test
+  public void metricsSeeEveryRequest() throws Exception {
+    StorageMetrics metrics = new StorageMetrics(false);
+    Storage storage = newBuilder().metrics(metrics).build();
+    storage.objects().get("bucket", "obj").execute();
+    storage.objects().get("bucket", "obj").execute();
+    long requests = 0;
+    for (StorageMetrics.Operation operation : metrics.getOperations().values()) {
+      requests += operation.getRequests();
+    }
+    assertThat(requests).isEqualTo(2L);
+  }
+
+  private StorageFactory.Builder newBuilder() {
+    return new StorageFactory.Builder()
+        .rootUrl(server.getRootUrl())
+        .anonymous(true);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the sample's helpers against a {@link LocalGcsServer} through the shared client.
+ */
+public class StorageSampleTest {
+
+  private static LocalGcsServer server;
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    server = new LocalGcsServer.Builder().build();
+    System.setProperty("sourceCache", Files.createTempDirectory("source-cache").toString());
+    StorageFactory.configure(new StorageFactory.Builder()
+        .rootUrl(server.getRootUrl())
+        .anonymous(true)
+        .trafficPolicy(null));
+  }
+
+  @AfterClass
+  public static void tearDownClass() {
+    server.close();
+  }
+
+  @Test
+  public void readImageFollowsAnOverwrittenObject() throws Exception {
+    server.putObject("bucket", "img.png", "image/png",
+        ConversionPipelineTest.png(400, 200, Color.RED));
+    BufferedImage first = StorageSample.readImage("bucket", "img.png", 100, 100);
+    assertThat(first.getWidth()).isEqualTo(200);
+
+    // The first generation is still in the disk cache, but no longer current.
+    server.putObject("bucket", "img.png", "image/png",
+        ConversionPipelineTest.png(200, 400, Color.BLUE));
+    BufferedImage second = StorageSample.readImage("bucket", "img.png", 100, 100);
+    assertThat(second.getWidth()).isEqualTo(100);
+    assertThat(second.getHeight()).isEqualTo(200);
+    assertThat(second.getRGB(0, 0)).isEqualTo(Color.BLUE.getRGB());
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Moves stream and channel data with {@link StorageUtils} and {@link FileRangeContent}.
+ */
+public class StorageUtilsTest {
+
+  private Path file;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("storage-utils", ".bin");
+    data = new byte[300 * 1000];
+    new Random(11).nextBytes(data);
+    Files.write(file, data);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void largeStreamsReadInBulk() throws Exception {
+    InputStream in = new StorageUtils.ArbitrarilyLargeInputStream(5L * 1024 * 1024 * 1024);
+    assertThat(in.skip(5L * 1024 * 1024 * 1024 - 100)).isEqualTo(5L * 1024 * 1024 * 1024 - 100);
+    byte[] buffer = new byte[256];
+    Arrays.fill(buffer, (byte) 1);
+    assertThat(in.read(buffer, 0, buffer.length)).isEqualTo(100);
+    assertThat(buffer[99]).isEqualTo((byte) 0);
+    assertThat(buffer[100]).isEqualTo((byte) 1);
+    assertThat(in.read()).isEqualTo(-1);
+    assertThat(StorageUtils.readStream(new StorageUtils.ArbitrarilyLargeInputStream(200000)))
+        .isEqualTo(200000L);
+  }
+
+  @Test
+  public void transferToCopiesTheRange() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      assertThat(StorageUtils.transferTo(channel, 1000, 200000, Channels.newChannel(out)))
+          .isEqualTo(200000L);
+      // Past the end of the file, the copy stops short.
+      assertThat(StorageUtils.transferTo(channel, data.length - 10, 100,
+          Channels.newChannel(new ByteArrayOutputStream()))).isEqualTo(10L);
+    }
+    assertThat(Arrays.equals(out.toByteArray(), Arrays.copyOfRange(data, 1000, 201000)))
+        .isTrue();
+  }
+
+  @Test
+  public void transferFromCopiesToTheEnd() throws Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      channel.truncate(0);
+      channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+      assertThat(StorageUtils.transferFrom(
+          Channels.newChannel(new ByteArrayInputStream(data)), channel, 3))
+          .isEqualTo((long) data.length);
+    }
+    byte[] copied = Files.readAllBytes(file);
+    assertThat(copied.length).isEqualTo(data.length + 3);
+    assertThat(copied[2]).isEqualTo((byte) 3);
+    assertThat(Arrays.equals(Arrays.copyOfRange(copied, 3, copied.length), data)).isTrue();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void transferToRejectsANonBlockingTarget() throws Exception {
+    Pipe pipe = Pipe.open();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      pipe.sink().configureBlocking(false);
+      StorageUtils.transferTo(channel, 0, data.length, pipe.sink());
+    } finally {
+      pipe.sink().close();
+      pipe.source().close();
+    }
+  }
+
+  @Test
+  public void fileRangeContentSendsOnlyItsRange() throws Exception {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      FileRangeContent content = new FileRangeContent("text/plain", channel, 5000, 70000);
+      assertThat(content.getLength()).isEqualTo(70000L);
+      byte[] expected = Arrays.copyOfRange(data, 5000, 75000);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      content.writeTo(out);
+      assertThat(Arrays.equals(out.toByteArray(), expected)).isTrue();
+      // The stream can be read again, e.g. for a retry.
+      for (int i = 0; i < 2; i++) {
+        try (InputStream in = content.getInputStream()) {
+          assertThat(Arrays.equals(ByteStreams.toByteArray(in), expected)).isTrue();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.api.services.storage.Storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Adapts a {@link TrafficPolicy} to outcomes, alone and attached to requests to a
+ * {@link LocalGcsServer}.
+ */
+public class TrafficPolicyTest {
+
+  private LocalGcsServer server;
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void successesRaiseTheLimitByAboutOnePerRoundTrip() throws Exception {
+    TrafficPolicy policy = newPolicy(4, 1, 8);
+    for (int i = 0; i < 5; i++) {
+      policy.release(policy.acquire(), 200, false);
+    }
+    assertThat(policy.getLimit()).isEqualTo(5);
+    for (int i = 0; i < 100; i++) {
+      policy.release(policy.acquire(), 200, false);
+    }
+    assertThat(policy.getLimit()).isEqualTo(8);
+  }
+
+  @Test
+  public void aBurstOfErrorsHalvesTheLimitOnce() throws Exception {
+    TrafficPolicy policy = newPolicy(16, 3, 32);
+    long[] starts = new long[4];
+    for (int i = 0; i < starts.length; i++) {
+      starts[i] = policy.acquire();
+    }
+    assertThat(policy.getInFlight()).isEqualTo(4);
+    for (long start : starts) {
+      policy.release(start, 503, false);
+    }
+    assertThat(policy.getLimit()).isEqualTo(8);
+    assertThat(policy.getInFlight()).isEqualTo(0);
+    // Client errors say nothing about load.
+    policy.release(policy.acquire(), 404, false);
+    assertThat(policy.getLimit()).isEqualTo(8);
+  }
+
+  @Test
+  public void theLimitNeverFallsBelowTheMinimum() throws Exception {
+    TrafficPolicy policy = newPolicy(4, 3, 8);
+    policy.release(policy.acquire(), 429, false);
+    assertThat(policy.getLimit()).isEqualTo(3);
+  }
+
+  @Test
+  public void acquireWaitsForAFreeSlot() throws Exception {
+    final TrafficPolicy policy = newPolicy(1, 1, 1);
+    long held = policy.acquire();
+    final long[] acquired = new long[1];
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          acquired[0] = policy.acquire();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    waiter.start();
+    waiter.join(200);
+    assertThat(acquired[0]).isEqualTo(0L);
+    policy.release(held, 200, false);
+    waiter.join(10000);
+    assertThat(acquired[0]).isNotEqualTo(0L);
+  }
+
+  @Test
+  public void backoffStaysWithinTheDoublingCeiling() {
+    TrafficPolicy policy = new TrafficPolicy.Builder().backoffMillis(100, 1000).build();
+    for (int i = 0; i < 100; i++) {
+      assertThat(policy.backoffMillis(1)).isAtMost(100L);
+      assertThat(policy.backoffMillis(3)).isAtMost(400L);
+      assertThat(policy.backoffMillis(40)).isAtMost(1000L);
+    }
+  }
+
+  @Test
+  public void waitingForASlotIsNotCountedAsLatency() throws Exception {
+    TrafficPolicy policy = newPolicy(1, 1, 1);
+    StorageMetrics metrics = new StorageMetrics(false);
+    final Storage storage = newStorage(new LocalGcsServer.Builder(), policy, metrics);
+    server.putObject("bucket", "obj", "text/plain", new byte[1]);
+
+    long held = policy.acquire();
+    Thread get = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          storage.objects().get("bucket", "obj").execute();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    get.start();
+    Thread.sleep(500);
+    policy.release(held, 200, false);
+    get.join(10000);
+
+    StorageMetrics.Operation operation = metrics.getOperations().get("get");
+    assertThat(operation.getRequests()).isEqualTo(1L);
+    assertThat(operation.getMaxMillis() < 500).isTrue();
+  }
+
+  @Test
+  public void retriedRequestsAndBatchPartsReturnEverySlot() throws Exception {
+    TrafficPolicy policy = new TrafficPolicy.Builder()
+        .inFlight(4, 1, 4)
+        .maxAttempts(20)
+        .backoffMillis(1, 10)
+        .build();
+    Storage storage =
+        newStorage(new LocalGcsServer.Builder().errorRate(503, 0.2), policy, null);
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < 30; i++) {
+      server.putObject("bucket", "obj" + i, "text/plain", new byte[1]);
+      names.add("obj" + i);
+    }
+    for (int i = 0; i < 10; i++) {
+      storage.objects().get("bucket", "obj" + i).execute();
+    }
+
+    List<BatchOperations.Result> results = new BatchOperations.Builder(storage)
+        .batchSize(10)
+        .concurrentBatches(2)
+        .maxAttempts(20)
+        .build()
+        .deleteObjects("bucket", names);
+
+    for (BatchOperations.Result result : results) {
+      assertThat(result.isSuccess()).isTrue();
+    }
+    assertThat(policy.getInFlight()).isEqualTo(0);
+  }
+
+  private static TrafficPolicy newPolicy(int initial, int min, int max) {
+    return new TrafficPolicy.Builder()
+        .requestsPerSecond(0)
+        .inFlight(initial, min, max)
+        .build();
+  }
+
+  private Storage newStorage(LocalGcsServer.Builder builder, TrafficPolicy policy,
+      StorageMetrics metrics) throws Exception {
+    server = builder.build();
+    return new StorageFactory.Builder()
+        .rootUrl(server.getRootUrl())
+        .anonymous(true)
+        .metrics(metrics)
+        .trafficPolicy(policy)
+        .build();
+  }
+}